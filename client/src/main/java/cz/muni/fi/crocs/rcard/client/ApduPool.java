@@ -0,0 +1,58 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Bounded pool of {@link MutableApdu} buffers.
+ * Released instances are reused by the next acquire, instances above the pool size are left to GC.
+ * Thread-safe, instance can be acquired on one thread and released on another.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class ApduPool {
+  public static final int DEFAULT_SIZE = 256;
+
+  /**
+   * Buffers grown above this capacity by extended APDUs are not returned to the pool
+   */
+  public static final int MAX_POOLED_CAPACITY = 4096;
+
+  private static volatile ApduPool instance;
+
+  private final ArrayBlockingQueue<MutableApdu> pool;
+
+  public ApduPool(int size) {
+    pool = new ArrayBlockingQueue<>(size);
+  }
+
+  /**
+   * Shared pool instance
+   */
+  public static ApduPool shared() {
+    if (instance == null) {
+      synchronized (ApduPool.class) {
+        if (instance == null) {
+          instance = new ApduPool(DEFAULT_SIZE);
+        }
+      }
+    }
+    return instance;
+  }
+
+  public MutableApdu acquire() {
+    final MutableApdu apdu = pool.poll();
+    return apdu != null ? apdu : new MutableApdu();
+  }
+
+  public void release(MutableApdu apdu) {
+    if (apdu == null || apdu.getBuffer().length > MAX_POOLED_CAPACITY) {
+      return;
+    }
+    pool.offer(apdu.clear());
+  }
+
+  public int size() {
+    return pool.size();
+  }
+}
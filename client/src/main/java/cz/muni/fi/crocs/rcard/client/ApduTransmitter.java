@@ -0,0 +1,16 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * Transmits one APDU to the card, used by the APDU processing helpers.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+@FunctionalInterface
+public interface ApduTransmitter {
+  ResponseAPDU transmit(CommandAPDU cmd) throws CardException;
+}
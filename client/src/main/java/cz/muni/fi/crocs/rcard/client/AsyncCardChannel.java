@@ -0,0 +1,23 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Card channel supporting pipelined transmission, multiple commands can be in flight at once.
+ * Commands are executed by the card in the order of submission.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public interface AsyncCardChannel {
+  /**
+   * Submits the command, does not wait for the response.
+   * Future callbacks may run on the transport thread, avoid blocking in them.
+   *
+   * @param cmd APDU command to send to the card
+   * @return future APDU card response
+   */
+  CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU cmd);
+}
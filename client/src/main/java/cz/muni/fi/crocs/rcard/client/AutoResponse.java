@@ -0,0 +1,82 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Handles 61xx and 6Cxx status words next to the card, ISO 7816-4.
+ * 61xx - more data available, GET RESPONSE is issued until all data is collected.
+ * 6Cxx - wrong Le, the command is sent again with Le from SW2.
+ * The caller gets the concatenated response data with the final status word.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class AutoResponse {
+  private final static Logger LOG = LoggerFactory.getLogger(AutoResponse.class);
+
+  public static final int SW1_BYTES_REMAINING = 0x61;
+  public static final int SW1_WRONG_LE = 0x6C;
+  public static final int INS_GET_RESPONSE = 0xC0;
+
+  /**
+   * Maximum number of additional exchanges for one command
+   */
+  public static final int MAX_ROUNDS = 256;
+
+  /**
+   * Transmits the command, handles 61xx and 6Cxx responses.
+   * @param transmitter sends a single APDU to the card
+   * @param cmd command to send
+   * @return final response with all response data
+   * @throws CardException on transmission error or when the card keeps returning 61xx/6Cxx
+   */
+  public static ResponseAPDU transmit(ApduTransmitter transmitter, CommandAPDU cmd) throws CardException {
+    ResponseAPDU resp = transmitter.transmit(cmd);
+    if (resp.getSW1() != SW1_BYTES_REMAINING && resp.getSW1() != SW1_WRONG_LE) {
+      return resp;
+    }
+
+    final ByteArrayOutputStream data = new ByteArrayOutputStream();
+    CommandAPDU last = cmd;
+    for (int round = 0; round < MAX_ROUNDS; round++) {
+      final int sw1 = resp.getSW1();
+      if (sw1 == SW1_WRONG_LE) {
+        last = new CommandAPDU(last.getCLA(), last.getINS(), last.getP1(), last.getP2(), last.getData(), neFromSw2(resp));
+        LOG.debug("Wrong Le, resending with Ne: " + last.getNe());
+
+      } else if (sw1 == SW1_BYTES_REMAINING) {
+        data.write(resp.getData(), 0, resp.getNr());
+        last = new CommandAPDU(getResponseCla(cmd.getCLA()), INS_GET_RESPONSE, 0, 0, neFromSw2(resp));
+        LOG.debug("Bytes remaining, GET RESPONSE with Ne: " + last.getNe());
+
+      } else {
+        data.write(resp.getBytes(), 0, resp.getBytes().length);
+        return new ResponseAPDU(data.toByteArray());
+      }
+
+      resp = transmitter.transmit(last);
+    }
+
+    throw new CardException("Too many GET RESPONSE rounds, last SW: " + Integer.toHexString(resp.getSW()));
+  }
+
+  /**
+   * GET RESPONSE keeps logical channel bits of the original command CLA.
+   */
+  public static int getResponseCla(int cla) {
+    if ((cla & 0x40) != 0) {
+      return 0x40 | (cla & 0x0F);
+    }
+    return cla & 0x03;
+  }
+
+  private static int neFromSw2(ResponseAPDU resp) {
+    return resp.getSW2() == 0 ? 256 : resp.getSW2();
+  }
+}
@@ -0,0 +1,23 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.List;
+
+/**
+ * Card channel able to transmit an ordered list of commands in one exchange.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public interface BatchCardChannel {
+  /**
+   * Transmits all APDUs in one exchange, the commands are executed back-to-back.
+   * @param cmds commands to transmit, in order
+   * @param times if not null, filled with card-side execution times in nanoseconds
+   * @return response APDUs, in order
+   * @throws CardException on failure
+   */
+  List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds, long[] times) throws CardException;
+}
@@ -5,18 +5,23 @@ import com.licel.jcardsim.io.CAD;
 import com.licel.jcardsim.io.JavaxSmartCardInterface;
 import com.licel.jcardsim.smartcardio.CardSimulator;
 import com.licel.jcardsim.smartcardio.CardTerminalSimulator;
+import cz.muni.fi.crocs.rcard.client.stats.InsStatistics;
+import cz.muni.fi.crocs.rcard.client.trace.TraceRecorder;
 import javacard.framework.AID;
 import javacard.framework.Applet;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.*;
+import java.io.IOException;
+import java.nio.file.Paths;
 import java.security.NoSuchAlgorithmException;
 import java.time.Duration;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -55,6 +60,16 @@ public class CardManager {
      */
     protected boolean doSelect = true;
 
+    /**
+     * APDU trace recorder, null if tracing is disabled
+     */
+    protected TraceRecorder traceRecorder = null;
+
+    /**
+     * Per instruction latency statistics, kept across reconnects, null if disabled (default)
+     */
+    protected InsStatistics insStatistics = null;
+
     public CardManager(boolean bDebug, byte[] appletAID) {
         this.bDebug = bDebug;
         this.appletId = appletAID;
@@ -105,6 +120,14 @@ public class CardManager {
                 connectVSmartCart(runCfg);
                 break;
             }
+            case REMOTE_TCP: {
+                connectRemoteTcpChannel(runCfg);
+                break;
+            }
+            case REPLAY: {
+                connectReplayChannel(runCfg);
+                break;
+            }
             default:
                 throw new RuntimeException("Unsupported card type: " + runCfg.testCardType);
         }
@@ -112,6 +135,16 @@ public class CardManager {
             bConnected = true;
         }
         lastChannelType = runCfg.testCardType;
+        if (runCfg.traceFile != null && traceRecorder == null) {
+            try {
+                traceRecorder = new TraceRecorder(Paths.get(runCfg.traceFile));
+            } catch (IOException e) {
+                throw new CardException("Could not open trace file " + runCfg.traceFile, e);
+            }
+        }
+        if (channel != null) {
+            channel.setTraceRecorder(traceRecorder, lastChannelType);
+        }
         isConnected.set(bConnected);
         return bConnected;
     }
@@ -141,13 +174,15 @@ public class CardManager {
     }
 
     /**
-     * Card disconnect
+     * Card disconnect, no-op if the card was never connected
      * @param bReset reset card
      * @throws CardException exception
      */
     public void disconnect(boolean bReset) throws CardException {
         try {
-            channel.getCard().disconnect(bReset); // Disconnect from the card
+            if (channel != null) {
+                channel.getCard().disconnect(bReset); // Disconnect from the card
+            }
         } finally {
             isConnected.set(false);
         }
@@ -235,11 +270,26 @@ public class CardManager {
     }
 
     public CardChannel connectRemoteChannel(RunConfig cfg) throws CardException {
-        setChannel(new RemoteCardChannel(cfg));
+        setChannel(cfg.remoteWebSocket ? new RemoteWsCardChannel(cfg) : new RemoteCardChannel(cfg));
+        maybeSelect();
+        return channel;
+    }
+
+    public CardChannel connectRemoteTcpChannel(RunConfig cfg) throws CardException {
+        setChannel(new RemoteTcpCardChannel(cfg));
         maybeSelect();
         return channel;
     }
 
+    /**
+     * Replay channel answers from the trace, applet selection is not performed as
+     * traces recorded by CardManager do not contain the initial select.
+     */
+    public CardChannel connectReplayChannel(RunConfig cfg) throws CardException {
+        setChannel(new ReplayCardChannel(cfg));
+        return channel;
+    }
+
     public CardChannel connectVSmartCart(RunConfig cfg) throws CardException {
         setChannel(new VSmartCardCardChannel(cfg));
         maybeSelect();
@@ -323,6 +373,63 @@ public class CardManager {
         }
     }
 
+    /**
+     * Transmits the command through the ByteBuffer channel interface, without javax.smartcardio APDU objects.
+     * Case 1 command is fixed in place if fixLc is set.
+     * @param cmd APDU command to send to the card
+     * @param resp response APDU is written here, must be a different instance than cmd
+     * @return response length
+     * @throws CardException exception
+     */
+    public int transmit(MutableApdu cmd, MutableApdu resp) throws CardException {
+        if (fixLc) {
+            cmd.fixCase1Le();
+        }
+        if (cmd.getCase() == 0) {
+            cmd.parseCommand();
+        }
+
+        try {
+            final int len = channel.transmit(cmd.commandBuffer(), resp.responseBuffer(cmd.getNe() + 2));
+            resp.setLength(len);
+            return len;
+        } catch(Exception e) {
+            isConnected.set(false);
+            throw e;
+        }
+    }
+
+    /**
+     * Transmits the command without waiting for the response.
+     * Remote WebSocket channels pipeline the commands, multiple commands are in flight on a single connection
+     * and responses are matched by request ID. Other channels transmit synchronously.
+     * @param cmd APDU command to send to the card
+     * @return future APDU card response
+     */
+    public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU cmd) {
+        return channel.transmitAsync(cmd).whenComplete((resp, e) -> {
+            if (e != null) {
+                isConnected.set(false);
+            }
+        });
+    }
+
+    /**
+     * Transmits all commands in order. Remote cards receive the whole batch in one request,
+     * local backends transmit the commands one by one.
+     * @param cmds APDU commands to send to the card
+     * @return APDU card responses, in order
+     * @throws CardException exception
+     */
+    public List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds) throws CardException {
+        try {
+            return channel.transmitBatch(cmds);
+        } catch(Exception e) {
+            isConnected.set(false);
+            throw e;
+        }
+    }
+
     /**
      * Reset the card
      */
@@ -380,6 +487,14 @@ public class CardManager {
         return channel.lastTransmitTimeDuration.toNanos();
     }
 
+    /**
+     * Per-command execution times of the last batch, in nanoseconds.
+     * Server-side times for remote cards.
+     */
+    public long[] getLastBatchTimesNano() {
+        return channel.lastBatchTimes;
+    }
+
     public CommandAPDU getLastCommand() {
         return channel.lastCommand;
     }
@@ -407,9 +522,52 @@ public class CardManager {
         this.channel.fixLc = fixLc;
         this.channel.fixNe = fixNe;
         this.channel.defaultNe = defaultNe;
+        this.channel.setTraceRecorder(traceRecorder, lastChannelType);
+        this.channel.setInsStatistics(insStatistics);
+        return this;
+    }
+
+    public InsStatistics getInsStatistics() {
+        return insStatistics;
+    }
+
+    /**
+     * Enables per instruction statistics, null disables collecting them
+     */
+    public CardManager setInsStatistics(InsStatistics insStatistics) {
+        this.insStatistics = insStatistics;
+        if (channel != null) {
+            channel.setInsStatistics(insStatistics);
+        }
+        return this;
+    }
+
+    public TraceRecorder getTraceRecorder() {
+        return traceRecorder;
+    }
+
+    /**
+     * Sets APDU trace recorder, null disables tracing. Previous recorder is not closed.
+     */
+    public CardManager setTraceRecorder(TraceRecorder traceRecorder) {
+        this.traceRecorder = traceRecorder;
+        if (channel != null) {
+            channel.setTraceRecorder(traceRecorder, lastChannelType);
+        }
         return this;
     }
 
+    /**
+     * Stops tracing, flushes and closes the trace file
+     */
+    public void closeTrace() throws IOException {
+        final TraceRecorder recorder = traceRecorder;
+        setTraceRecorder(null);
+        if (recorder != null) {
+            recorder.close();
+        }
+    }
+
     public boolean isFixLc() {
         return fixLc;
     }
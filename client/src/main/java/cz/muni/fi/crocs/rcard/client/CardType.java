@@ -39,5 +39,15 @@ public enum CardType {
   /**
    * VSmartCard card connection protocol (connects to vicc)
    */
-  VSMARTCARD
+  VSMARTCARD,
+
+  /**
+   * Remote card over raw TCP binary frames
+   */
+  REMOTE_TCP,
+
+  /**
+   * Responses served from a recorded APDU trace, configured in the RunConfig
+   */
+  REPLAY
 }
\ No newline at end of file
@@ -0,0 +1,68 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.util.Arrays;
+
+/**
+ * ISO 7816-4 command chaining, splits a command with long data to several short APDUs.
+ * All but the last APDU have the chaining bit 0x10 set in CLA and must be answered with 9000.
+ * The last APDU carries the original CLA and Le, its response is the response of the whole command.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class CommandChaining {
+  private final static Logger LOG = LoggerFactory.getLogger(CommandChaining.class);
+
+  public static final int CLA_CHAINING = 0x10;
+  public static final int SW_OK = 0x9000;
+
+  /**
+   * Transmits the command using command chaining with the maximal short APDU chunk size.
+   */
+  public static ResponseAPDU transmit(ApduTransmitter transmitter, CommandAPDU cmd) throws CardException {
+    return transmit(transmitter, cmd, ExtendedApdu.MAX_SHORT_NC);
+  }
+
+  /**
+   * Transmits the command using command chaining.
+   * @param transmitter sends a single APDU to the card
+   * @param cmd logical command, may be longer than short APDU
+   * @param chunkSize maximal data length of one APDU
+   * @return response to the last APDU, or the first non-9000 intermediate response
+   * @throws CardException on transmission error
+   */
+  public static ResponseAPDU transmit(ApduTransmitter transmitter, CommandAPDU cmd, int chunkSize) throws CardException {
+    if (chunkSize <= 0 || chunkSize > ExtendedApdu.MAX_SHORT_NC) {
+      throw new IllegalArgumentException("Invalid chunk size: " + chunkSize);
+    }
+
+    final byte[] data = cmd.getData();
+    if (data.length <= chunkSize) {
+      return transmitter.transmit(ExtendedApdu.toShort(cmd));
+    }
+
+    int off = 0;
+    while (data.length - off > chunkSize) {
+      final CommandAPDU part = new CommandAPDU(cmd.getCLA() | CLA_CHAINING, cmd.getINS(), cmd.getP1(), cmd.getP2(),
+          Arrays.copyOfRange(data, off, off + chunkSize));
+      final ResponseAPDU resp = transmitter.transmit(part);
+      if (resp.getSW() != SW_OK) {
+        LOG.debug("Chaining aborted at offset " + off + ", SW: " + Integer.toHexString(resp.getSW()));
+        return resp;
+      }
+      off += chunkSize;
+    }
+
+    final byte[] last = Arrays.copyOfRange(data, off, data.length);
+    final int ne = Math.min(cmd.getNe(), ExtendedApdu.MAX_SHORT_NE);
+    return transmitter.transmit(ne > 0
+        ? new CommandAPDU(cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), last, ne)
+        : new CommandAPDU(cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), last));
+  }
+}
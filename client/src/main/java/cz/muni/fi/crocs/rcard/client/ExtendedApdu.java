@@ -0,0 +1,97 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import javax.smartcardio.ATR;
+import javax.smartcardio.CommandAPDU;
+
+/**
+ * Extended length APDU helpers, ISO 7816-4.
+ * Short APDU: Lc and Le are one byte, extended APDU: Lc and Le are encoded on two bytes after 00 marker.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class ExtendedApdu {
+  public static final int MAX_SHORT_NC = 255;
+  public static final int MAX_SHORT_NE = 256;
+
+  /**
+   * Card capabilities tag in the compact-TLV historical bytes
+   */
+  public static final int TAG_CARD_CAPABILITIES = 0x7;
+
+  /**
+   * Extended Lc and Le fields bit, third byte of the card capabilities
+   */
+  public static final int CAPABILITY_EXTENDED_LENGTH = 0x40;
+
+  /**
+   * Returns true if the command uses extended length encoding (cases 2E, 3E, 4E)
+   */
+  public static boolean isExtended(CommandAPDU cmd) {
+    return isExtended(cmd.getBytes());
+  }
+
+  public static boolean isExtended(byte[] apdu) {
+    return apdu.length > 5 && apdu[4] == 0;
+  }
+
+  /**
+   * Returns true if the command can be encoded as a short APDU, Ne is then capped to 256
+   */
+  public static boolean fitsShort(CommandAPDU cmd) {
+    return cmd.getNc() <= MAX_SHORT_NC;
+  }
+
+  /**
+   * Converts the command to the short form.
+   * Ne above 256 is capped to 256, the rest of the data can be read with GET RESPONSE.
+   * @param cmd command to convert
+   * @return short command APDU
+   * @throws IllegalArgumentException if the command data does not fit short APDU
+   */
+  public static CommandAPDU toShort(CommandAPDU cmd) {
+    if (!isExtended(cmd)) {
+      return cmd;
+    }
+    if (!fitsShort(cmd)) {
+      throw new IllegalArgumentException("Command data too long for short APDU: " + cmd.getNc());
+    }
+    return new CommandAPDU(cmd.getCLA(), cmd.getINS(), cmd.getP1(), cmd.getP2(), cmd.getData(),
+        Math.min(cmd.getNe(), MAX_SHORT_NE));
+  }
+
+  /**
+   * Reads extended length support from the card capabilities in the ATR historical bytes.
+   * @param atr card ATR
+   * @return true / false if the card declares the capability, null if the ATR does not contain card capabilities
+   */
+  public static Boolean supportedByAtr(ATR atr) {
+    final byte[] hist = atr == null ? null : atr.getHistoricalBytes();
+    if (hist == null || hist.length == 0) {
+      return null;
+    }
+
+    // Category indicator 0x80: compact-TLV objects follow, 0x00: compact-TLV objects and 3 status bytes at the end
+    final int category = hist[0] & 0xff;
+    int end = hist.length;
+    if (category == 0x00) {
+      end -= 3;
+    } else if (category != 0x80) {
+      return null;
+    }
+
+    int off = 1;
+    while (off < end) {
+      final int tag = (hist[off] & 0xf0) >> 4;
+      final int len = hist[off] & 0x0f;
+      if (off + 1 + len > end) {
+        return null;
+      }
+      if (tag == TAG_CARD_CAPABILITIES && len >= 3) {
+        return (hist[off + 3] & CAPABILITY_EXTENDED_LENGTH) != 0;
+      }
+      off += 1 + len;
+    }
+    return null;
+  }
+}
@@ -0,0 +1,350 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * Reusable APDU buffer, holds either a command or a response APDU.
+ * Intended for the hot path, instances are taken from {@link ApduPool} and filled in place,
+ * the card is accessed via {@link javax.smartcardio.CardChannel#transmit(ByteBuffer, ByteBuffer)}.
+ * Use {@link #toCommandAPDU()} / {@link #toResponseAPDU()} to interoperate with javax.smartcardio.
+ *
+ * Command is parsed by {@link #parseCommand()}, following the ISO 7816-4 cases the same way as {@link CommandAPDU}.
+ * Not thread-safe.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class MutableApdu {
+  public static final int CASE_1 = 1;
+  public static final int CASE_2S = 2;
+  public static final int CASE_3S = 3;
+  public static final int CASE_4S = 4;
+  public static final int CASE_2E = 5;
+  public static final int CASE_3E = 6;
+  public static final int CASE_4E = 7;
+
+  /**
+   * Default capacity, short command APDU and short response APDU fit
+   */
+  public static final int DEFAULT_CAPACITY = 512;
+
+  /**
+   * Extended command APDU with Nc = Ne = 65535
+   */
+  public static final int MAX_LENGTH = 4 + 3 + 65535 + 2;
+
+  private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+  protected byte[] buffer;
+  protected int length;
+
+  // Parsed command fields, valid after parseCommand()
+  protected int apduCase;
+  protected int nc;
+  protected int ne;
+  protected int dataOffset;
+
+  public MutableApdu() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public MutableApdu(int capacity) {
+    buffer = new byte[capacity];
+  }
+
+  public static MutableApdu of(CommandAPDU cmd) {
+    return new MutableApdu().set(cmd.getBytes());
+  }
+
+  /**
+   * Clears the contents, the buffer is kept for reuse
+   */
+  public MutableApdu clear() {
+    length = 0;
+    apduCase = 0;
+    nc = 0;
+    ne = 0;
+    dataOffset = 0;
+    return this;
+  }
+
+  public MutableApdu set(byte[] src) {
+    return set(src, 0, src.length);
+  }
+
+  public MutableApdu set(byte[] src, int offset, int len) {
+    clear();
+    ensureCapacity(len);
+    System.arraycopy(src, offset, buffer, 0, len);
+    length = len;
+    return this;
+  }
+
+  /**
+   * Copies remaining bytes of the source, source position is moved to its limit
+   */
+  public MutableApdu set(ByteBuffer src) {
+    clear();
+    final int len = src.remaining();
+    ensureCapacity(len);
+    src.get(buffer, 0, len);
+    length = len;
+    return this;
+  }
+
+  /**
+   * Decodes hex-encoded APDU directly to the buffer, whitespace is ignored
+   */
+  public MutableApdu setHex(CharSequence hex) {
+    clear();
+    ensureCapacity(hex.length() / 2);
+
+    int nibbles = 0;
+    for (int i = 0; i < hex.length(); i++) {
+      final char c = hex.charAt(i);
+      if (Character.isWhitespace(c)) {
+        continue;
+      }
+      final int v = hexValue(c);
+      if ((nibbles & 1) == 0) {
+        buffer[nibbles / 2] = (byte) (v << 4);
+      } else {
+        buffer[nibbles / 2] |= (byte) v;
+      }
+      nibbles += 1;
+    }
+
+    if ((nibbles & 1) != 0) {
+      throw new IllegalArgumentException("Odd number of hex characters");
+    }
+    length = nibbles / 2;
+    return this;
+  }
+
+  /**
+   * Parses the command APDU case, Nc, Ne and data offset.
+   * @throws IllegalArgumentException on malformed APDU, same conditions as {@link CommandAPDU}
+   */
+  public MutableApdu parseCommand() {
+    if (length < 4) {
+      throw new IllegalArgumentException("APDU must be at least 4 bytes long");
+    }
+
+    nc = 0;
+    ne = 0;
+    dataOffset = 0;
+    if (length == 4) {
+      apduCase = CASE_1;
+      return this;
+    }
+
+    final int l1 = buffer[4] & 0xff;
+    if (length == 5) {
+      apduCase = CASE_2S;
+      ne = l1 == 0 ? 256 : l1;
+      return this;
+    }
+
+    if (l1 != 0) {
+      if (length == 4 + 1 + l1) {
+        apduCase = CASE_3S;
+      } else if (length == 4 + 2 + l1) {
+        apduCase = CASE_4S;
+        final int l2 = buffer[length - 1] & 0xff;
+        ne = l2 == 0 ? 256 : l2;
+      } else {
+        throw new IllegalArgumentException("Invalid APDU: length=" + length + ", b1=" + l1);
+      }
+      nc = l1;
+      dataOffset = 5;
+      return this;
+    }
+
+    if (length < 7) {
+      throw new IllegalArgumentException("Invalid APDU: length=" + length + ", b1=" + l1);
+    }
+
+    final int l2 = ((buffer[5] & 0xff) << 8) | (buffer[6] & 0xff);
+    if (length == 7) {
+      apduCase = CASE_2E;
+      ne = l2 == 0 ? 65536 : l2;
+      return this;
+    }
+    if (l2 == 0) {
+      throw new IllegalArgumentException("Invalid APDU: length=" + length + ", b1=" + l1 + ", b2||b3=" + l2);
+    }
+
+    if (length == 4 + 3 + l2) {
+      apduCase = CASE_3E;
+    } else if (length == 4 + 5 + l2) {
+      apduCase = CASE_4E;
+      final int l3 = ((buffer[length - 2] & 0xff) << 8) | (buffer[length - 1] & 0xff);
+      ne = l3 == 0 ? 65536 : l3;
+    } else {
+      throw new IllegalArgumentException("Invalid APDU: length=" + length + ", b1=" + l1 + ", b2||b3=" + l2);
+    }
+    nc = l2;
+    dataOffset = 7;
+    return this;
+  }
+
+  /**
+   * Appends Le=00 to a case 1 command, in place.
+   * @return true if the command was modified
+   */
+  public boolean fixCase1Le() {
+    if (length != 4) {
+      return false;
+    }
+    ensureCapacity(5);
+    buffer[4] = 0;
+    length = 5;
+    apduCase = CASE_2S;
+    ne = 256;
+    return true;
+  }
+
+  public void ensureCapacity(int capacity) {
+    if (capacity > MAX_LENGTH) {
+      throw new IllegalArgumentException("APDU too long: " + capacity);
+    }
+    if (buffer.length < capacity) {
+      buffer = Arrays.copyOf(buffer, Math.min(MAX_LENGTH, Math.max(capacity, buffer.length * 2)));
+    }
+  }
+
+  /**
+   * View of the APDU, position 0, limit at the APDU length
+   */
+  public ByteBuffer commandBuffer() {
+    return ByteBuffer.wrap(buffer, 0, length);
+  }
+
+  /**
+   * Clears the APDU and returns a view of the whole buffer for receiving a response of the given maximal length.
+   * Call {@link #setLength(int)} with the number of bytes received.
+   */
+  public ByteBuffer responseBuffer(int maxLength) {
+    clear();
+    ensureCapacity(Math.max(maxLength, Util.MIN_RESPONSE_BUFFER));
+    return ByteBuffer.wrap(buffer);
+  }
+
+  public CommandAPDU toCommandAPDU() {
+    return new CommandAPDU(buffer, 0, length);
+  }
+
+  public ResponseAPDU toResponseAPDU() {
+    return new ResponseAPDU(getBytes());
+  }
+
+  /**
+   * Copy of the APDU bytes
+   */
+  public byte[] getBytes() {
+    return Arrays.copyOf(buffer, length);
+  }
+
+  public String toHex() {
+    final char[] chars = new char[length * 2];
+    for (int i = 0; i < length; i++) {
+      chars[i * 2] = HEX[(buffer[i] >> 4) & 0xf];
+      chars[i * 2 + 1] = HEX[buffer[i] & 0xf];
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Underlying buffer, valid bytes are [0, length)
+   */
+  public byte[] getBuffer() {
+    return buffer;
+  }
+
+  public int getLength() {
+    return length;
+  }
+
+  public MutableApdu setLength(int length) {
+    if (length < 0 || length > buffer.length) {
+      throw new IllegalArgumentException("Invalid length: " + length);
+    }
+    this.length = length;
+    return this;
+  }
+
+  public int getCase() {
+    return apduCase;
+  }
+
+  public boolean isExtended() {
+    return apduCase >= CASE_2E;
+  }
+
+  public int getCla() {
+    return buffer[0] & 0xff;
+  }
+
+  public int getIns() {
+    return buffer[1] & 0xff;
+  }
+
+  public int getP1() {
+    return buffer[2] & 0xff;
+  }
+
+  public int getP2() {
+    return buffer[3] & 0xff;
+  }
+
+  public int getNc() {
+    return nc;
+  }
+
+  public int getNe() {
+    return ne;
+  }
+
+  public int getDataOffset() {
+    return dataOffset;
+  }
+
+  /**
+   * Status word of the response APDU
+   */
+  public int getSW() {
+    if (length < 2) {
+      throw new IllegalStateException("Response APDU too short");
+    }
+    return ((buffer[length - 2] & 0xff) << 8) | (buffer[length - 1] & 0xff);
+  }
+
+  public int getSW1() {
+    return getSW() >> 8;
+  }
+
+  public int getSW2() {
+    return getSW() & 0xff;
+  }
+
+  private static int hexValue(char c) {
+    final int v = Character.digit(c, 16);
+    if (v < 0) {
+      throw new IllegalArgumentException("Invalid hex character: " + c);
+    }
+    return v;
+  }
+
+  @Override
+  public String toString() {
+    return "MutableApdu{" +
+        "length=" + length +
+        ", case=" + apduCase +
+        ", nc=" + nc +
+        ", ne=" + ne +
+        '}';
+  }
+}
@@ -1,15 +1,29 @@
 package cz.muni.fi.crocs.rcard.client;
 
 import okhttp3.*;
+import okio.BufferedSink;
+import okio.BufferedSource;
+import org.apache.commons.codec.DecoderException;
 import org.apache.commons.codec.binary.Hex;
+import org.json.JSONArray;
 import org.json.JSONObject;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.*;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
 import java.util.Objects;
+import java.util.Set;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Card channel connecting to a remote card, accessible via REST interface provided by
@@ -18,17 +32,23 @@ import java.util.Objects;
  * @author Dusan Klinec ph4r05@gmail.com
  * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
  */
-public class RemoteCardChannel extends CardChannel {
+public class RemoteCardChannel extends CardChannel implements BatchCardChannel {
   private final static Logger LOG = LoggerFactory.getLogger(RemoteCardChannel.class);
   public static final MediaType MEDIA_TYPE_JSON = MediaType.parse("application/json; charset=utf-8");
-  private final OkHttpClient client = new OkHttpClient();
+  public static final MediaType MEDIA_TYPE_OCTET = MediaType.parse("application/octet-stream");
+  public static final String FEATURE_APDU_RAW = "apdu_raw";
+  public static final String FEATURE_COMPRESSION = "compression";
+  public static final String FEATURE_BATCH = "batch";
+  protected final OkHttpClient client;
   protected RemoteCard card;
   protected RunConfig cfg;
   protected boolean connected = false;
+  protected Set<String> serverFeatures = Collections.emptySet();
 
   public RemoteCardChannel(RunConfig runConfig) {
     card = new RemoteCard();
     cfg = runConfig;
+    client = RemoteHttpClient.get(cfg.remoteAddress, cfg.remoteHttp2);
   }
 
   @Override
@@ -49,9 +69,7 @@ public class RemoteCardChannel extends CardChannel {
       connectIfNeeded();
 
       log(apdu);
-      final JSONObject resp = cardApdu(apdu.getBytes());
-      final byte[] apduData = Hex.decodeHex(resp.getString("response"));
-      responseAPDU = new ResponseAPDU(apduData);
+      responseAPDU = new ResponseAPDU(cardApduRaw(apdu.getBytes()));
       log(responseAPDU);
 
     } catch (Exception ex) {
@@ -62,10 +80,60 @@ public class RemoteCardChannel extends CardChannel {
     return responseAPDU;
   }
 
+  /**
+   * Transmits all APDUs in one request, the server executes them back-to-back.
+   * If the server does not advertise the batch feature, the APDUs are transmitted one by one.
+   * @param cmds commands to transmit, in order
+   * @param times if not null, filled with server-side execution times in nanoseconds
+   * @return response APDUs, in order
+   * @throws CardException on failure
+   */
   @Override
-  public int transmit(ByteBuffer bb, ByteBuffer bb1) throws CardException {
-    LOG.error("Accessing unimplemented transmit variant");
-    throw new UnsupportedOperationException("Not supported yet.");
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds, long[] times) throws CardException {
+    try {
+      connectIfNeeded();
+
+      final List<byte[]> apdus = new ArrayList<>(cmds.size());
+      for (CommandAPDU cmd : cmds) {
+        log(cmd);
+        apdus.add(cmd.getBytes());
+      }
+
+      final List<ResponseAPDU> responses = new ArrayList<>(cmds.size());
+      final List<byte[]> raw = serverFeatures.contains(FEATURE_BATCH) ? cardBatchRaw(apdus, times) : cardSequenceRaw(apdus, times);
+      for (byte[] resp : raw) {
+        final ResponseAPDU responseAPDU = new ResponseAPDU(resp);
+        log(responseAPDU);
+        responses.add(responseAPDU);
+      }
+      return responses;
+
+    } catch (Exception ex) {
+      LOG.warn("Batch transmit failed", ex);
+      throw new CardException("Batch transmit failed - exception", ex);
+    }
+  }
+
+  /**
+   * Transmits the remaining command bytes, the response APDU is written at the response buffer position.
+   * With the raw APDU endpoint the buffers are streamed to / from the HTTP connection directly.
+   */
+  @Override
+  public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+    Util.checkTransmitBuffers(command, response);
+    try {
+      connectIfNeeded();
+      if (LOG.isDebugEnabled()) {
+        Util.log(LOG, command);
+      }
+      return cardApduRaw(command, response);
+
+    } catch (CardException ex) {
+      throw ex;
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      throw new CardException("Transmit failed - exception", ex);
+    }
   }
 
   @Override
@@ -108,6 +176,22 @@ public class RemoteCardChannel extends CardChannel {
   protected JSONObject addTarget(JSONObject req){
     req.put("target", cfg.remoteCardType == CardType.JCARDSIMLOCAL ? "sim" : "card");
     req.put("idx", cfg.targetReaderIndex);
+    if (cfg.remoteSession != null) {
+      req.put("csess", cfg.remoteSession);
+    }
+    return req;
+  }
+
+  /**
+   * Adds transmit options to the APDU request
+   */
+  protected JSONObject addSendOptions(JSONObject req){
+    if (cfg.remoteAutoResponse) {
+      req.put("auto_response", true);
+    }
+    if (cfg.remoteCommandChaining) {
+      req.put("chaining", true);
+    }
     return req;
   }
 
@@ -117,6 +201,7 @@ public class RemoteCardChannel extends CardChannel {
 
     JSONObject resp = sendJson(req);
     checkResult(resp);
+    updateFeatures(resp);
     return resp.getBoolean("connected");
   }
 
@@ -126,6 +211,7 @@ public class RemoteCardChannel extends CardChannel {
     LOG.debug("Calling card connect: " + req.toString());
     JSONObject resp = sendJson(req);
     checkResult(resp);
+    updateFeatures(resp);
     return resp;
   }
 
@@ -143,17 +229,88 @@ public class RemoteCardChannel extends CardChannel {
 
   protected JSONObject cardSelect(byte[] aid) throws IOException {
     LOG.debug("Calling AID select with AID: " + Hex.encodeHexString(aid));
-    JSONObject resp = sendJson(addTarget(new JSONObject().put("action", "select").put("aid", Hex.encodeHexString(aid))));
+    JSONObject resp = sendJson(addSendOptions(addTarget(new JSONObject().put("action", "select").put("aid", Hex.encodeHexString(aid)))));
     checkResult(resp);
     return resp;
   }
 
   protected JSONObject cardApdu(byte[] apdu) throws IOException {
-    JSONObject resp = sendJson(addTarget(new JSONObject().put("action", "send").put("apdu", Hex.encodeHexString(apdu))));
+    JSONObject resp = sendJson(addSendOptions(addTarget(new JSONObject().put("action", "send").put("apdu", Hex.encodeHexString(apdu)))));
     checkResult(resp);
     return resp;
   }
 
+  /**
+   * Transmits raw APDU bytes to the card, returns raw response APDU bytes.
+   * Override to use a different transport for APDUs.
+   */
+  protected byte[] cardApduRaw(byte[] apdu) throws IOException {
+    if (serverFeatures.contains(FEATURE_APDU_RAW)) {
+      return sendRaw(apdu);
+    }
+
+    final JSONObject resp = cardApdu(apdu);
+    try {
+      return Hex.decodeHex(resp.getString("response"));
+    } catch (DecoderException e) {
+      throw new IOException("Invalid response encoding", e);
+    }
+  }
+
+  /**
+   * Buffer variant of {@link #cardApduRaw(byte[])}, consumes remaining command bytes.
+   * @return number of response bytes written to the response buffer
+   */
+  protected int cardApduRaw(ByteBuffer command, ByteBuffer response) throws IOException, CardException {
+    if (serverFeatures.contains(FEATURE_APDU_RAW)) {
+      return sendRaw(command, response);
+    }
+    return Util.putResponse(response, cardApduRaw(Util.remainingBytes(command)));
+  }
+
+  /**
+   * Transmits raw APDUs in one batch request, returns raw response APDUs.
+   */
+  protected List<byte[]> cardBatchRaw(List<byte[]> apdus, long[] times) throws IOException {
+    final JSONArray apdusHex = new JSONArray();
+    for (byte[] apdu : apdus) {
+      apdusHex.put(Hex.encodeHexString(apdu));
+    }
+
+    final JSONObject resp = sendJson(addSendOptions(addTarget(new JSONObject().put("action", "batch").put("apdus", apdusHex))));
+    checkResult(resp);
+
+    final JSONArray items = resp.getJSONArray("responses");
+    final List<byte[]> responses = new ArrayList<>(items.length());
+    try {
+      for (int i = 0; i < items.length(); i++) {
+        final JSONObject item = items.getJSONObject(i);
+        responses.add(Hex.decodeHex(item.getString("response")));
+        if (times != null && i < times.length) {
+          times[i] = item.optLong("time_ns");
+        }
+      }
+    } catch (DecoderException e) {
+      throw new IOException("Invalid response encoding", e);
+    }
+    return responses;
+  }
+
+  /**
+   * Transmits raw APDUs one by one, for servers without the batch support. Times are measured by the client.
+   */
+  protected List<byte[]> cardSequenceRaw(List<byte[]> apdus, long[] times) throws IOException {
+    final List<byte[]> responses = new ArrayList<>(apdus.size());
+    for (int i = 0; i < apdus.size(); i++) {
+      final long start = System.nanoTime();
+      responses.add(cardApduRaw(apdus.get(i)));
+      if (times != null && i < times.length) {
+        times[i] = System.nanoTime() - start;
+      }
+    }
+    return responses;
+  }
+
   protected JSONObject cardAtr() throws IOException {
     LOG.debug("Calling getAtr");
     JSONObject resp = sendJson(addTarget(new JSONObject().put("action", "atr")));
@@ -177,14 +334,153 @@ public class RemoteCardChannel extends CardChannel {
     }
   }
 
-  public JSONObject sendJson(JSONObject req) throws IOException {
+  /**
+   * Remembers optional features advertised by the server.
+   */
+  protected void updateFeatures(JSONObject resp) {
+    final JSONArray features = resp.optJSONArray("features");
+    if (features == null) {
+      return;
+    }
+
+    final Set<String> newFeatures = new HashSet<>();
+    for (int i = 0; i < features.length(); i++) {
+      newFeatures.add(features.getString(i));
+    }
+    serverFeatures = newFeatures;
+  }
+
+  /**
+   * Sends raw APDU to the octet-stream endpoint, no JSON and hex encoding.
+   */
+  public byte[] sendRaw(byte[] apdu) throws IOException {
+    final String target = cfg.remoteCardType == CardType.JCARDSIMLOCAL ? "sim" : "card";
+    final Request.Builder builder = new Request.Builder()
+        .url(cfg.remoteAddress + "/v1/card/" + target + "/" + cfg.targetReaderIndex + "/apdu" + sendOptionsQuery())
+        .header("User-Agent", "OkHttp")
+        .addHeader("Accept", "application/octet-stream");
+    final Request request = post(builder, apdu, MEDIA_TYPE_OCTET).build();
+
+    try (Response response = client.newCall(request).execute()) {
+      final ResponseBody body = Objects.requireNonNull(response.body());
+      if (!response.isSuccessful()) {
+        connected = false;
+        LOG.warn("RemoteCard returned invalid code: " + response.code() + ", error: " + body.string());
+        throw new RuntimeException("RemoteCard server returned invalid code: " + response.code());
+      }
+      return body.bytes();
+    }
+  }
+
+  /**
+   * Sends raw APDU to the octet-stream endpoint, request body is written from the command buffer
+   * and the response body is read directly to the response buffer.
+   * @return number of response bytes written
+   */
+  public int sendRaw(ByteBuffer command, ByteBuffer response) throws IOException, CardException {
+    if (useCompression(command.remaining())) {
+      return Util.putResponse(response, sendRaw(Util.remainingBytes(command)));
+    }
+
+    final String target = cfg.remoteCardType == CardType.JCARDSIMLOCAL ? "sim" : "card";
     final Request request = new Request.Builder()
-        .url(cfg.remoteAddress + "/v1/card")
+        .url(cfg.remoteAddress + "/v1/card/" + target + "/" + cfg.targetReaderIndex + "/apdu" + sendOptionsQuery())
         .header("User-Agent", "OkHttp")
-        .addHeader("Accept", "application/json; q=0.5")
-        .post(RequestBody.create(req.toString(), MEDIA_TYPE_JSON))
+        .addHeader("Accept", "application/octet-stream")
+        .post(bufferBody(command.duplicate(), MEDIA_TYPE_OCTET))
         .build();
 
+    try (Response resp = client.newCall(request).execute()) {
+      final ResponseBody body = Objects.requireNonNull(resp.body());
+      if (!resp.isSuccessful()) {
+        connected = false;
+        LOG.warn("RemoteCard returned invalid code: " + resp.code() + ", error: " + body.string());
+        throw new RuntimeException("RemoteCard server returned invalid code: " + resp.code());
+      }
+
+      command.position(command.limit());
+      final BufferedSource source = body.source();
+      final int start = response.position();
+      while (response.hasRemaining() && source.read(response) >= 0) {
+        // read until the body is exhausted or the buffer is full
+      }
+      if (!source.exhausted()) {
+        response.position(start);
+        throw new CardException("Insufficient space in response buffer: " + response.remaining());
+      }
+      return response.position() - start;
+    }
+  }
+
+  /**
+   * Request body streaming the buffer contents, each write starts at the original position so retries work.
+   */
+  protected static RequestBody bufferBody(ByteBuffer data, MediaType mediaType) {
+    return new RequestBody() {
+      @Override
+      public MediaType contentType() {
+        return mediaType;
+      }
+
+      @Override
+      public long contentLength() {
+        return data.remaining();
+      }
+
+      @Override
+      public void writeTo(BufferedSink sink) throws IOException {
+        sink.write(data.duplicate());
+      }
+    };
+  }
+
+  protected boolean useCompression(int bodyLength) {
+    return cfg.remoteCompression && bodyLength >= cfg.remoteCompressionThreshold
+        && serverFeatures.contains(FEATURE_COMPRESSION);
+  }
+
+  /**
+   * Sets POST body, gzip-compressed if enabled, supported by the server and above the threshold.
+   */
+  protected Request.Builder post(Request.Builder builder, byte[] body, MediaType mediaType) throws IOException {
+    if (!useCompression(body.length)) {
+      return builder.post(RequestBody.create(body, mediaType));
+    }
+
+    final ByteArrayOutputStream bos = new ByteArrayOutputStream(body.length / 2 + 32);
+    try (GZIPOutputStream gzip = new GZIPOutputStream(bos)) {
+      gzip.write(body);
+    }
+    return builder
+        .header("Content-Encoding", "gzip")
+        .post(RequestBody.create(bos.toByteArray(), mediaType));
+  }
+
+  protected String sendOptionsQuery() {
+    final List<String> params = new ArrayList<>(2);
+    if (cfg.remoteAutoResponse) {
+      params.add("auto_response=1");
+    }
+    if (cfg.remoteCommandChaining) {
+      params.add("chaining=1");
+    }
+    if (cfg.remoteSession != null) {
+      try {
+        params.add("csess=" + URLEncoder.encode(cfg.remoteSession, "UTF-8"));
+      } catch (UnsupportedEncodingException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+    return params.isEmpty() ? "" : "?" + String.join("&", params);
+  }
+
+  public JSONObject sendJson(JSONObject req) throws IOException {
+    final Request.Builder builder = new Request.Builder()
+        .url(cfg.remoteAddress + "/v1/card")
+        .header("User-Agent", "OkHttp")
+        .addHeader("Accept", "application/json; q=0.5");
+    final Request request = post(builder, req.toString().getBytes(StandardCharsets.UTF_8), MEDIA_TYPE_JSON).build();
+
     try (Response response = client.newCall(request).execute()) {
       if (!response.isSuccessful()) throw new IOException("Unexpected code " + response);
       final String respString = Objects.requireNonNull(response.body()).string();
@@ -0,0 +1,76 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Process-wide HTTP client shared by the remote card channels.
+ * Channels share one connection pool and dispatcher, so they do not pay for duplicate thread pools and handshakes.
+ * With HTTP/2, requests to the same server are multiplexed over a single connection.
+ *
+ * HTTPS endpoints negotiate HTTP/2 via ALPN, plain HTTP endpoints use h2c with prior knowledge when requested.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class RemoteHttpClient {
+  public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 16;
+  public static final long DEFAULT_KEEP_ALIVE_SECONDS = 300;
+  public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+  private static OkHttpClient client;
+  private static OkHttpClient clientH2c;
+
+  /**
+   * Returns the shared client.
+   * @param h2PriorKnowledge use HTTP/2 without upgrade on plain HTTP connections (h2c)
+   * @return shared client
+   */
+  public static synchronized OkHttpClient get(boolean h2PriorKnowledge) {
+    if (client == null) {
+      client = newDefaultClient();
+    }
+    if (!h2PriorKnowledge) {
+      return client;
+    }
+
+    if (clientH2c == null) {
+      clientH2c = client.newBuilder()
+          .protocols(Collections.singletonList(Protocol.H2_PRIOR_KNOWLEDGE))
+          .build();
+    }
+    return clientH2c;
+  }
+
+  /**
+   * Returns the shared client for the given remote address.
+   * h2c is used only for plain HTTP addresses, HTTPS negotiates the protocol.
+   */
+  public static OkHttpClient get(String remoteAddress, boolean http2) {
+    return get(http2 && remoteAddress != null && remoteAddress.toLowerCase().startsWith("http:"));
+  }
+
+  /**
+   * Replaces the shared client, e.g., to configure timeouts, TLS or a proxy.
+   * Affects channels created afterwards.
+   * @param newClient new shared client, null resets to the default one
+   */
+  public static synchronized void set(OkHttpClient newClient) {
+    client = newClient;
+    clientH2c = null;
+  }
+
+  public static OkHttpClient newDefaultClient() {
+    final Dispatcher dispatcher = new Dispatcher();
+    dispatcher.setMaxRequestsPerHost(DEFAULT_MAX_REQUESTS_PER_HOST);
+    return new OkHttpClient.Builder()
+        .connectionPool(new ConnectionPool(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_SECONDS, TimeUnit.SECONDS))
+        .dispatcher(dispatcher)
+        .build();
+  }
+}
@@ -0,0 +1,413 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame;
+import cz.muni.fi.crocs.rcard.client.protocols.PendingFrames;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.*;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remote card channel over the raw TCP card server.
+ * All operations are binary frames (see {@link CardFrame}) on one persistent TCP connection, no HTTP is involved.
+ * Commands can be pipelined, see {@link #transmitAsync(CommandAPDU)}.
+ *
+ * Remote address is in the form tcp://host:port or host:port.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class RemoteTcpCardChannel extends CardChannel implements AsyncCardChannel, BatchCardChannel {
+  private final static Logger LOG = LoggerFactory.getLogger(RemoteTcpCardChannel.class);
+  public static final int DEFAULT_PORT = 9902;
+
+  /**
+   * Response timeout for one frame, milliseconds, used if not set in the config (see RunConfig#setRemoteTimeout)
+   */
+  protected long frameTimeout = 60_000;
+
+  /**
+   * Connect timeout, milliseconds
+   */
+  protected int connectTimeout = 10_000;
+
+  protected RemoteTcpCard card;
+  protected RunConfig cfg;
+  protected volatile boolean connected = false;
+  protected final PendingFrames pending = new PendingFrames();
+
+  protected volatile Socket socket;
+  protected volatile OutputStream output;
+  protected Thread readerThread;
+
+  public RemoteTcpCardChannel(RunConfig runConfig) {
+    card = new RemoteTcpCard();
+    cfg = runConfig;
+  }
+
+  @Override
+  public Card getCard() {
+    return card;
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return 0;
+  }
+
+  @Override
+  public ResponseAPDU transmit(CommandAPDU apdu) throws CardException {
+    try {
+      connectIfNeeded();
+
+      log(apdu);
+      final ResponseAPDU responseAPDU = new ResponseAPDU(sendFrame(newFrame(CardFrame.ACTION_SEND, apdu.getBytes())).getPayload());
+      log(responseAPDU);
+      return responseAPDU;
+
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      throw new CardException("Transmit failed - exception", ex);
+    }
+  }
+
+  @Override
+  public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU apdu) {
+    try {
+      connectIfNeeded();
+      return sendFrameAsync(newFrame(CardFrame.ACTION_SEND, apdu.getBytes())).thenApply(resp -> {
+        checkResult(resp);
+        return new ResponseAPDU(resp.getPayload());
+      });
+
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      final CompletableFuture<ResponseAPDU> future = new CompletableFuture<>();
+      future.completeExceptionally(new CardException("Transmit failed - exception", ex));
+      return future;
+    }
+  }
+
+  @Override
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds, long[] times) throws CardException {
+    try {
+      connectIfNeeded();
+
+      final List<byte[]> apdus = new ArrayList<>(cmds.size());
+      for (CommandAPDU cmd : cmds) {
+        log(cmd);
+        apdus.add(cmd.getBytes());
+      }
+
+      final CardFrame resp = sendFrame(newFrame(CardFrame.ACTION_BATCH, CardFrame.encodeBatch(apdus)));
+      final List<ResponseAPDU> responses = new ArrayList<>(cmds.size());
+      for (byte[] respBytes : CardFrame.decodeBatchResponse(resp.getPayload(), times)) {
+        final ResponseAPDU responseAPDU = new ResponseAPDU(respBytes);
+        log(responseAPDU);
+        responses.add(responseAPDU);
+      }
+      return responses;
+
+    } catch (Exception ex) {
+      LOG.warn("Batch transmit failed", ex);
+      throw new CardException("Batch transmit failed - exception", ex);
+    }
+  }
+
+  /**
+   * Sends the remaining command bytes as the frame payload, the response payload is written to the response buffer.
+   */
+  @Override
+  public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+    Util.checkTransmitBuffers(command, response);
+    final byte[] resp;
+    try {
+      connectIfNeeded();
+      if (LOG.isDebugEnabled()) {
+        Util.log(LOG, command);
+      }
+      resp = sendFrame(newFrame(CardFrame.ACTION_SEND, Util.remainingBytes(command))).getPayload();
+
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      throw new CardException("Transmit failed - exception", ex);
+    }
+    return Util.putResponse(response, resp);
+  }
+
+  @Override
+  public void close() throws CardException {
+    try {
+      if (socket != null) {
+        sendFrame(newFrame(CardFrame.ACTION_DISCONNECT, new byte[]{1}));
+      }
+    } catch (IOException | RuntimeException e) {
+      throw new CardException("Disconnect failed - exception", e);
+    } finally {
+      connected = false;
+      closeSocket();
+    }
+  }
+
+  protected void connectIfNeeded() throws IOException {
+    if (connected){
+      return;
+    }
+
+    openSocketIfNeeded();
+    if (cfg.remoteDisconnectPrevious) {
+      LOG.debug("Disconnecting previous session");
+      sendFrame(newFrame(CardFrame.ACTION_DISCONNECT, new byte[]{1}));
+      sendFrame(newFrame(CardFrame.ACTION_CONNECT, null));
+
+    } else {
+      LOG.debug("Trying to reuse existing card session");
+      final boolean conn = sendFrame(newFrame(CardFrame.ACTION_IS_CONNECTED, null)).payloadFlag(false);
+      if (!conn) {
+        LOG.debug("Card session reuse not successful, connecting...");
+        sendFrame(newFrame(CardFrame.ACTION_CONNECT, null));
+      }
+    }
+
+    connected = true;
+  }
+
+  protected CardFrame newFrame(int action, byte[] payload) {
+    final int target = cfg.remoteCardType == CardType.JCARDSIMLOCAL ? CardFrame.TARGET_SIM : CardFrame.TARGET_CARD;
+    final CardFrame frame = new CardFrame(action, pending.nextRid(), target, cfg.targetReaderIndex, payload);
+    frame.setFlags((cfg.remoteAutoResponse ? CardFrame.FLAG_AUTO_RESPONSE : 0)
+        | (cfg.remoteCommandChaining ? CardFrame.FLAG_CHAINING : 0));
+    frame.setSession(cfg.remoteSession);
+    return frame;
+  }
+
+  /**
+   * Sends the frame and waits for the response frame with the same request ID.
+   */
+  protected CardFrame sendFrame(CardFrame req) throws IOException {
+    final CardFrame resp = pending.await(sendFrameAsync(req), req.getRid(),
+        cfg.remoteTimeout > 0 ? cfg.remoteTimeout : frameTimeout);
+    checkResult(resp);
+    return resp;
+  }
+
+  protected CompletableFuture<CardFrame> sendFrameAsync(CardFrame req) throws IOException {
+    final Socket sock;
+    final OutputStream out;
+    synchronized (this) {
+      out = openSocketIfNeeded();
+      sock = socket;
+    }
+
+    if (cfg.remoteCompression) {
+      req.setFlags(req.getFlags() | CardFrame.FLAG_ACCEPT_DEFLATE);
+      req.compressPayload(cfg.remoteCompressionThreshold);
+    }
+
+    final CompletableFuture<CardFrame> future = pending.register(req.getRid());
+    try {
+      synchronized (out) {
+        out.write(req.encode());
+        out.flush();
+      }
+    } catch (IOException e) {
+      pending.remove(req.getRid());
+      onSocketLost(sock, e);
+      throw e;
+    }
+    return future;
+  }
+
+  public void checkResult(CardFrame res) {
+    if (res.getResult() != 0){
+      connected = false;
+      LOG.warn("RemoteCard returned invalid code: " + res.getResult() + ", error: " + res.payloadString());
+      throw new RuntimeException("RemoteCard server returned invalid code: " + res.getResult());
+    }
+  }
+
+  protected synchronized OutputStream openSocketIfNeeded() throws IOException {
+    if (output != null) {
+      return output;
+    }
+
+    final InetSocketAddress address = parseAddress(cfg.remoteAddress);
+    LOG.debug("Connecting to " + address);
+    final Socket sock = new Socket();
+    sock.setTcpNoDelay(true);
+    sock.setKeepAlive(true);
+    sock.connect(address, connectTimeout);
+
+    socket = sock;
+    output = new BufferedOutputStream(sock.getOutputStream());
+    readerThread = new Thread(() -> readLoop(sock), "RemoteTcpCardChannel-reader");
+    readerThread.setDaemon(true);
+    readerThread.start();
+    authenticate();
+    return output;
+  }
+
+  /**
+   * Sends the access token if configured. Response is not awaited, server closes the connection on a wrong token,
+   * so the following requests fail.
+   */
+  protected void authenticate() throws IOException {
+    final String token = cfg.remoteToken;
+    if (token == null) {
+      return;
+    }
+
+    final CardFrame req = new CardFrame(CardFrame.ACTION_AUTH, pending.nextRid(), CardFrame.TARGET_CARD, 0,
+        token.getBytes(StandardCharsets.UTF_8));
+    pending.register(req.getRid());
+    output.write(req.encode());
+    output.flush();
+  }
+
+  public static InetSocketAddress parseAddress(String address) {
+    if (address == null || address.isEmpty()) {
+      throw new IllegalArgumentException("Remote address not set");
+    }
+
+    final URI uri = URI.create(address.contains("://") ? address : "tcp://" + address);
+    return new InetSocketAddress(uri.getHost(), uri.getPort() < 0 ? DEFAULT_PORT : uri.getPort());
+  }
+
+  protected void readLoop(Socket sock) {
+    try {
+      final DataInputStream input = new DataInputStream(new BufferedInputStream(sock.getInputStream()));
+      while (!sock.isClosed()) {
+        final int len = input.readInt();
+        if (len < CardFrame.HEADER_LEN || len > CardFrame.MAX_FRAME_LEN) {
+          throw new IOException("Invalid frame length: " + len);
+        }
+
+        final byte[] data = new byte[CardFrame.LENGTH_LEN + len];
+        ByteBuffer.wrap(data).putInt(len);
+        input.readFully(data, CardFrame.LENGTH_LEN, len);
+
+        final CardFrame frame = CardFrame.decode(data);
+        if (!pending.complete(frame)) {
+          LOG.warn("Response for unknown request: " + frame);
+        }
+      }
+    } catch (IOException e) {
+      LOG.debug("TCP connection closed: " + e.getMessage());
+      onSocketLost(sock, e);
+    }
+  }
+
+  protected synchronized void onSocketLost(Socket sock, Throwable t) {
+    if (socket != sock) {
+      return;
+    }
+    pending.failAll(t);
+    closeSocket();
+  }
+
+  protected synchronized void closeSocket() {
+    connected = false;
+    if (socket != null) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        LOG.debug("Socket close failed", e);
+      }
+      socket = null;
+      output = null;
+    }
+    pending.failAll(new IOException("Connection closed"));
+  }
+
+  private static void log(CommandAPDU cmd) {
+    Util.log(LOG, cmd);
+  }
+
+  private static void log(ResponseAPDU response) {
+    Util.log(LOG, response);
+  }
+
+  @Override
+  public String toString() {
+    return "RemoteTcpCardChannel{" +
+        "card=" + card +
+        ", connected=" + connected +
+        ", socket=" + socket +
+        '}';
+  }
+
+  class RemoteTcpCard extends Card {
+    private final Logger LOG = LoggerFactory.getLogger(RemoteTcpCardChannel.class);
+    @Override
+    public ATR getATR() {
+      try {
+        connectIfNeeded();
+        return new ATR(sendFrame(newFrame(CardFrame.ACTION_ATR, null)).getPayload());
+      } catch (Exception e) {
+        LOG.error("ATR failed", e);
+      }
+      return null;
+    }
+
+    @Override
+    public String getProtocol() {
+      try {
+        connectIfNeeded();
+        final byte[] protocol = sendFrame(newFrame(CardFrame.ACTION_PROTOCOL, null)).getPayload();
+        return protocol == null || protocol.length == 0 ? null : new String(protocol, StandardCharsets.UTF_8);
+      } catch (Exception e) {
+        LOG.error("Protocol failed", e);
+      }
+      return null;
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+      return RemoteTcpCardChannel.this;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+      return RemoteTcpCardChannel.this;
+    }
+
+    @Override
+    public void beginExclusive() throws CardException {
+      LOG.info("Asked to beginExclusive(), do nothing");
+    }
+
+    @Override
+    public void endExclusive() throws CardException {
+      LOG.info("Asked to endExclusive(), do nothing");
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+      LOG.error("Accessing unsupported transmitControlCommand");
+      throw new CardException("Not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) throws CardException {
+      close();
+    }
+
+    @Override
+    public String toString() {
+      return "RemoteTcpCard{}";
+    }
+  }
+}
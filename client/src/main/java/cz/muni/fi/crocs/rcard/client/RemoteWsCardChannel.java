@@ -0,0 +1,203 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame;
+import cz.muni.fi.crocs.rcard.client.protocols.PendingFrames;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.WebSocket;
+import okhttp3.WebSocketListener;
+import okio.ByteString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Remote card channel sending APDUs over a persistent binary WebSocket.
+ * Connection management uses the REST interface, APDUs are sent as binary frames, see {@link CardFrame}.
+ * One WebSocket is kept open per channel. Commands can be pipelined, see {@link #transmitAsync(CommandAPDU)}.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class RemoteWsCardChannel extends RemoteCardChannel implements AsyncCardChannel {
+  private final static Logger LOG = LoggerFactory.getLogger(RemoteWsCardChannel.class);
+
+  /**
+   * Response timeout for one frame, milliseconds
+   */
+  protected long frameTimeout = 60_000;
+
+  protected final PendingFrames pending = new PendingFrames();
+  protected volatile WebSocket webSocket;
+
+  public RemoteWsCardChannel(RunConfig runConfig) {
+    super(runConfig);
+  }
+
+  @Override
+  protected byte[] cardApduRaw(byte[] apdu) throws IOException {
+    return sendFrame(newFrame(CardFrame.ACTION_SEND, apdu)).getPayload();
+  }
+
+  @Override
+  protected int cardApduRaw(ByteBuffer command, ByteBuffer response) throws IOException, CardException {
+    return Util.putResponse(response, cardApduRaw(Util.remainingBytes(command)));
+  }
+
+  @Override
+  public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU apdu) {
+    try {
+      connectIfNeeded();
+      return sendFrameAsync(newFrame(CardFrame.ACTION_SEND, apdu.getBytes())).thenApply(resp -> {
+        checkResult(resp);
+        return new ResponseAPDU(resp.getPayload());
+      });
+
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      final CompletableFuture<ResponseAPDU> future = new CompletableFuture<>();
+      future.completeExceptionally(new CardException("Transmit failed - exception", ex));
+      return future;
+    }
+  }
+
+  @Override
+  protected List<byte[]> cardBatchRaw(List<byte[]> apdus, long[] times) throws IOException {
+    final CardFrame resp = sendFrame(newFrame(CardFrame.ACTION_BATCH, CardFrame.encodeBatch(apdus)));
+    return CardFrame.decodeBatchResponse(resp.getPayload(), times);
+  }
+
+  @Override
+  public void close() throws CardException {
+    try {
+      super.close();
+    } finally {
+      closeSocket();
+    }
+  }
+
+  protected CardFrame newFrame(int action, byte[] payload) {
+    final int target = cfg.remoteCardType == CardType.JCARDSIMLOCAL ? CardFrame.TARGET_SIM : CardFrame.TARGET_CARD;
+    final CardFrame frame = new CardFrame(action, pending.nextRid(), target, cfg.targetReaderIndex, payload);
+    frame.setFlags((cfg.remoteAutoResponse ? CardFrame.FLAG_AUTO_RESPONSE : 0)
+        | (cfg.remoteCommandChaining ? CardFrame.FLAG_CHAINING : 0));
+    frame.setSession(cfg.remoteSession);
+    return frame;
+  }
+
+  /**
+   * Sends the frame and waits for the response frame with the same request ID.
+   */
+  protected CardFrame sendFrame(CardFrame req) throws IOException {
+    final CardFrame resp = pending.await(sendFrameAsync(req), req.getRid(),
+        cfg.remoteTimeout > 0 ? cfg.remoteTimeout : frameTimeout);
+    checkResult(resp);
+    return resp;
+  }
+
+  protected CompletableFuture<CardFrame> sendFrameAsync(CardFrame req) throws IOException {
+    final WebSocket ws = openSocketIfNeeded();
+    if (cfg.remoteCompression) {
+      req.setFlags(req.getFlags() | CardFrame.FLAG_ACCEPT_DEFLATE);
+      req.compressPayload(cfg.remoteCompressionThreshold);
+    }
+
+    final CompletableFuture<CardFrame> future = pending.register(req.getRid());
+    if (!ws.send(ByteString.of(req.encode()))) {
+      pending.remove(req.getRid());
+      throw new IOException("WebSocket is closed");
+    }
+    return future;
+  }
+
+  public void checkResult(CardFrame res) {
+    if (res.getResult() != 0){
+      connected = false;
+      LOG.warn("RemoteCard returned invalid code: " + res.getResult() + ", error: " + res.payloadString());
+      throw new RuntimeException("RemoteCard server returned invalid code: " + res.getResult());
+    }
+  }
+
+  protected synchronized WebSocket openSocketIfNeeded() {
+    if (webSocket != null) {
+      return webSocket;
+    }
+
+    LOG.debug("Opening WebSocket to " + cfg.remoteAddress);
+    final Request request = new Request.Builder()
+        .url(cfg.remoteAddress)
+        .header("User-Agent", "OkHttp")
+        .build();
+    webSocket = client.newBuilder()
+        .minWebSocketMessageToCompress(cfg.remoteCompressionThreshold)
+        .build()
+        .newWebSocket(request, new FrameListener());
+    return webSocket;
+  }
+
+  protected synchronized void closeSocket() {
+    if (webSocket != null) {
+      webSocket.close(1000, null);
+      webSocket = null;
+    }
+    pending.failAll(new IOException("WebSocket closed"));
+  }
+
+  protected synchronized void onSocketLost(WebSocket ws, Throwable t) {
+    if (webSocket == ws) {
+      webSocket = null;
+    }
+    pending.failAll(t);
+  }
+
+  @Override
+  public String toString() {
+    return "RemoteWsCardChannel{" +
+        "card=" + card +
+        ", connected=" + connected +
+        ", webSocket=" + webSocket +
+        '}';
+  }
+
+  class FrameListener extends WebSocketListener {
+    @Override
+    public void onMessage(WebSocket webSocket, ByteString bytes) {
+      final CardFrame frame;
+      try {
+        frame = CardFrame.decode(bytes.asByteBuffer());
+      } catch (IOException e) {
+        LOG.warn("Invalid frame received", e);
+        return;
+      }
+
+      if (!pending.complete(frame)) {
+        LOG.warn("Response for unknown request: " + frame);
+      }
+    }
+
+    @Override
+    public void onMessage(WebSocket webSocket, String text) {
+      LOG.debug("Text message ignored: " + text);
+    }
+
+    @Override
+    public void onClosing(WebSocket webSocket, int code, String reason) {
+      LOG.debug("WebSocket closing: " + code + " " + reason);
+      webSocket.close(1000, null);
+      onSocketLost(webSocket, new IOException("WebSocket closed by server: " + code));
+    }
+
+    @Override
+    public void onFailure(WebSocket webSocket, Throwable t, Response response) {
+      LOG.warn("WebSocket failure", t);
+      onSocketLost(webSocket, t);
+    }
+  }
+}
@@ -0,0 +1,271 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import cz.muni.fi.crocs.rcard.client.trace.TraceReader;
+import cz.muni.fi.crocs.rcard.client.trace.TraceRecord;
+import org.apache.commons.codec.binary.Hex;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.*;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Card channel answering commands from a recorded APDU trace, no card or simulator is involved.
+ *
+ * Command is looked up by its exact bytes first. If not found and a mask is configured, command masked
+ * with the mask is looked up among masked recorded commands. Mask is ANDed with the command bytes,
+ * bytes beyond the mask length are ignored, including the command length, e.g., mask ffffffff matches
+ * commands by the header only, whatever their data.
+ * Command recorded multiple times is answered with the recorded responses in order, cyclically.
+ *
+ * Optionally, the recorded command duration is emulated before the response is returned.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class ReplayCardChannel extends CardChannel {
+  private final static Logger LOG = LoggerFactory.getLogger(ReplayCardChannel.class);
+
+  /**
+   * ATR of the replayed card, traces do not contain ATR
+   */
+  public static final byte[] DEFAULT_ATR = new byte[]{(byte) 0x3b, (byte) 0x80, (byte) 0x80, (byte) 0x01, (byte) 0x01};
+
+  protected final ReplayCard card = new ReplayCard();
+  protected final Map<ByteBuffer, Responses> exact = new HashMap<>();
+  protected final Map<ByteBuffer, Responses> masked = new HashMap<>();
+  protected final byte[] mask;
+  protected boolean emulateLatency;
+  protected final AtomicLong misses = new AtomicLong();
+
+  public ReplayCardChannel(RunConfig cfg) throws CardException {
+    this(readTrace(cfg.replayTrace), cfg.replayMask, cfg.replayLatency);
+  }
+
+  /**
+   * @param records recorded exchanges, failed ones are skipped
+   * @param mask command mask for the masked lookup, null for exact lookup only
+   * @param emulateLatency wait for the recorded duration before returning the response
+   */
+  public ReplayCardChannel(List<TraceRecord> records, byte[] mask, boolean emulateLatency) {
+    this.mask = mask;
+    this.emulateLatency = emulateLatency;
+    for (TraceRecord rec : records) {
+      if (rec.isError()) {
+        continue;
+      }
+      exact.computeIfAbsent(ByteBuffer.wrap(rec.getCommand()), k -> new Responses()).add(rec);
+      if (mask != null) {
+        masked.computeIfAbsent(ByteBuffer.wrap(applyMask(ByteBuffer.wrap(rec.getCommand()), mask)), k -> new Responses()).add(rec);
+      }
+    }
+    LOG.debug("Replay channel loaded {} distinct commands", exact.size());
+  }
+
+  protected static List<TraceRecord> readTrace(String traceFile) throws CardException {
+    if (traceFile == null) {
+      throw new CardException("Replay trace file is not configured");
+    }
+    try {
+      return TraceReader.readAll(Paths.get(traceFile));
+    } catch (IOException e) {
+      throw new CardException("Could not read trace file " + traceFile, e);
+    }
+  }
+
+  /**
+   * Masks the remaining command bytes, buffer position is not changed.
+   * Bytes beyond the mask length are dropped, the result is at most the mask long.
+   */
+  public static byte[] applyMask(ByteBuffer command, byte[] mask) {
+    final int len = Math.min(command.remaining(), mask.length);
+    final int pos = command.position();
+    final byte[] res = new byte[len];
+    for (int i = 0; i < len; i++) {
+      res[i] = (byte) (command.get(pos + i) & mask[i]);
+    }
+    return res;
+  }
+
+  @Override
+  public Card getCard() {
+    return card;
+  }
+
+  @Override
+  public int getChannelNumber() {
+    return 0;
+  }
+
+  @Override
+  public ResponseAPDU transmit(CommandAPDU apdu) throws CardException {
+    final long start = System.nanoTime();
+    if (LOG.isDebugEnabled()) {
+      Util.log(LOG, apdu);
+    }
+    final TraceRecord rec = lookup(ByteBuffer.wrap(apdu.getBytes()));
+    emulateLatency(rec, start);
+
+    final ResponseAPDU responseAPDU = rec.getResponseAPDU();
+    if (LOG.isDebugEnabled()) {
+      Util.log(LOG, responseAPDU);
+    }
+    return responseAPDU;
+  }
+
+  /**
+   * Command is looked up directly in the buffer, no copy is made for the exact match.
+   */
+  @Override
+  public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+    final long start = System.nanoTime();
+    Util.checkTransmitBuffers(command, response);
+    if (LOG.isDebugEnabled()) {
+      Util.log(LOG, command);
+    }
+
+    final TraceRecord rec = lookup(command.slice());
+    command.position(command.limit());
+    emulateLatency(rec, start);
+    return Util.putResponse(response, rec.getResponse());
+  }
+
+  protected TraceRecord lookup(ByteBuffer command) throws CardException {
+    Responses responses = exact.get(command);
+    if (responses == null && mask != null) {
+      responses = masked.get(ByteBuffer.wrap(applyMask(command, mask)));
+    }
+    if (responses == null) {
+      misses.incrementAndGet();
+      final byte[] cmd = new byte[command.remaining()];
+      command.duplicate().get(cmd);
+      throw new CardException("No recorded response for command " + Hex.encodeHexString(cmd));
+    }
+    return responses.next();
+  }
+
+  protected void emulateLatency(TraceRecord rec, long start) {
+    if (!emulateLatency) {
+      return;
+    }
+    final long wait = rec.getDurationNanos() - (System.nanoTime() - start);
+    if (wait > 0) {
+      LockSupport.parkNanos(wait);
+    }
+  }
+
+  /**
+   * Starts answering repeated commands from their first recorded response again
+   */
+  public void reset() {
+    for (Responses responses : exact.values()) {
+      responses.reset();
+    }
+    for (Responses responses : masked.values()) {
+      responses.reset();
+    }
+  }
+
+  @Override
+  public void close() throws CardException {
+    reset();
+  }
+
+  /**
+   * Number of commands without recorded response
+   */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  public int getDistinctCommands() {
+    return exact.size();
+  }
+
+  public byte[] getMask() {
+    return mask;
+  }
+
+  public boolean isEmulateLatency() {
+    return emulateLatency;
+  }
+
+  public ReplayCardChannel setEmulateLatency(boolean emulateLatency) {
+    this.emulateLatency = emulateLatency;
+    return this;
+  }
+
+  /**
+   * Recorded responses of one command
+   */
+  static class Responses {
+    final List<TraceRecord> records = new ArrayList<>(1);
+    int cursor = 0;
+
+    void add(TraceRecord rec) {
+      records.add(rec);
+    }
+
+    synchronized TraceRecord next() {
+      final TraceRecord rec = records.get(cursor);
+      cursor = (cursor + 1) % records.size();
+      return rec;
+    }
+
+    synchronized void reset() {
+      cursor = 0;
+    }
+  }
+
+  class ReplayCard extends Card {
+    @Override
+    public ATR getATR() {
+      return new ATR(DEFAULT_ATR);
+    }
+
+    @Override
+    public String getProtocol() {
+      return "T=1";
+    }
+
+    @Override
+    public CardChannel getBasicChannel() {
+      return ReplayCardChannel.this;
+    }
+
+    @Override
+    public CardChannel openLogicalChannel() throws CardException {
+      return ReplayCardChannel.this;
+    }
+
+    @Override
+    public void beginExclusive() throws CardException {
+      LOG.info("Asked to beginExclusive(), do nothing");
+    }
+
+    @Override
+    public void endExclusive() throws CardException {
+      LOG.info("Asked to endExclusive(), do nothing");
+    }
+
+    @Override
+    public byte[] transmitControlCommand(int controlCode, byte[] command) throws CardException {
+      throw new CardException("Not supported");
+    }
+
+    @Override
+    public void disconnect(boolean reset) throws CardException {
+      if (reset) {
+        ReplayCardChannel.this.reset();
+      }
+    }
+  }
+}
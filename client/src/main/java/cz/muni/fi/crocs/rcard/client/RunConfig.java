@@ -18,9 +18,22 @@ public class RunConfig {
     byte[] installData = null;
     byte[] aid = null;
     CardSimulator simulator = null;
-    String remoteAddress;
+    volatile String remoteAddress;
     Integer remoteViccPort = null;
     boolean remoteDisconnectPrevious = false;
+    boolean remoteWebSocket = false;
+    boolean remoteHttp2 = false;
+    boolean remoteAutoResponse = false;
+    boolean remoteCommandChaining = false;
+    boolean remoteCompression = false;
+    String remoteSession = null;
+    long remoteTimeout = 0;
+    volatile String remoteToken = null;
+    int remoteCompressionThreshold = 256;
+    String traceFile = null;
+    String replayTrace = null;
+    byte[] replayMask = null;
+    boolean replayLatency = false;
 
     public CardType testCardType = CardType.PHYSICAL;
     public CardType remoteCardType = CardType.PHYSICAL;
@@ -133,6 +146,132 @@ public class RunConfig {
         return this;
     }
 
+    public boolean isRemoteWebSocket() {
+        return remoteWebSocket;
+    }
+
+    public RunConfig setRemoteWebSocket(boolean remoteWebSocket) {
+        this.remoteWebSocket = remoteWebSocket;
+        return this;
+    }
+
+    public boolean isRemoteHttp2() {
+        return remoteHttp2;
+    }
+
+    public RunConfig setRemoteHttp2(boolean remoteHttp2) {
+        this.remoteHttp2 = remoteHttp2;
+        return this;
+    }
+
+    public boolean isRemoteAutoResponse() {
+        return remoteAutoResponse;
+    }
+
+    public RunConfig setRemoteAutoResponse(boolean remoteAutoResponse) {
+        this.remoteAutoResponse = remoteAutoResponse;
+        return this;
+    }
+
+    public boolean isRemoteCommandChaining() {
+        return remoteCommandChaining;
+    }
+
+    public RunConfig setRemoteCommandChaining(boolean remoteCommandChaining) {
+        this.remoteCommandChaining = remoteCommandChaining;
+        return this;
+    }
+
+    public boolean isRemoteCompression() {
+        return remoteCompression;
+    }
+
+    public RunConfig setRemoteCompression(boolean remoteCompression) {
+        this.remoteCompression = remoteCompression;
+        return this;
+    }
+
+    public int getRemoteCompressionThreshold() {
+        return remoteCompressionThreshold;
+    }
+
+    public RunConfig setRemoteCompressionThreshold(int remoteCompressionThreshold) {
+        this.remoteCompressionThreshold = remoteCompressionThreshold;
+        return this;
+    }
+
+    public String getRemoteSession() {
+        return remoteSession;
+    }
+
+    /**
+     * Session of the remote simulator (csess), server creates an isolated simulator for each session
+     */
+    public RunConfig setRemoteSession(String remoteSession) {
+        this.remoteSession = remoteSession;
+        return this;
+    }
+
+    public long getRemoteTimeout() {
+        return remoteTimeout;
+    }
+
+    /**
+     * Response timeout of one remote TCP frame in milliseconds, 0 for the channel default
+     */
+    public RunConfig setRemoteTimeout(long remoteTimeout) {
+        this.remoteTimeout = remoteTimeout;
+        return this;
+    }
+
+    public String getRemoteToken() {
+        return remoteToken;
+    }
+
+    /**
+     * Access token of the remote TCP server, sent as the first frame of the connection
+     */
+    public RunConfig setRemoteToken(String remoteToken) {
+        this.remoteToken = remoteToken;
+        return this;
+    }
+
+    public String getTraceFile() {
+        return traceFile;
+    }
+
+    public RunConfig setTraceFile(String traceFile) {
+        this.traceFile = traceFile;
+        return this;
+    }
+
+    public String getReplayTrace() {
+        return replayTrace;
+    }
+
+    public RunConfig setReplayTrace(String replayTrace) {
+        this.replayTrace = replayTrace;
+        return this;
+    }
+
+    public byte[] getReplayMask() {
+        return replayMask;
+    }
+
+    public RunConfig setReplayMask(byte[] replayMask) {
+        this.replayMask = replayMask;
+        return this;
+    }
+
+    public boolean isReplayLatency() {
+        return replayLatency;
+    }
+
+    public RunConfig setReplayLatency(boolean replayLatency) {
+        this.replayLatency = replayLatency;
+        return this;
+    }
+
     public Integer getRemoteViccPort() {
         return remoteViccPort;
     }
@@ -155,6 +294,18 @@ public class RunConfig {
             ", remoteAddress='" + remoteAddress + '\'' +
             ", remoteViccPort=" + remoteViccPort +
             ", remoteDisconnectPrevious=" + remoteDisconnectPrevious +
+            ", remoteWebSocket=" + remoteWebSocket +
+            ", remoteHttp2=" + remoteHttp2 +
+            ", remoteAutoResponse=" + remoteAutoResponse +
+            ", remoteCommandChaining=" + remoteCommandChaining +
+            ", remoteCompression=" + remoteCompression +
+            ", remoteCompressionThreshold=" + remoteCompressionThreshold +
+            ", remoteSession='" + remoteSession + '\'' +
+            ", remoteTimeout=" + remoteTimeout +
+            ", traceFile='" + traceFile + '\'' +
+            ", replayTrace='" + replayTrace + '\'' +
+            ", replayMask=" + (replayMask == null ? null : Hex.encodeHexString(replayMask)) +
+            ", replayLatency=" + replayLatency +
             ", testCardType=" + testCardType +
             ", remoteCardType=" + remoteCardType +
             '}';
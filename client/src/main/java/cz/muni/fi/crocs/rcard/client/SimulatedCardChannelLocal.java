@@ -51,9 +51,23 @@ public class SimulatedCardChannelLocal extends CardChannel {
         return responseAPDU;
     }
 
+    /**
+     * Transmits the remaining command bytes directly to the simulator, no APDU objects are created.
+     */
     @Override
-    public int transmit(ByteBuffer bb, ByteBuffer bb1) throws CardException {
-        throw new UnsupportedOperationException("Not supported yet.");
+    public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+        Util.checkTransmitBuffers(command, response);
+        if (LOG.isDebugEnabled()) {
+            Util.log(LOG, command);
+        }
+
+        final byte[] resp;
+        try {
+            resp = this.m_simulator.transmitCommand(Util.remainingBytes(command));
+        } catch (Exception ex) {
+            throw new CardException("Transmit failed - exception", ex);
+        }
+        return Util.putResponse(response, resp);
     }
 
     @Override
@@ -2,12 +2,14 @@ package cz.muni.fi.crocs.rcard.client;
 
 import org.slf4j.Logger;
 
+import javax.smartcardio.CardException;
 import javax.smartcardio.CommandAPDU;
 import javax.smartcardio.ResponseAPDU;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
+import java.nio.ReadOnlyBufferException;
 import java.util.Properties;
 
 /**
@@ -16,6 +18,10 @@ import java.util.Properties;
  * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
  */
 public class Util {
+    /**
+     * Minimal response buffer size accepted by the ByteBuffer transmit, 256 B of data and SW
+     */
+    public static final int MIN_RESPONSE_BUFFER = 258;
 
     public static String toHex(byte[] bytes) {
         return toHex(bytes, 0, bytes.length);
@@ -138,6 +144,64 @@ public class Util {
         log(log, response, 0);
     }
 
+    /**
+     * Logs the command APDU from the buffer, position is not modified.
+     */
+    public static void log(Logger log, ByteBuffer command) {
+        final ByteBuffer cmd = command.duplicate();
+        log.debug(String.format("--> [%s] (%s B)", Util.toHex(remainingBytes(cmd)), command.remaining()));
+    }
+
+    /**
+     * Argument checks of {@link javax.smartcardio.CardChannel#transmit(ByteBuffer, ByteBuffer)}.
+     */
+    public static void checkTransmitBuffers(ByteBuffer command, ByteBuffer response) {
+        if (command == null || response == null) {
+            throw new NullPointerException("Command and response buffers must not be null");
+        }
+        if (response.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        if (command == response) {
+            throw new IllegalArgumentException("Command and response must not be the same buffer");
+        }
+        if (response.remaining() < MIN_RESPONSE_BUFFER) {
+            throw new IllegalArgumentException("Insufficient space in response buffer");
+        }
+    }
+
+    /**
+     * Returns remaining bytes of the buffer and moves its position to the limit.
+     * Backing array is returned without copying if the buffer spans it entirely, do not modify the result.
+     */
+    public static byte[] remainingBytes(ByteBuffer buffer) {
+        final int len = buffer.remaining();
+        if (buffer.hasArray() && buffer.arrayOffset() == 0 && buffer.position() == 0 && len == buffer.array().length) {
+            buffer.position(buffer.limit());
+            return buffer.array();
+        }
+
+        final byte[] data = new byte[len];
+        buffer.get(data);
+        return data;
+    }
+
+    /**
+     * Writes the response APDU at the buffer position.
+     * @return number of bytes written
+     * @throws CardException if the response does not fit the buffer, buffer is not modified then
+     */
+    public static int putResponse(ByteBuffer response, byte[] data) throws CardException {
+        if (data == null || data.length < 2) {
+            throw new CardException("Invalid response APDU");
+        }
+        if (response.remaining() < data.length) {
+            throw new CardException("Insufficient space in response buffer: " + response.remaining() + " < " + data.length);
+        }
+        response.put(data);
+        return data.length;
+    }
+
     public static Properties loadProperties(String fpath) throws IOException {
         Properties cfg = new Properties();
         try (FileInputStream fis = new FileInputStream(fpath)) {
@@ -95,9 +95,17 @@ public class VSmartCardCardChannel extends CardChannel {
   }
 
   @Override
-  public int transmit(ByteBuffer bb, ByteBuffer bb1) throws CardException {
-    LOG.error("Accessing unimplemented transmit variant");
-    throw new UnsupportedOperationException("Not supported yet.");
+  public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
+    Util.checkTransmitBuffers(command, response);
+    try {
+      connectIfNeeded();
+      protocol.writeApdu(command);
+      return protocol.readResponse(response);
+
+    } catch (Exception ex) {
+      LOG.warn("Transmit failed", ex);
+      throw new CardException("Transmit failed - exception", ex);
+    }
   }
 
   @Override
@@ -1,11 +1,17 @@
 package cz.muni.fi.crocs.rcard.client;
 
+import cz.muni.fi.crocs.rcard.client.stats.InsStatistics;
+import cz.muni.fi.crocs.rcard.client.trace.TraceRecord;
+import cz.muni.fi.crocs.rcard.client.trace.TraceRecorder;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.smartcardio.*;
 import java.nio.ByteBuffer;
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 /**
  * @author Dusan Klinec ph4r05@gmail.com
@@ -34,8 +40,20 @@ public class WrappingCardChannel extends CardChannel {
    */
   protected Integer defaultNe = null;
 
-  protected Duration lastTransmitTimeDuration = Duration.ZERO;
+  /**
+   * Records all exchanged APDUs, null if tracing is disabled
+   */
+  protected volatile TraceRecorder traceRecorder = null;
+  protected int traceChannelType = TraceRecord.NO_CHANNEL_TYPE;
+
+  /**
+   * Per instruction latency statistics, null if disabled
+   */
+  protected volatile InsStatistics insStatistics = null;
+
+  protected volatile Duration lastTransmitTimeDuration = Duration.ZERO;
   protected CommandAPDU lastCommand = null;
+  protected long[] lastBatchTimes = new long[0];
 
   public WrappingCardChannel(CardChannel wrapped) {
     if (wrapped instanceof WrappingCardChannel){
@@ -77,6 +95,8 @@ public class WrappingCardChannel extends CardChannel {
     } finally {
       long end = System.nanoTime();
       lastTransmitTimeDuration = Duration.ofNanos(end - start);
+      trace(0, start, end - start, cmd, response);
+      stats(cmd, end - start, response);
     }
 
     if (bDebug) {
@@ -86,16 +106,135 @@ public class WrappingCardChannel extends CardChannel {
     return response;
   }
 
+  /**
+   * Transmits the command without waiting for the response.
+   * Channels supporting pipelining keep multiple commands in flight, other channels transmit synchronously.
+   * Transmit time then includes the time the command waited in the pipeline.
+   */
+  public CompletableFuture<ResponseAPDU> transmitAsync(CommandAPDU cmd) {
+    if (!(wrapped instanceof AsyncCardChannel)) {
+      final CompletableFuture<ResponseAPDU> future = new CompletableFuture<>();
+      try {
+        future.complete(transmit(cmd));
+      } catch (Exception e) {
+        future.completeExceptionally(e);
+      }
+      return future;
+    }
+
+    if (fixLc){
+      cmd = fixApduLc(cmd);
+    }
+
+    lastCommand = cmd;
+    if (bDebug) {
+      log(cmd);
+    }
+
+    final CommandAPDU sent = cmd;
+    final long start = System.nanoTime();
+    return ((AsyncCardChannel) wrapped).transmitAsync(cmd).whenComplete((response, e) -> {
+      final long duration = System.nanoTime() - start;
+      lastTransmitTimeDuration = Duration.ofNanos(duration);
+      trace(TraceRecord.FLAG_ASYNC, start, duration, sent, response);
+      stats(sent, duration, response);
+      if (bDebug && response != null) {
+        log(response, lastTransmitTimeDuration.toMillis());
+      }
+    });
+  }
+
+  /**
+   * Transmits all commands in order.
+   * Remote channels send the whole batch in one request, other channels transmit commands one by one.
+   */
+  public List<ResponseAPDU> transmitBatch(List<CommandAPDU> cmds) throws CardException {
+    final List<CommandAPDU> fixed = new ArrayList<>(cmds.size());
+    for (CommandAPDU cmd : cmds) {
+      fixed.add(fixLc ? fixApduLc(cmd) : cmd);
+      if (bDebug) {
+        log(fixed.get(fixed.size() - 1));
+      }
+    }
+
+    final long[] times = new long[fixed.size()];
+    List<ResponseAPDU> responses = null;
+    long start = System.nanoTime();
+    try {
+      if (wrapped instanceof BatchCardChannel) {
+        responses = ((BatchCardChannel) wrapped).transmitBatch(fixed, times);
+      } else {
+        responses = new ArrayList<>(fixed.size());
+        for (int i = 0; i < fixed.size(); i++) {
+          long cmdStart = System.nanoTime();
+          responses.add(wrapped.transmit(fixed.get(i)));
+          times[i] = System.nanoTime() - cmdStart;
+        }
+      }
+    } finally {
+      long end = System.nanoTime();
+      lastTransmitTimeDuration = Duration.ofNanos(end - start);
+      traceBatch(start, end - start, fixed, responses, times);
+      statsBatch(end - start, fixed, responses, times);
+    }
+
+    lastCommand = fixed.isEmpty() ? lastCommand : fixed.get(fixed.size() - 1);
+    lastBatchTimes = times;
+    if (bDebug) {
+      for (int i = 0; i < responses.size(); i++) {
+        log(responses.get(i), Duration.ofNanos(times[i]).toMillis());
+      }
+    }
+
+    return responses;
+  }
+
+  /**
+   * Passes the buffers to the wrapped channel, the command is read from its position to its limit.
+   * Case 1 commands get Le=00 appended, commands needing the Ne fix fall back to {@link #transmit(CommandAPDU)}.
+   * {@link #lastCommand} is not updated on this path to avoid materializing the APDU.
+   */
   @Override
   public int transmit(ByteBuffer command, ByteBuffer response) throws CardException {
-    // Suboptimal wrapping, can be optimized to be in-memory in the buffers
-    final byte[] req = new byte[command.position()];
-    command.get(req);
-    final ResponseAPDU resp = transmit(new CommandAPDU(req));
-    final byte[] respBytes = resp.getBytes();
-    response.put(respBytes);
-    return respBytes.length;
-    //wrapped.transmit(command, response);
+    Util.checkTransmitBuffers(command, response);
+    if (fixLc && command.remaining() > 4 && isFixNe()) {
+      final ResponseAPDU resp = transmit(new CommandAPDU(Util.remainingBytes(command)));
+      return Util.putResponse(response, resp.getBytes());
+    }
+
+    ByteBuffer cmd = command;
+    if (fixLc && command.remaining() == 4) {
+      cmd = ByteBuffer.allocate(5);
+      cmd.put(command).put((byte) 0).flip();
+    }
+
+    if (bDebug) {
+      Util.log(LOG, cmd);
+    }
+
+    final ByteBuffer sent = traceRecorder == null ? null : cmd.duplicate();
+    final int header = cmd.remaining() >= 2 ? (cmd.get(cmd.position()) & 0xff) << 8 | cmd.get(cmd.position() + 1) & 0xff : -1;
+    final int start = response.position();
+    int len = -1;
+    long begin = System.nanoTime();
+    try {
+      len = wrapped.transmit(cmd, response);
+    } finally {
+      long end = System.nanoTime();
+      lastTransmitTimeDuration = Duration.ofNanos(end - begin);
+      if (sent != null) {
+        trace(begin, end - begin, sent, response, start, len);
+      }
+      stats(header, end - begin, response, start, len);
+    }
+    command.position(command.limit());
+
+    if (bDebug) {
+      final ByteBuffer resp = response.duplicate();
+      resp.position(start).limit(start + len);
+      log(new ResponseAPDU(Util.remainingBytes(resp)), lastTransmitTimeDuration.toMillis());
+    }
+    return len;
   }
 
   @Override
@@ -103,6 +242,119 @@ public class WrappingCardChannel extends CardChannel {
     wrapped.close();
   }
 
+  /**
+   * Enables APDU tracing, null disables it
+   * @param recorder trace recorder, not closed by the channel
+   * @param channelType type of the wrapped channel, stored in the records
+   */
+  public void setTraceRecorder(TraceRecorder recorder, CardType channelType) {
+    traceChannelType = TraceRecord.channelTypeCode(channelType);
+    traceRecorder = recorder;
+  }
+
+  public TraceRecorder getTraceRecorder() {
+    return traceRecorder;
+  }
+
+  /**
+   * Enables per instruction latency statistics, null disables them
+   */
+  public void setInsStatistics(InsStatistics statistics) {
+    insStatistics = statistics;
+  }
+
+  public InsStatistics getInsStatistics() {
+    return insStatistics;
+  }
+
+  protected void stats(CommandAPDU cmd, long duration, ResponseAPDU response) {
+    final InsStatistics statistics = insStatistics;
+    if (statistics == null) {
+      return;
+    }
+    if (response == null) {
+      statistics.recordError(cmd.getCLA(), cmd.getINS(), duration);
+    } else {
+      statistics.record(cmd.getCLA(), cmd.getINS(), duration, response.getSW());
+    }
+  }
+
+  /**
+   * @param header CLA and INS of the command, CLA in the high byte, -1 if unknown
+   */
+  protected void stats(int header, long duration, ByteBuffer response, int respStart, int respLen) {
+    final InsStatistics statistics = insStatistics;
+    if (statistics == null || header < 0) {
+      return;
+    }
+
+    final int cla = header >>> 8;
+    final int ins = header & 0xff;
+    if (respLen < 2) {
+      statistics.recordError(cla, ins, duration);
+    } else {
+      final int sw = ((response.get(respStart + respLen - 2) & 0xff) << 8) | (response.get(respStart + respLen - 1) & 0xff);
+      statistics.record(cla, ins, duration, sw);
+    }
+  }
+
+  /**
+   * Batch commands are recorded with per-command times, failed batch is recorded as an error of each command
+   * without a response.
+   */
+  protected void statsBatch(long duration, List<CommandAPDU> cmds, List<ResponseAPDU> responses, long[] times) {
+    if (insStatistics == null) {
+      return;
+    }
+    for (int i = 0; i < cmds.size(); i++) {
+      final ResponseAPDU response = responses != null && i < responses.size() ? responses.get(i) : null;
+      stats(cmds.get(i), response != null ? times[i] : duration, response);
+    }
+  }
+
+  protected void trace(int flags, long start, long duration, CommandAPDU cmd, ResponseAPDU response) {
+    final TraceRecorder recorder = traceRecorder;
+    if (recorder == null) {
+      return;
+    }
+    recorder.record(traceChannelType, response == null ? flags | TraceRecord.FLAG_ERROR : flags, start, duration,
+        cmd.getBytes(), response == null ? null : response.getBytes());
+  }
+
+  protected void trace(long start, long duration, ByteBuffer cmd, ByteBuffer response, int respStart, int respLen) {
+    final TraceRecorder recorder = traceRecorder;
+    if (recorder == null) {
+      return;
+    }
+
+    ByteBuffer resp = null;
+    if (respLen >= 0) {
+      resp = response.duplicate();
+      resp.limit(respStart + respLen);
+      resp.position(respStart);
+    }
+    recorder.record(traceChannelType, resp == null ? TraceRecord.FLAG_ERROR : 0, start, duration, cmd, resp);
+  }
+
+  /**
+   * Batch commands are recorded with per-command times, starts are estimated from the batch start.
+   * Failed batch is recorded with the total time for each command.
+   */
+  protected void traceBatch(long start, long duration, List<CommandAPDU> cmds, List<ResponseAPDU> responses, long[] times) {
+    final TraceRecorder recorder = traceRecorder;
+    if (recorder == null) {
+      return;
+    }
+
+    long cmdStart = start;
+    for (int i = 0; i < cmds.size(); i++) {
+      final ResponseAPDU response = responses != null && i < responses.size() ? responses.get(i) : null;
+      final long cmdTime = response != null ? times[i] : duration;
+      trace(TraceRecord.FLAG_BATCH, cmdStart, cmdTime, cmds.get(i), response);
+      cmdStart += response != null ? cmdTime : 0;
+    }
+  }
+
   public void log(CommandAPDU cmd) {
     Util.log(LOG, cmd);
   }
@@ -111,10 +363,16 @@ public class WrappingCardChannel extends CardChannel {
     Util.log(LOG, response, time);
   }
 
+  /**
+   * Adds Le=00 to case 1 APDUs. Commands with data or Le are kept, only Ne fix may apply.
+   */
   public CommandAPDU fixApduLc(CommandAPDU cmd){
     if (cmd.getNc() != 0){
       return fixApduNe(cmd);
     }
+    if (cmd.getNe() != 0){
+      return cmd;
+    }
 
     byte[] apdu = new byte[] {
         (byte)cmd.getCLA(),
@@ -126,12 +384,16 @@ public class WrappingCardChannel extends CardChannel {
     return new CommandAPDU(apdu);
   }
 
-  private CommandAPDU fixApduNe(CommandAPDU cmd) {
+  private boolean isFixNe() {
     Boolean doFix = fixNe;
     if (doFix == null) {
       doFix = System.getProperty("cz.muni.fi.crocs.rcard.fixNe", "false").equalsIgnoreCase("true");
     }
-    if (!doFix) {
+    return doFix;
+  }
+
+  private CommandAPDU fixApduNe(CommandAPDU cmd) {
+    if (!isFixNe()) {
       return cmd;
     }
 
@@ -0,0 +1,481 @@
+package cz.muni.fi.crocs.rcard.client.protocols;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Binary frame of the remote card protocol, compact alternative to the JSON API.
+ * Carries raw APDU bytes, no hex or JSON encoding is involved.
+ *
+ * Frame layout, big endian:
+ * <pre>
+ *   u32  frame length, without this field
+ *   u8   action
+ *   u8   flags
+ *   u32  request ID, echoed in the response
+ *   u8   target, 0 = card, 1 = sim, 2 = pool
+ *   u16  reader index
+ *   i8   result, 0 = success, negative on error (response only)
+ *   u8   session ID length
+ *   ...  session ID, UTF-8
+ *   ...  payload
+ * </pre>
+ *
+ * Payload by action:
+ * SEND - request APDU / response APDU,
+ * SELECT - AID / select response APDU,
+ * DISCONNECT - optional reset byte,
+ * IS_CONNECTED - response byte 1 if connected,
+ * ATR - response ATR bytes,
+ * PROTOCOL - response protocol, UTF-8,
+ * BATCH - list of APDUs / list of response APDUs with execution times, see {@link #encodeBatch(List)},
+ * AUTH - access token, UTF-8, first frame of the connection if the server requires a token.
+ * Responses with negative result carry UTF-8 error message.
+ * Payload may be compressed with raw deflate, see {@link #FLAG_DEFLATE}.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class CardFrame {
+  public static final int ACTION_PING = 0;
+  public static final int ACTION_SEND = 1;
+  public static final int ACTION_CONNECT = 2;
+  public static final int ACTION_DISCONNECT = 3;
+  public static final int ACTION_IS_CONNECTED = 4;
+  public static final int ACTION_ATR = 5;
+  public static final int ACTION_PROTOCOL = 6;
+  public static final int ACTION_RESET = 7;
+  public static final int ACTION_SELECT = 8;
+  public static final int ACTION_BATCH = 9;
+  public static final int ACTION_AUTH = 10;
+
+  /**
+   * Request flag, server handles 61xx and 6Cxx status words, see {@link cz.muni.fi.crocs.rcard.client.AutoResponse}
+   */
+  public static final int FLAG_AUTO_RESPONSE = 0x01;
+
+  /**
+   * Request flag, server splits commands too long for the card with command chaining
+   */
+  public static final int FLAG_CHAINING = 0x02;
+
+  /**
+   * Payload is compressed with raw deflate
+   */
+  public static final int FLAG_DEFLATE = 0x04;
+
+  /**
+   * Request flag, sender accepts compressed response payload
+   */
+  public static final int FLAG_ACCEPT_DEFLATE = 0x08;
+
+  /**
+   * Request flag, admin priority class of the server card scheduler
+   */
+  public static final int FLAG_PRIORITY_ADMIN = 0x10;
+
+  /**
+   * Request flag, batch priority class of the server card scheduler
+   */
+  public static final int FLAG_PRIORITY_BATCH = 0x20;
+
+  public static final int TARGET_CARD = 0;
+  public static final int TARGET_SIM = 1;
+  public static final int TARGET_POOL = 2;
+
+  public static final int LENGTH_LEN = 4;
+  public static final int HEADER_LEN = 11;
+  public static final int MAX_FRAME_LEN = 1024 * 1024;
+
+  protected int action;
+  protected int flags;
+  protected int rid;
+  protected int target;
+  protected int idx;
+  protected int result;
+  protected String session;
+  protected byte[] payload;
+
+  public CardFrame() {
+  }
+
+  public CardFrame(int action, int rid, int target, int idx, byte[] payload) {
+    this.action = action;
+    this.rid = rid;
+    this.target = target;
+    this.idx = idx;
+    this.payload = payload;
+  }
+
+  /**
+   * Builds response frame for this request frame
+   * @param result result code, 0 on success
+   * @param payload response payload
+   * @return response frame
+   */
+  public CardFrame response(int result, byte[] payload) {
+    final CardFrame resp = new CardFrame(action, rid, target, idx, payload);
+    resp.flags = flags & ~FLAG_DEFLATE;
+    resp.session = session;
+    resp.result = result;
+    return resp;
+  }
+
+  public CardFrame errorResponse(int result, String error) {
+    return response(result, error == null ? null : error.getBytes(StandardCharsets.UTF_8));
+  }
+
+  public int encodedLength() {
+    return LENGTH_LEN + HEADER_LEN + sessionBytes().length + (payload == null ? 0 : payload.length);
+  }
+
+  public byte[] encode() {
+    final ByteBuffer buf = ByteBuffer.allocate(encodedLength());
+    encode(buf);
+    return buf.array();
+  }
+
+  public void encode(ByteBuffer buf) {
+    final byte[] sess = sessionBytes();
+    final int plen = payload == null ? 0 : payload.length;
+    buf.putInt(HEADER_LEN + sess.length + plen);
+    buf.put((byte) action);
+    buf.put((byte) flags);
+    buf.putInt(rid);
+    buf.put((byte) target);
+    buf.putShort((short) idx);
+    buf.put((byte) result);
+    buf.put((byte) sess.length);
+    buf.put(sess);
+    if (plen > 0) {
+      buf.put(payload);
+    }
+  }
+
+  public static CardFrame decode(byte[] data) throws IOException {
+    return decode(ByteBuffer.wrap(data));
+  }
+
+  /**
+   * Decodes one frame from the buffer, including the length field.
+   * @param buf buffer positioned at the frame start
+   * @return decoded frame
+   * @throws IOException on malformed frame
+   */
+  public static CardFrame decode(ByteBuffer buf) throws IOException {
+    if (buf.remaining() < LENGTH_LEN + HEADER_LEN) {
+      throw new IOException("Frame too short");
+    }
+
+    final int len = buf.getInt();
+    if (len < HEADER_LEN || len > MAX_FRAME_LEN || len > buf.remaining()) {
+      throw new IOException("Invalid frame length: " + len);
+    }
+
+    final CardFrame frame = new CardFrame();
+    frame.action = buf.get() & 0xff;
+    frame.flags = buf.get() & 0xff;
+    frame.rid = buf.getInt();
+    frame.target = buf.get() & 0xff;
+    frame.idx = buf.getShort() & 0xffff;
+    frame.result = buf.get();
+
+    final int slen = buf.get() & 0xff;
+    if (HEADER_LEN + slen > len) {
+      throw new IOException("Invalid session length: " + slen);
+    }
+    if (slen > 0) {
+      final byte[] sess = new byte[slen];
+      buf.get(sess);
+      frame.session = new String(sess, StandardCharsets.UTF_8);
+    }
+
+    frame.payload = new byte[len - HEADER_LEN - slen];
+    buf.get(frame.payload);
+    return frame;
+  }
+
+  /**
+   * Decodes the header of a frame that failed to decode, so the error can be returned to the sender.
+   * @param buf buffer positioned at the frame start, not modified
+   * @return frame with action, flags, rid, target and index, null if the header is not complete
+   */
+  public static CardFrame decodeHeader(ByteBuffer buf) {
+    if (buf.remaining() < LENGTH_LEN + 9) {
+      return null;
+    }
+
+    final ByteBuffer hdr = buf.duplicate();
+    hdr.getInt();
+    final CardFrame frame = new CardFrame();
+    frame.action = hdr.get() & 0xff;
+    frame.flags = hdr.get() & 0xff;
+    frame.rid = hdr.getInt();
+    frame.target = hdr.get() & 0xff;
+    frame.idx = hdr.getShort() & 0xffff;
+    return frame;
+  }
+
+  /**
+   * Encodes APDU list to the batch request payload, each APDU as u32 length, bytes.
+   */
+  public static byte[] encodeBatch(List<byte[]> apdus) {
+    int len = 0;
+    for (byte[] apdu : apdus) {
+      len += 4 + apdu.length;
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(len);
+    for (byte[] apdu : apdus) {
+      buf.putInt(apdu.length);
+      buf.put(apdu);
+    }
+    return buf.array();
+  }
+
+  public static List<byte[]> decodeBatch(byte[] payload) throws IOException {
+    final ByteBuffer buf = ByteBuffer.wrap(payload);
+    final List<byte[]> apdus = new ArrayList<>();
+    while (buf.hasRemaining()) {
+      apdus.add(readItem(buf));
+    }
+    return apdus;
+  }
+
+  /**
+   * Encodes batch response payload, each response as u32 length, bytes, u64 execution time in nanoseconds.
+   */
+  public static byte[] encodeBatchResponse(List<byte[]> responses, long[] times) {
+    int len = 0;
+    for (byte[] resp : responses) {
+      len += 4 + resp.length + 8;
+    }
+
+    final ByteBuffer buf = ByteBuffer.allocate(len);
+    for (int i = 0; i < responses.size(); i++) {
+      buf.putInt(responses.get(i).length);
+      buf.put(responses.get(i));
+      buf.putLong(times[i]);
+    }
+    return buf.array();
+  }
+
+  /**
+   * Decodes batch response payload.
+   * @param payload response payload
+   * @param times if not null, filled with execution times
+   * @return response APDUs
+   * @throws IOException on malformed payload
+   */
+  public static List<byte[]> decodeBatchResponse(byte[] payload, long[] times) throws IOException {
+    final ByteBuffer buf = ByteBuffer.wrap(payload);
+    final List<byte[]> responses = new ArrayList<>();
+    while (buf.hasRemaining()) {
+      responses.add(readItem(buf));
+      if (buf.remaining() < 8) {
+        throw new IOException("Batch response truncated");
+      }
+      final long time = buf.getLong();
+      if (times != null && responses.size() <= times.length) {
+        times[responses.size() - 1] = time;
+      }
+    }
+    return responses;
+  }
+
+  /**
+   * Compresses the payload if it is at least threshold bytes long and compression makes it shorter.
+   * @param threshold minimal payload length to compress
+   * @return true if the payload was compressed
+   */
+  public boolean compressPayload(int threshold) {
+    if (payload == null || payload.length < threshold || (flags & FLAG_DEFLATE) != 0) {
+      return false;
+    }
+
+    final byte[] compressed = deflate(payload);
+    if (compressed.length >= payload.length) {
+      return false;
+    }
+    payload = compressed;
+    flags |= FLAG_DEFLATE;
+    return true;
+  }
+
+  /**
+   * Decompresses the payload if compressed, clears the deflate flag.
+   * @throws IOException on malformed compressed payload
+   */
+  public void decompressPayload() throws IOException {
+    if ((flags & FLAG_DEFLATE) == 0) {
+      return;
+    }
+    payload = inflate(payload == null ? new byte[0] : payload, MAX_FRAME_LEN);
+    flags &= ~FLAG_DEFLATE;
+  }
+
+  public static byte[] deflate(byte[] data) {
+    final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+    try {
+      deflater.setInput(data);
+      deflater.finish();
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length / 2 + 16);
+      final byte[] buf = new byte[4096];
+      while (!deflater.finished()) {
+        bos.write(buf, 0, deflater.deflate(buf));
+      }
+      return bos.toByteArray();
+    } finally {
+      deflater.end();
+    }
+  }
+
+  public static byte[] inflate(byte[] data, int maxLen) throws IOException {
+    final Inflater inflater = new Inflater(true);
+    try {
+      inflater.setInput(data);
+      final ByteArrayOutputStream bos = new ByteArrayOutputStream(data.length * 2 + 16);
+      final byte[] buf = new byte[4096];
+      while (!inflater.finished()) {
+        final int n = inflater.inflate(buf);
+        if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+          throw new IOException("Truncated compressed payload");
+        }
+        if (bos.size() + n > maxLen) {
+          throw new IOException("Decompressed payload too long");
+        }
+        bos.write(buf, 0, n);
+      }
+      return bos.toByteArray();
+    } catch (DataFormatException e) {
+      throw new IOException("Invalid compressed payload", e);
+    } finally {
+      inflater.end();
+    }
+  }
+
+  private static byte[] readItem(ByteBuffer buf) throws IOException {
+    if (buf.remaining() < 4) {
+      throw new IOException("Batch item truncated");
+    }
+    final int len = buf.getInt();
+    if (len < 0 || len > buf.remaining()) {
+      throw new IOException("Invalid batch item length: " + len);
+    }
+    final byte[] item = new byte[len];
+    buf.get(item);
+    return item;
+  }
+
+  private byte[] sessionBytes() {
+    if (session == null || session.isEmpty()) {
+      return new byte[0];
+    }
+    final byte[] sess = session.getBytes(StandardCharsets.UTF_8);
+    if (sess.length > 255) {
+      throw new IllegalArgumentException("Session ID too long");
+    }
+    return sess;
+  }
+
+  public String payloadString() {
+    return payload == null ? null : new String(payload, StandardCharsets.UTF_8);
+  }
+
+  public boolean payloadFlag(boolean defaultValue) {
+    return payload == null || payload.length == 0 ? defaultValue : payload[0] != 0;
+  }
+
+  public int getAction() {
+    return action;
+  }
+
+  public CardFrame setAction(int action) {
+    this.action = action;
+    return this;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public CardFrame setFlags(int flags) {
+    this.flags = flags;
+    return this;
+  }
+
+  public int getRid() {
+    return rid;
+  }
+
+  public CardFrame setRid(int rid) {
+    this.rid = rid;
+    return this;
+  }
+
+  public int getTarget() {
+    return target;
+  }
+
+  public CardFrame setTarget(int target) {
+    this.target = target;
+    return this;
+  }
+
+  public int getIdx() {
+    return idx;
+  }
+
+  public CardFrame setIdx(int idx) {
+    this.idx = idx;
+    return this;
+  }
+
+  public int getResult() {
+    return result;
+  }
+
+  public CardFrame setResult(int result) {
+    this.result = result;
+    return this;
+  }
+
+  public String getSession() {
+    return session;
+  }
+
+  public CardFrame setSession(String session) {
+    this.session = session;
+    return this;
+  }
+
+  public byte[] getPayload() {
+    return payload;
+  }
+
+  public CardFrame setPayload(byte[] payload) {
+    this.payload = payload;
+    return this;
+  }
+
+  @Override
+  public String toString() {
+    return "CardFrame{" +
+        "action=" + action +
+        ", flags=" + flags +
+        ", rid=" + rid +
+        ", target=" + target +
+        ", idx=" + idx +
+        ", result=" + result +
+        ", session='" + session + '\'' +
+        ", payloadLen=" + (payload == null ? 0 : payload.length) +
+        '}';
+  }
+}
@@ -0,0 +1,17 @@
+package cz.muni.fi.crocs.rcard.client.protocols;
+
+import java.io.IOException;
+
+/**
+ * Response frame did not arrive in time, the remote side may be stuck processing the request.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class FrameTimeoutException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  public FrameTimeoutException(String message, Throwable cause) {
+    super(message, cause);
+  }
+}
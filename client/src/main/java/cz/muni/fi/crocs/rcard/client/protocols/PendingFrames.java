@@ -0,0 +1,86 @@
+package cz.muni.fi.crocs.rcard.client.protocols;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests in flight on a frame connection, responses are paired with requests by the request ID.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class PendingFrames {
+  protected final AtomicInteger ridCounter = new AtomicInteger(0);
+  protected final Map<Integer, CompletableFuture<CardFrame>> pending = new ConcurrentHashMap<>();
+
+  public int nextRid() {
+    return ridCounter.incrementAndGet();
+  }
+
+  /**
+   * Registers the request, must be called before the request is sent.
+   * @return future completed with the response frame
+   */
+  public CompletableFuture<CardFrame> register(int rid) {
+    final CompletableFuture<CardFrame> future = new CompletableFuture<>();
+    pending.put(rid, future);
+    return future;
+  }
+
+  public void remove(int rid) {
+    pending.remove(rid);
+  }
+
+  /**
+   * Completes the request with the received response, decompresses the payload.
+   * @return false if there is no such request pending
+   */
+  public boolean complete(CardFrame resp) {
+    final CompletableFuture<CardFrame> future = pending.remove(resp.getRid());
+    if (future == null) {
+      return false;
+    }
+
+    try {
+      resp.decompressPayload();
+    } catch (IOException e) {
+      future.completeExceptionally(e);
+      return true;
+    }
+    future.complete(resp);
+    return true;
+  }
+
+  public void failAll(Throwable t) {
+    for (Integer rid : pending.keySet()) {
+      final CompletableFuture<CardFrame> future = pending.remove(rid);
+      if (future != null) {
+        future.completeExceptionally(t);
+      }
+    }
+  }
+
+  /**
+   * Waits for the response to the request.
+   * @throws IOException on failure, FrameTimeoutException on timeout
+   */
+  public CardFrame await(CompletableFuture<CardFrame> future, int rid, long timeoutMillis) throws IOException {
+    try {
+      return future.get(timeoutMillis, TimeUnit.MILLISECONDS);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted", e);
+    } catch (ExecutionException e) {
+      throw new IOException("Frame exchange failed", e.getCause());
+    } catch (TimeoutException e) {
+      pending.remove(rid);
+      throw new FrameTimeoutException("Frame response timeout", e);
+    }
+  }
+}
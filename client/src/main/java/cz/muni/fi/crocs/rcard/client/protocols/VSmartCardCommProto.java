@@ -3,6 +3,7 @@ package cz.muni.fi.crocs.rcard.client.protocols;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 /**
  * VSmartCard communication protocol helper.
@@ -54,6 +55,30 @@ public class VSmartCardCommProto {
     return dataBuf;
   }
 
+  /**
+   * Reads the response APDU directly to the buffer position.
+   * @return number of bytes read
+   * @throws IOException if the response does not fit the buffer, the response is consumed from the stream anyway
+   */
+  public int readResponse(ByteBuffer response) throws IOException {
+    final byte[] lenBuf = new byte[2];
+    read(lenBuf, 0, 2, dataInput);
+    final int len = ((lenBuf[0] << 8) & 0xFF00) | (lenBuf[1] & 0xFF);
+    if (response.remaining() < len || !response.hasArray()) {
+      final byte[] dataBuf = new byte[len];
+      read(dataBuf, 0, len, dataInput);
+      if (response.remaining() < len) {
+        throw new IOException("Insufficient space in response buffer: " + response.remaining() + " < " + len);
+      }
+      response.put(dataBuf);
+      return len;
+    }
+
+    read(response.array(), response.arrayOffset() + response.position(), len, dataInput);
+    response.position(response.position() + len);
+    return len;
+  }
+
   protected void writeCommand(int cmd, byte[] buf){
     writeCommand(cmd, buf, 1);
   }
@@ -83,6 +108,18 @@ public class VSmartCardCommProto {
     return buf.length;
   }
 
+  /**
+   * Writes remaining bytes of the buffer as an APDU, moves the buffer position to the limit.
+   */
+  public int writeApdu(ByteBuffer data) throws IOException {
+    final int len = data.remaining();
+    final byte[] buf = new byte[2 + len];
+    writeLength(buf, len);
+    data.get(buf, 2, len);
+    dataOutput.write(buf);
+    return buf.length;
+  }
+
   public byte[] readData() throws IOException {
     if (frameLen == -1) {
       throw new IOException("No APDU command waiting");
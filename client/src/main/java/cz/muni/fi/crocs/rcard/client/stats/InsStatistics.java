@@ -0,0 +1,178 @@
+package cz.muni.fi.crocs.rcard.client.stats;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Per instruction (CLA, INS) statistics of the card channel: command count, latency histogram,
+ * responses with status word other than 9000 and transmissions failed with an exception.
+ *
+ * Recording is lock-free, statistics of a CLA/INS pair are created on the first use.
+ * Snapshot and reset may be called concurrently with recording.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class InsStatistics {
+  private final AtomicReference<AtomicReferenceArray<AtomicReferenceArray<InsStats>>> table =
+      new AtomicReference<>(newTable());
+
+  public void record(int cla, int ins, long nanos, int sw) {
+    final InsStats stats = stats(cla, ins);
+    stats.latency.record(nanos);
+    if (sw != 0x9000) {
+      stats.statusErrors.increment();
+    }
+  }
+
+  /**
+   * Transmission failed with an exception, no response
+   */
+  public void recordError(int cla, int ins, long nanos) {
+    final InsStats stats = stats(cla, ins);
+    stats.latency.record(nanos);
+    stats.errors.increment();
+  }
+
+  /**
+   * Statistics of all used instructions, sorted by the total time spent, descending
+   */
+  public List<Snapshot> snapshot() {
+    return snapshot(table.get());
+  }
+
+  /**
+   * Drops all statistics, recording continues with empty statistics
+   */
+  public void reset() {
+    table.set(newTable());
+  }
+
+  /**
+   * Statistics recorded since the last reset, statistics are reset.
+   * Transmissions finishing during the swap may be recorded to the returned statistics.
+   */
+  public List<Snapshot> snapshotAndReset() {
+    return snapshot(table.getAndSet(newTable()));
+  }
+
+  public Snapshot snapshot(int cla, int ins) {
+    final AtomicReferenceArray<InsStats> row = table.get().get(cla & 0xff);
+    final InsStats stats = row == null ? null : row.get(ins & 0xff);
+    return stats == null ? null : stats.snapshot();
+  }
+
+  protected InsStats stats(int cla, int ins) {
+    final AtomicReferenceArray<AtomicReferenceArray<InsStats>> current = table.get();
+    AtomicReferenceArray<InsStats> row = current.get(cla & 0xff);
+    if (row == null) {
+      current.compareAndSet(cla & 0xff, null, new AtomicReferenceArray<>(256));
+      row = current.get(cla & 0xff);
+    }
+
+    InsStats stats = row.get(ins & 0xff);
+    if (stats == null) {
+      row.compareAndSet(ins & 0xff, null, new InsStats(cla & 0xff, ins & 0xff));
+      stats = row.get(ins & 0xff);
+    }
+    return stats;
+  }
+
+  protected List<Snapshot> snapshot(AtomicReferenceArray<AtomicReferenceArray<InsStats>> source) {
+    final List<Snapshot> result = new ArrayList<>();
+    for (int cla = 0; cla < source.length(); cla++) {
+      final AtomicReferenceArray<InsStats> row = source.get(cla);
+      if (row == null) {
+        continue;
+      }
+      for (int ins = 0; ins < row.length(); ins++) {
+        final InsStats stats = row.get(ins);
+        if (stats != null) {
+          result.add(stats.snapshot());
+        }
+      }
+    }
+    result.sort(Comparator.comparingLong((Snapshot s) -> s.getLatency().getSum()).reversed());
+    return result;
+  }
+
+  private static AtomicReferenceArray<AtomicReferenceArray<InsStats>> newTable() {
+    return new AtomicReferenceArray<>(256);
+  }
+
+  protected static class InsStats {
+    final int cla;
+    final int ins;
+    final LatencyHistogram latency = new LatencyHistogram();
+    final LongAdder statusErrors = new LongAdder();
+    final LongAdder errors = new LongAdder();
+
+    InsStats(int cla, int ins) {
+      this.cla = cla;
+      this.ins = ins;
+    }
+
+    Snapshot snapshot() {
+      return new Snapshot(cla, ins, latency.snapshot(), statusErrors.sum(), errors.sum());
+    }
+  }
+
+  public static class Snapshot {
+    private final int cla;
+    private final int ins;
+    private final LatencyHistogram.Snapshot latency;
+    private final long statusErrors;
+    private final long errors;
+
+    public Snapshot(int cla, int ins, LatencyHistogram.Snapshot latency, long statusErrors, long errors) {
+      this.cla = cla;
+      this.ins = ins;
+      this.latency = latency;
+      this.statusErrors = statusErrors;
+      this.errors = errors;
+    }
+
+    public int getCla() {
+      return cla;
+    }
+
+    public int getIns() {
+      return ins;
+    }
+
+    public long getCount() {
+      return latency.getCount();
+    }
+
+    public LatencyHistogram.Snapshot getLatency() {
+      return latency;
+    }
+
+    /**
+     * Responses with status word other than 9000
+     */
+    public long getStatusErrors() {
+      return statusErrors;
+    }
+
+    /**
+     * Transmissions failed with an exception
+     */
+    public long getErrors() {
+      return errors;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("CLA %02x INS %02x: count %d, sw!=9000 %d, errors %d, "
+              + "mean %.3f ms, p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+          cla, ins, getCount(), statusErrors, errors,
+          latency.getMean() / 1e6, latency.getPercentile(50) / 1e6,
+          latency.getPercentile(99) / 1e6, latency.getMax() / 1e6);
+    }
+  }
+}
@@ -0,0 +1,142 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import org.apache.commons.codec.binary.Hex;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a trace replay: latency percentiles, errors and response mismatches.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class ReplayReport {
+  /**
+   * Number of mismatches kept with details
+   */
+  public static final int MAX_MISMATCH_DETAILS = 32;
+
+  protected final long[] latencies;
+  protected final long wallNanos;
+  protected final long errors;
+  protected final long mismatches;
+  protected final List<Mismatch> mismatchDetails;
+
+  public ReplayReport(long[] latencies, long wallNanos, long errors, long mismatches, List<Mismatch> mismatchDetails) {
+    this.latencies = latencies.clone();
+    Arrays.sort(this.latencies);
+    this.wallNanos = wallNanos;
+    this.errors = errors;
+    this.mismatches = mismatches;
+    this.mismatchDetails = Collections.unmodifiableList(new ArrayList<>(mismatchDetails));
+  }
+
+  /**
+   * Number of successfully transmitted commands
+   */
+  public int getCount() {
+    return latencies.length;
+  }
+
+  public long getErrors() {
+    return errors;
+  }
+
+  public long getMismatches() {
+    return mismatches;
+  }
+
+  public List<Mismatch> getMismatchDetails() {
+    return mismatchDetails;
+  }
+
+  public long getWallNanos() {
+    return wallNanos;
+  }
+
+  /**
+   * Commands per second over the whole replay, all workers
+   */
+  public double getThroughput() {
+    return wallNanos == 0 ? 0 : latencies.length * 1e9 / wallNanos;
+  }
+
+  /**
+   * Latency percentile, nearest rank
+   * @param percentile 0-100
+   * @return latency in nanoseconds, 0 if nothing was transmitted
+   */
+  public long getPercentile(double percentile) {
+    if (latencies.length == 0) {
+      return 0;
+    }
+    final int rank = (int) Math.ceil(percentile / 100.0 * latencies.length);
+    return latencies[Math.max(0, Math.min(latencies.length - 1, rank - 1))];
+  }
+
+  public long getMax() {
+    return latencies.length == 0 ? 0 : latencies[latencies.length - 1];
+  }
+
+  public double getMean() {
+    if (latencies.length == 0) {
+      return 0;
+    }
+    double sum = 0;
+    for (long lat : latencies) {
+      sum += lat;
+    }
+    return sum / latencies.length;
+  }
+
+  private static String us(double nanos) {
+    return String.format("%.1f us", nanos / 1000.0);
+  }
+
+  @Override
+  public String toString() {
+    final StringBuilder sb = new StringBuilder();
+    sb.append(String.format("commands: %d, errors: %d, mismatches: %d%n", latencies.length, errors, mismatches));
+    sb.append(String.format("wall time: %.3f s, throughput: %.1f cmd/s%n", wallNanos / 1e9, getThroughput()));
+    sb.append(String.format("latency mean: %s, p50: %s, p90: %s, p99: %s, p99.9: %s, max: %s%n",
+        us(getMean()), us(getPercentile(50)), us(getPercentile(90)), us(getPercentile(99)),
+        us(getPercentile(99.9)), us(getMax())));
+    for (Mismatch m : mismatchDetails) {
+      sb.append(m).append(String.format("%n"));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Response differing from the recorded one
+   */
+  public static class Mismatch {
+    public final int worker;
+    public final int index;
+    public final byte[] command;
+    public final byte[] expected;
+    public final byte[] actual;
+
+    public Mismatch(int worker, int index, byte[] command, byte[] expected, byte[] actual) {
+      this.worker = worker;
+      this.index = index;
+      this.command = command;
+      this.expected = expected;
+      this.actual = actual;
+    }
+
+    @Override
+    public String toString() {
+      return "Mismatch{" +
+          "worker=" + worker +
+          ", index=" + index +
+          ", command=" + Hex.encodeHexString(command) +
+          ", expected=" + Hex.encodeHexString(expected) +
+          ", actual=" + Hex.encodeHexString(actual) +
+          '}';
+    }
+  }
+}
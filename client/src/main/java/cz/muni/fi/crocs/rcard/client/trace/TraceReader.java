@@ -0,0 +1,142 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads trace files written by {@link TraceRecorder}.
+ * The file is mapped in windows of {@link TraceRecorder#MAP_CHUNK}, so traces larger than 2 GiB can be read.
+ * Reading stops at the end of the data, a truncated last record (e.g., after a crash) is ignored.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class TraceReader implements Closeable {
+  private final FileChannel file;
+  private final long size;
+  private final int version;
+  private final long wallClockMillis;
+
+  private MappedByteBuffer window;
+  private long windowOffset = 0;
+  private long offset = 0;
+
+  public TraceReader(Path path) throws IOException {
+    file = FileChannel.open(path, StandardOpenOption.READ);
+    size = file.size();
+    if (size < TraceRecorder.FILE_HEADER_LEN) {
+      file.close();
+      throw new IOException("Not a trace file: " + path);
+    }
+
+    final ByteBuffer data = map(0, TraceRecorder.FILE_HEADER_LEN);
+    if (data.getInt() != TraceRecorder.MAGIC) {
+      file.close();
+      throw new IOException("Not a trace file: " + path);
+    }
+
+    version = data.getShort() & 0xffff;
+    data.getShort();
+    wallClockMillis = data.getLong();
+    if (version != TraceRecorder.VERSION) {
+      file.close();
+      throw new IOException("Unsupported trace version: " + version);
+    }
+    offset = TraceRecorder.FILE_HEADER_LEN;
+  }
+
+  public static List<TraceRecord> readAll(Path path) throws IOException {
+    try (TraceReader reader = new TraceReader(path)) {
+      final List<TraceRecord> records = new ArrayList<>();
+      for (TraceRecord rec = reader.read(); rec != null; rec = reader.read()) {
+        records.add(rec);
+      }
+      return records;
+    }
+  }
+
+  /**
+   * Reads the next record
+   * @return record, null at the end of the trace
+   * @throws IOException if the record is malformed
+   */
+  public TraceRecord read() throws IOException {
+    if (size - offset < TraceRecorder.RECORD_HEADER_LEN) {
+      return null;
+    }
+
+    final int len = map(offset, 4).getInt();
+    if (len == 0 || len > size - offset) {
+      return null;
+    }
+    if (len < TraceRecorder.RECORD_HEADER_LEN) {
+      throw new IOException("Invalid record length " + len + " at offset " + offset);
+    }
+
+    final ByteBuffer data = map(offset, len);
+    data.getInt();
+    final int channelType = data.get() & 0xff;
+    final int flags = data.get() & 0xff;
+    final long startNanos = data.getLong();
+    final long durationNanos = data.getLong();
+    final int cmdLen = data.getInt();
+    if (cmdLen < 0 || cmdLen > data.remaining() - 4) {
+      throw new IOException("Invalid command length " + cmdLen + " at offset " + offset);
+    }
+    final byte[] command = new byte[cmdLen];
+    data.get(command);
+
+    final int respLen = data.getInt();
+    if (respLen < -1 || respLen > data.remaining()) {
+      throw new IOException("Invalid response length " + respLen + " at offset " + offset);
+    }
+    byte[] response = null;
+    if (respLen >= 0) {
+      response = new byte[respLen];
+      data.get(response);
+    }
+
+    offset += len;
+    return new TraceRecord(channelType, flags, startNanos, durationNanos, command, response);
+  }
+
+  /**
+   * Returns a buffer with len bytes at the file offset, remaps the window if it does not cover them
+   */
+  private ByteBuffer map(long off, int len) throws IOException {
+    if (window == null || off < windowOffset || off + len > windowOffset + window.capacity()) {
+      windowOffset = off;
+      window = file.map(FileChannel.MapMode.READ_ONLY, off,
+          Math.min(size - off, Math.max(len, TraceRecorder.MAP_CHUNK)));
+    }
+
+    final ByteBuffer buf = window.duplicate();
+    buf.position((int) (off - windowOffset));
+    buf.limit(buf.position() + len);
+    return buf;
+  }
+
+  public int getVersion() {
+    return version;
+  }
+
+  /**
+   * Wall clock time of the trace start, milliseconds since epoch
+   */
+  public long getWallClockMillis() {
+    return wallClockMillis;
+  }
+
+  @Override
+  public void close() throws IOException {
+    window = null;
+    file.close();
+  }
+}
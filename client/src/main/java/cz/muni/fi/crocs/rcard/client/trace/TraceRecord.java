@@ -0,0 +1,113 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import cz.muni.fi.crocs.rcard.client.CardType;
+
+import javax.smartcardio.CommandAPDU;
+import javax.smartcardio.ResponseAPDU;
+
+/**
+ * One recorded APDU exchange, see {@link TraceRecorder} for the binary format.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class TraceRecord {
+  /**
+   * Transmit failed, no response recorded
+   */
+  public static final int FLAG_ERROR = 0x01;
+
+  /**
+   * Command was transmitted with transmitAsync
+   */
+  public static final int FLAG_ASYNC = 0x02;
+
+  /**
+   * Command was part of a batch, duration is the per-command time reported by the channel
+   */
+  public static final int FLAG_BATCH = 0x04;
+
+  public static final int NO_CHANNEL_TYPE = 0xff;
+
+  protected final int channelType;
+  protected final int flags;
+  protected final long startNanos;
+  protected final long durationNanos;
+  protected final byte[] command;
+  protected final byte[] response;
+
+  public TraceRecord(int channelType, int flags, long startNanos, long durationNanos, byte[] command, byte[] response) {
+    this.channelType = channelType;
+    this.flags = flags;
+    this.startNanos = startNanos;
+    this.durationNanos = durationNanos;
+    this.command = command;
+    this.response = response;
+  }
+
+  public static int channelTypeCode(CardType type) {
+    return type == null ? NO_CHANNEL_TYPE : type.ordinal();
+  }
+
+  /**
+   * Channel type the record was captured on, null if unknown
+   */
+  public CardType getCardType() {
+    final CardType[] types = CardType.values();
+    return channelType < types.length ? types[channelType] : null;
+  }
+
+  public int getChannelType() {
+    return channelType;
+  }
+
+  public int getFlags() {
+    return flags;
+  }
+
+  public boolean isError() {
+    return (flags & FLAG_ERROR) != 0;
+  }
+
+  /**
+   * Start of the transmit in nanoseconds, relative to the trace start
+   */
+  public long getStartNanos() {
+    return startNanos;
+  }
+
+  public long getDurationNanos() {
+    return durationNanos;
+  }
+
+  public byte[] getCommand() {
+    return command;
+  }
+
+  /**
+   * Response APDU bytes, null if the transmit failed
+   */
+  public byte[] getResponse() {
+    return response;
+  }
+
+  public CommandAPDU getCommandAPDU() {
+    return new CommandAPDU(command);
+  }
+
+  public ResponseAPDU getResponseAPDU() {
+    return response == null ? null : new ResponseAPDU(response);
+  }
+
+  @Override
+  public String toString() {
+    return "TraceRecord{" +
+        "channelType=" + getCardType() +
+        ", flags=" + flags +
+        ", startNanos=" + startNanos +
+        ", durationNanos=" + durationNanos +
+        ", command=" + command.length +
+        ", response=" + (response == null ? -1 : response.length) +
+        '}';
+  }
+}
@@ -0,0 +1,308 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Binary APDU trace recorder.
+ * Records are appended to an off-heap ring buffer on the transmitting thread, a background thread flushes
+ * the ring to a memory-mapped trace file. Transmit never blocks on I/O, if the ring is full the record is dropped
+ * and counted in {@link #getDropped()}.
+ *
+ * File format, big endian:
+ * <pre>
+ * header: magic "RCTR" (4) | version (2) | reserved (2) | wall clock at start, ms (8)
+ * record: length (4) | channel type (1) | flags (1) | start ns since trace start (8) | duration ns (8)
+ *         | command length (4) | command | response length, -1 on error (4) | response
+ * </pre>
+ * Length is the total record length. File is truncated to the written data on close,
+ * after a crash the data end is marked by a zero length.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class TraceRecorder implements Closeable {
+  private final static Logger LOG = LoggerFactory.getLogger(TraceRecorder.class);
+
+  public static final int MAGIC = 0x52435452;
+  public static final int VERSION = 1;
+  public static final int FILE_HEADER_LEN = 16;
+  public static final int RECORD_HEADER_LEN = 4 + 1 + 1 + 8 + 8 + 4 + 4;
+
+  public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+  public static final long DEFAULT_FLUSH_INTERVAL_MS = 100;
+
+  /**
+   * Size of one mapped region of the trace file
+   */
+  public static final int MAP_CHUNK = 16 * 1024 * 1024;
+
+  private final Path path;
+  private final int capacity;
+  private final ByteBuffer ring;
+  private final ByteBuffer ringRead;
+  private final ByteBuffer scratch = ByteBuffer.allocate(RECORD_HEADER_LEN);
+  private final long nanoBase;
+  private final long flushIntervalNanos;
+
+  // Ring positions, monotonic. Producers write [head, tail + capacity), flusher reads [tail, head)
+  private volatile long head = 0;
+  private volatile long tail = 0;
+  private volatile long recorded = 0;
+  private volatile long dropped = 0;
+
+  private final Object drainLock = new Object();
+  private final FileChannel file;
+  private MappedByteBuffer mapped;
+  private long mappedOffset = 0;
+  private long written = 0;
+
+  private final Thread flusher;
+  private final Thread shutdownHook;
+  private volatile boolean closed = false;
+
+  public TraceRecorder(Path path) throws IOException {
+    this(path, DEFAULT_BUFFER_SIZE, DEFAULT_FLUSH_INTERVAL_MS);
+  }
+
+  /**
+   * @param path trace file, overwritten
+   * @param bufferSize off-heap ring buffer size in bytes
+   * @param flushIntervalMs how often the ring is flushed to the file
+   */
+  public TraceRecorder(Path path, int bufferSize, long flushIntervalMs) throws IOException {
+    if (bufferSize < RECORD_HEADER_LEN * 2) {
+      throw new IllegalArgumentException("Buffer too small: " + bufferSize);
+    }
+
+    this.path = path;
+    this.capacity = bufferSize;
+    this.ring = ByteBuffer.allocateDirect(bufferSize);
+    this.ringRead = ring.duplicate();
+    this.flushIntervalNanos = flushIntervalMs * 1_000_000L;
+    this.nanoBase = System.nanoTime();
+
+    file = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+        StandardOpenOption.READ, StandardOpenOption.WRITE);
+    mapped = file.map(FileChannel.MapMode.READ_WRITE, 0, MAP_CHUNK);
+    mapped.putInt(MAGIC).putShort((short) VERSION).putShort((short) 0).putLong(System.currentTimeMillis());
+    written = FILE_HEADER_LEN;
+
+    flusher = new Thread(this::flushLoop, "TraceRecorder-flusher");
+    flusher.setDaemon(true);
+    flusher.start();
+
+    shutdownHook = new Thread(() -> {
+      try {
+        close();
+      } catch (IOException e) {
+        LOG.warn("Trace close on shutdown failed", e);
+      }
+    }, "TraceRecorder-shutdown");
+    Runtime.getRuntime().addShutdownHook(shutdownHook);
+  }
+
+  /**
+   * Records one exchange.
+   * @param channelType channel type code, {@link TraceRecord#channelTypeCode}
+   * @param flags record flags, TraceRecord.FLAG_*
+   * @param startNanos System.nanoTime() at the transmit start
+   * @param durationNanos transmit duration
+   * @param command command APDU
+   * @param response response APDU, null if the transmit failed
+   * @return false if the record was dropped
+   */
+  public boolean record(int channelType, int flags, long startNanos, long durationNanos, byte[] command, byte[] response) {
+    return record(channelType, flags, startNanos, durationNanos,
+        ByteBuffer.wrap(command), response == null ? null : ByteBuffer.wrap(response));
+  }
+
+  /**
+   * Records one exchange, remaining bytes of the buffers are recorded, buffer positions are not modified.
+   */
+  public boolean record(int channelType, int flags, long startNanos, long durationNanos, ByteBuffer command, ByteBuffer response) {
+    if (closed) {
+      return false;
+    }
+
+    final int cmdLen = command.remaining();
+    final int respLen = response == null ? 0 : response.remaining();
+    final int len = RECORD_HEADER_LEN + cmdLen + respLen;
+
+    synchronized (this) {
+      long pos = head;
+      if (len > capacity - (pos - tail)) {
+        dropped += 1;
+        LockSupport.unpark(flusher);
+        return false;
+      }
+
+      scratch.clear();
+      scratch.putInt(len).put((byte) channelType).put((byte) flags)
+          .putLong(startNanos - nanoBase).putLong(durationNanos).putInt(cmdLen);
+      scratch.flip();
+      pos = put(pos, scratch);
+      pos = put(pos, command.duplicate());
+
+      scratch.clear();
+      scratch.putInt(response == null ? -1 : respLen);
+      scratch.flip();
+      pos = put(pos, scratch);
+      if (response != null) {
+        pos = put(pos, response.duplicate());
+      }
+
+      head = pos;
+      recorded += 1;
+      if (pos - tail > capacity / 2) {
+        LockSupport.unpark(flusher);
+      }
+    }
+    return true;
+  }
+
+  private long put(long pos, ByteBuffer src) {
+    while (src.hasRemaining()) {
+      final int off = (int) (pos % capacity);
+      final int n = Math.min(src.remaining(), capacity - off);
+      final ByteBuffer part = src.duplicate();
+      part.limit(part.position() + n);
+      ring.clear();
+      ring.position(off);
+      ring.put(part);
+      src.position(src.position() + n);
+      pos += n;
+    }
+    return pos;
+  }
+
+  private void flushLoop() {
+    while (!closed) {
+      LockSupport.parkNanos(this, flushIntervalNanos);
+      try {
+        drain();
+      } catch (Exception e) {
+        LOG.error("Trace flush failed, recording stopped", e);
+        closed = true;
+      }
+    }
+  }
+
+  /**
+   * Moves recorded data from the ring buffer to the mapped file
+   */
+  private void drain() throws IOException {
+    synchronized (drainLock) {
+      final long h = head;
+      long t = tail;
+      while (t < h) {
+        final int off = (int) (t % capacity);
+        final int n = (int) Math.min(h - t, capacity - off);
+        ringRead.clear();
+        ringRead.position(off);
+        ringRead.limit(off + n);
+        writeFile(ringRead);
+        t += n;
+      }
+      tail = t;
+    }
+  }
+
+  private void writeFile(ByteBuffer src) throws IOException {
+    while (src.hasRemaining()) {
+      if (!mapped.hasRemaining()) {
+        mappedOffset += mapped.capacity();
+        mapped = file.map(FileChannel.MapMode.READ_WRITE, mappedOffset, MAP_CHUNK);
+      }
+
+      final int n = Math.min(src.remaining(), mapped.remaining());
+      final ByteBuffer part = src.duplicate();
+      part.limit(part.position() + n);
+      mapped.put(part);
+      src.position(src.position() + n);
+      written += n;
+    }
+  }
+
+  /**
+   * Flushes recorded data to the file and forces the mapped pages to the storage
+   */
+  public void flush() throws IOException {
+    synchronized (drainLock) {
+      drain();
+      mapped.force();
+    }
+  }
+
+  /**
+   * Flushes remaining records and truncates the file to the written data
+   */
+  @Override
+  public synchronized void close() throws IOException {
+    if (!file.isOpen()) {
+      return;
+    }
+    if (Thread.currentThread() != shutdownHook) {
+      try {
+        Runtime.getRuntime().removeShutdownHook(shutdownHook);
+      } catch (IllegalStateException ignore) {
+        // JVM is shutting down, the hook is running
+      }
+    }
+
+    closed = true;
+    LockSupport.unpark(flusher);
+    try {
+      flusher.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+
+    synchronized (drainLock) {
+      drain();
+      mapped.force();
+      mapped = null;
+      file.truncate(written);
+      file.close();
+    }
+    LOG.debug("Trace closed, records: " + recorded + ", dropped: " + dropped + ", bytes: " + written);
+  }
+
+  public Path getPath() {
+    return path;
+  }
+
+  public long getRecorded() {
+    return recorded;
+  }
+
+  public long getDropped() {
+    return dropped;
+  }
+
+  /**
+   * Bytes written to the trace file, including the file header
+   */
+  public long getWritten() {
+    return written;
+  }
+
+  @Override
+  public String toString() {
+    return "TraceRecorder{" +
+        "path=" + path +
+        ", capacity=" + capacity +
+        ", recorded=" + recorded +
+        ", dropped=" + dropped +
+        '}';
+  }
+}
@@ -0,0 +1,225 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import cz.muni.fi.crocs.rcard.client.CardManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.ResponseAPDU;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Re-executes a recorded APDU trace against a card backend.
+ * Each worker uses its own {@link CardManager} and transmits all trace commands in order, sequentially.
+ * Responses are compared with the recorded ones, latency of each command is measured.
+ *
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class TraceReplayer {
+  private final static Logger LOG = LoggerFactory.getLogger(TraceReplayer.class);
+
+  public enum Mode {
+    /**
+     * Commands are sent at the recorded offsets from the trace start, or later if the backend is slower
+     */
+    ORIGINAL,
+
+    /**
+     * Next command is sent right after the previous response
+     */
+    FAST
+  }
+
+  protected final List<TraceRecord> records;
+  protected Mode mode = Mode.FAST;
+  protected int parallel = 1;
+  protected boolean compareSwOnly = false;
+
+  public TraceReplayer(List<TraceRecord> records) {
+    this.records = new ArrayList<>(records.size());
+    for (TraceRecord rec : records) {
+      // Failed exchanges have no response to compare with
+      if (!rec.isError()) {
+        this.records.add(rec);
+      }
+    }
+  }
+
+  /**
+   * Replays the trace with the configured number of workers.
+   * @param managerFactory creates a connected card manager for each worker
+   * @return replay report of all workers
+   */
+  public ReplayReport replay(Callable<CardManager> managerFactory) throws Exception {
+    final List<CardManager> managers = new ArrayList<>(parallel);
+    final Thread[] threads = new Thread[parallel];
+    try {
+      for (int i = 0; i < parallel; i++) {
+        managers.add(managerFactory.call());
+      }
+
+      final Worker[] workers = new Worker[parallel];
+      final CountDownLatch startLatch = new CountDownLatch(1);
+      for (int i = 0; i < parallel; i++) {
+        workers[i] = new Worker(i, managers.get(i), startLatch);
+        threads[i] = new Thread(workers[i], "TraceReplayer-" + i);
+        threads[i].start();
+      }
+
+      final long start = System.nanoTime();
+      startLatch.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      final long wall = System.nanoTime() - start;
+
+      int count = 0;
+      long errors = 0;
+      long mismatches = 0;
+      final List<ReplayReport.Mismatch> details = new ArrayList<>();
+      for (Worker worker : workers) {
+        count += worker.count;
+        errors += worker.errors;
+        mismatches += worker.mismatches;
+        for (ReplayReport.Mismatch m : worker.details) {
+          if (details.size() < ReplayReport.MAX_MISMATCH_DETAILS) {
+            details.add(m);
+          }
+        }
+      }
+
+      final long[] latencies = new long[count];
+      int off = 0;
+      for (Worker worker : workers) {
+        System.arraycopy(worker.latencies, 0, latencies, off, worker.count);
+        off += worker.count;
+      }
+      return new ReplayReport(latencies, wall, errors, mismatches, details);
+    } finally {
+      // Stops workers left running when the factory failed or join was interrupted
+      for (Thread thread : threads) {
+        if (thread != null && thread.isAlive()) {
+          thread.interrupt();
+        }
+      }
+      for (CardManager mgr : managers) {
+        try {
+          mgr.disconnect(false);
+        } catch (Exception e) {
+          LOG.debug("Disconnect failed", e);
+        }
+      }
+    }
+  }
+
+  protected boolean matches(TraceRecord rec, ResponseAPDU resp) {
+    final byte[] expected = rec.getResponse();
+    final byte[] actual = resp.getBytes();
+    if (!compareSwOnly) {
+      return Arrays.equals(expected, actual);
+    }
+    return expected.length >= 2
+        && expected[expected.length - 2] == actual[actual.length - 2]
+        && expected[expected.length - 1] == actual[actual.length - 1];
+  }
+
+  class Worker implements Runnable {
+    final int id;
+    final CardManager mgr;
+    final CountDownLatch startLatch;
+    final long[] latencies = new long[records.size()];
+    final List<ReplayReport.Mismatch> details = new ArrayList<>();
+    int count = 0;
+    long errors = 0;
+    long mismatches = 0;
+
+    Worker(int id, CardManager mgr, CountDownLatch startLatch) {
+      this.id = id;
+      this.mgr = mgr;
+      this.startLatch = startLatch;
+    }
+
+    @Override
+    public void run() {
+      try {
+        startLatch.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+
+      final long traceStart = records.isEmpty() ? 0 : records.get(0).getStartNanos();
+      final long start = System.nanoTime();
+      for (int i = 0; i < records.size() && !Thread.currentThread().isInterrupted(); i++) {
+        final TraceRecord rec = records.get(i);
+        if (mode == Mode.ORIGINAL) {
+          final long wait = (rec.getStartNanos() - traceStart) - (System.nanoTime() - start);
+          if (wait > 0) {
+            LockSupport.parkNanos(wait);
+          }
+        }
+
+        final ResponseAPDU resp;
+        final long cmdStart = System.nanoTime();
+        try {
+          resp = mgr.transmit(rec.getCommandAPDU());
+        } catch (CardException | RuntimeException e) {
+          errors += 1;
+          LOG.debug("Replay of command " + i + " failed", e);
+          continue;
+        }
+        latencies[count++] = System.nanoTime() - cmdStart;
+
+        if (!matches(rec, resp)) {
+          mismatches += 1;
+          if (details.size() < ReplayReport.MAX_MISMATCH_DETAILS) {
+            details.add(new ReplayReport.Mismatch(id, i, rec.getCommand(), rec.getResponse(), resp.getBytes()));
+          }
+        }
+      }
+    }
+  }
+
+  public List<TraceRecord> getRecords() {
+    return records;
+  }
+
+  public Mode getMode() {
+    return mode;
+  }
+
+  public TraceReplayer setMode(Mode mode) {
+    this.mode = mode;
+    return this;
+  }
+
+  public int getParallel() {
+    return parallel;
+  }
+
+  public TraceReplayer setParallel(int parallel) {
+    if (parallel < 1) {
+      throw new IllegalArgumentException("Parallel must be at least 1");
+    }
+    this.parallel = parallel;
+    return this;
+  }
+
+  public boolean isCompareSwOnly() {
+    return compareSwOnly;
+  }
+
+  /**
+   * Compares status words only, for cards with nondeterministic response data (random, signatures)
+   */
+  public TraceReplayer setCompareSwOnly(boolean compareSwOnly) {
+    this.compareSwOnly = compareSwOnly;
+    return this;
+  }
+}
@@ -0,0 +1,147 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import org.junit.Test;
+
+import javax.smartcardio.CommandAPDU;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class MutableApduTest {
+  private static final byte[] DATA = {1, 2, 3, 4, 5};
+
+  @Test
+  public void shortCases() {
+    assertCase(MutableApdu.CASE_1, new CommandAPDU(0x00, 0xa4, 0x04, 0x00));
+    assertCase(MutableApdu.CASE_2S, new CommandAPDU(0x00, 0xb0, 0x00, 0x00, 256));
+    assertCase(MutableApdu.CASE_2S, new CommandAPDU(0x00, 0xb0, 0x00, 0x00, 17));
+    assertCase(MutableApdu.CASE_3S, new CommandAPDU(0x00, 0xa4, 0x04, 0x00, DATA));
+    assertCase(MutableApdu.CASE_4S, new CommandAPDU(0x00, 0xa4, 0x04, 0x00, DATA, 256));
+    assertCase(MutableApdu.CASE_4S, new CommandAPDU(0x00, 0xa4, 0x04, 0x00, DATA, 1));
+    assertCase(MutableApdu.CASE_3S, new CommandAPDU(0x00, 0xd6, 0x00, 0x00, new byte[255]));
+  }
+
+  @Test
+  public void extendedCases() {
+    assertCase(MutableApdu.CASE_2E, new CommandAPDU(0x00, 0xb0, 0x00, 0x00, 65536));
+    assertCase(MutableApdu.CASE_2E, new CommandAPDU(0x00, 0xb0, 0x00, 0x00, 257));
+    assertCase(MutableApdu.CASE_3E, new CommandAPDU(0x00, 0xd6, 0x00, 0x00, new byte[256]));
+    assertCase(MutableApdu.CASE_4E, new CommandAPDU(0x00, 0x2a, 0x9e, 0x9a, new byte[300], 65536));
+    assertCase(MutableApdu.CASE_4E, new CommandAPDU(0x00, 0x2a, 0x9e, 0x9a, DATA, 1000));
+    assertCase(MutableApdu.CASE_3E, new CommandAPDU(0x00, 0xd6, 0x00, 0x00, new byte[65535]));
+  }
+
+  @Test
+  public void malformed() {
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04});
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x05, 0x01});
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x01, 0x01, 0x00, 0x00});
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x00, 0x00});
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x00, 0x00, 0x00, 0x01});
+    assertInvalid(new byte[]{0x00, (byte) 0xa4, 0x04, 0x00, 0x00, 0x00, 0x02, 0x01});
+  }
+
+  /**
+   * Random APDUs are valid or invalid for both parsers, valid ones are parsed the same way
+   */
+  @Test
+  public void matchesCommandApdu() {
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 20000; i++) {
+      final byte[] apdu = new byte[4 + rnd.nextInt(12)];
+      rnd.nextBytes(apdu);
+      if (apdu.length > 4 && rnd.nextBoolean()) {
+        apdu[4] = (byte) (apdu.length > 7 && rnd.nextBoolean() ? 0 : apdu.length - 5 - rnd.nextInt(2));
+      }
+      if (apdu.length > 6 && apdu[4] == 0 && rnd.nextBoolean()) {
+        apdu[5] = 0;
+        apdu[6] = (byte) (apdu.length - 7 - 2 * rnd.nextInt(2));
+      }
+
+      CommandAPDU cmd = null;
+      try {
+        cmd = new CommandAPDU(apdu);
+      } catch (IllegalArgumentException ignored) {
+        // invalid for both
+      }
+
+      final MutableApdu mut = new MutableApdu().set(apdu);
+      if (cmd == null) {
+        try {
+          mut.parseCommand();
+          fail("Accepted invalid APDU " + mut.toHex());
+        } catch (IllegalArgumentException ignored) {
+          // expected
+        }
+      } else {
+        mut.parseCommand();
+        assertParsed(cmd, mut);
+      }
+    }
+  }
+
+  @Test
+  public void fixCase1Le() {
+    final MutableApdu mut = MutableApdu.of(new CommandAPDU(0x00, 0xa4, 0x04, 0x00)).parseCommand();
+    assertTrue(mut.fixCase1Le());
+    assertEquals(MutableApdu.CASE_2S, mut.getCase());
+    assertEquals(256, mut.getNe());
+    assertEquals(MutableApdu.CASE_2S, MutableApdu.of(mut.toCommandAPDU()).parseCommand().getCase());
+    assertFalse(mut.fixCase1Le());
+  }
+
+  @Test
+  public void hexAndBuffers() {
+    final MutableApdu mut = new MutableApdu(4).setHex("00a40400 05 0102030405");
+    assertEquals("00a40400050102030405", mut.toHex());
+    mut.parseCommand();
+    assertEquals(MutableApdu.CASE_3S, mut.getCase());
+    assertArrayEquals(new CommandAPDU(0x00, 0xa4, 0x04, 0x00, DATA).getBytes(), mut.getBytes());
+
+    final ByteBuffer resp = mut.responseBuffer(258);
+    resp.put(DATA).put((byte) 0x90).put((byte) 0x00);
+    mut.setLength(resp.position());
+    assertEquals(0x9000, mut.getSW());
+    assertArrayEquals(DATA, mut.toResponseAPDU().getData());
+  }
+
+  private static void assertCase(int apduCase, CommandAPDU cmd) {
+    final MutableApdu mut = MutableApdu.of(cmd).parseCommand();
+    assertEquals(apduCase, mut.getCase());
+    assertEquals(apduCase >= MutableApdu.CASE_2E, mut.isExtended());
+    assertParsed(cmd, mut);
+  }
+
+  private static void assertParsed(CommandAPDU cmd, MutableApdu mut) {
+    assertEquals(cmd.getCLA(), mut.getCla());
+    assertEquals(cmd.getINS(), mut.getIns());
+    assertEquals(cmd.getP1(), mut.getP1());
+    assertEquals(cmd.getP2(), mut.getP2());
+    assertEquals(cmd.getNc(), mut.getNc());
+    assertEquals(cmd.getNe(), mut.getNe());
+    assertArrayEquals(cmd.getData(),
+        Arrays.copyOfRange(mut.getBuffer(), mut.getDataOffset(), mut.getDataOffset() + mut.getNc()));
+    assertArrayEquals(cmd.getBytes(), mut.toCommandAPDU().getBytes());
+  }
+
+  private static void assertInvalid(byte[] apdu) {
+    try {
+      new CommandAPDU(apdu);
+      fail("CommandAPDU accepted " + Arrays.toString(apdu));
+    } catch (IllegalArgumentException ignored) {
+      // expected
+    }
+    try {
+      new MutableApdu().set(apdu).parseCommand();
+      fail("MutableApdu accepted " + Arrays.toString(apdu));
+    } catch (IllegalArgumentException ignored) {
+      // expected
+    }
+  }
+}
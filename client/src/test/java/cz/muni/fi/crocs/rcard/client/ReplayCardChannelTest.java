@@ -0,0 +1,152 @@
+package cz.muni.fi.crocs.rcard.client;
+
+import cz.muni.fi.crocs.rcard.client.trace.TraceRecord;
+import org.apache.commons.codec.binary.Hex;
+import org.junit.Test;
+
+import javax.smartcardio.CardException;
+import javax.smartcardio.CommandAPDU;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class ReplayCardChannelTest {
+  private static final byte[] HEADER_MASK = {(byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff};
+
+  private static TraceRecord rec(String cmd, String resp) throws Exception {
+    return new TraceRecord(0, 0, 0, 0, Hex.decodeHex(cmd), resp == null ? null : Hex.decodeHex(resp));
+  }
+
+  private static String send(ReplayCardChannel channel, String cmd) throws Exception {
+    return Hex.encodeHexString(channel.transmit(new CommandAPDU(Hex.decodeHex(cmd))).getBytes());
+  }
+
+  @Test
+  public void exactMatch() throws Exception {
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(
+        rec("0001000000", "019000"),
+        rec("0002000000", "029000")), null, false);
+
+    assertEquals("029000", send(channel, "0002000000"));
+    assertEquals("019000", send(channel, "0001000000"));
+    assertEquals(2, channel.getDistinctCommands());
+    assertSame(channel, channel.getCard().getBasicChannel());
+    assertSame(channel, channel.getCard().openLogicalChannel());
+  }
+
+  @Test
+  public void repeatedCommandCycles() throws Exception {
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(
+        rec("0001000000", "019000"),
+        rec("0001000000", "029000")), null, false);
+
+    assertEquals("019000", send(channel, "0001000000"));
+    assertEquals("029000", send(channel, "0001000000"));
+    assertEquals("019000", send(channel, "0001000000"));
+
+    send(channel, "0001000000");
+    channel.reset();
+    assertEquals("019000", send(channel, "0001000000"));
+  }
+
+  @Test
+  public void failedRecordsSkipped() throws Exception {
+    final TraceRecord failed = new TraceRecord(0, TraceRecord.FLAG_ERROR, 0, 0, Hex.decodeHex("0001000000"), null);
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(failed, rec("0001000000", "019000")), null, false);
+    assertEquals("019000", send(channel, "0001000000"));
+    assertEquals("019000", send(channel, "0001000000"));
+  }
+
+  @Test
+  public void missCounted() throws Exception {
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(rec("0001000000", "019000")), null, false);
+    try {
+      send(channel, "0001000001");
+      fail("Unrecorded command answered");
+    } catch (CardException e) {
+      assertTrue(e.getMessage().contains("0001000001"));
+    }
+    assertEquals(1, channel.getMisses());
+  }
+
+  /**
+   * Header mask matches commands with any data and any length
+   */
+  @Test
+  public void headerMask() throws Exception {
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(
+        rec("0020000004aabbccdd", "9000"),
+        rec("00b0000000", "019000")), HEADER_MASK, false);
+
+    assertEquals("9000", send(channel, "0020000004aabbccdd"));
+    assertEquals("9000", send(channel, "0020000002eeff"));
+    assertEquals("9000", send(channel, "0020000000"));
+    assertEquals("019000", send(channel, "00b00000ff"));
+    try {
+      send(channel, "0020000104aabbccdd");
+      fail("Masked header differs");
+    } catch (CardException e) {
+      assertEquals(1, channel.getMisses());
+    }
+  }
+
+  /**
+   * Exact match wins over the masked one
+   */
+  @Test
+  public void exactBeforeMask() throws Exception {
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(
+        rec("0020000001aa", "019000"),
+        rec("0020000001bb", "029000")), HEADER_MASK, false);
+
+    assertEquals("029000", send(channel, "0020000001bb"));
+    assertEquals("029000", send(channel, "0020000001bb"));
+    assertEquals("019000", send(channel, "0020000001cc"));
+  }
+
+  @Test
+  public void partialMask() throws Exception {
+    final byte[] mask = Hex.decodeHex("fffffff0ff");
+    final ReplayCardChannel channel = new ReplayCardChannel(Arrays.asList(rec("0022000301aa", "9000")), mask, false);
+    assertEquals("9000", send(channel, "002200050199"));
+    try {
+      send(channel, "002200130199");
+      fail("Masked P2 differs");
+    } catch (CardException ignored) {
+      // expected
+    }
+  }
+
+  @Test
+  public void applyMask() throws Exception {
+    final ByteBuffer cmd = ByteBuffer.wrap(Hex.decodeHex("ff0020000001aa"));
+    cmd.position(1);
+    assertArrayEquals(Hex.decodeHex("00200000"), ReplayCardChannel.applyMask(cmd, HEADER_MASK));
+    assertArrayEquals(Hex.decodeHex("002000"), ReplayCardChannel.applyMask(ByteBuffer.wrap(Hex.decodeHex("002000")), HEADER_MASK));
+    assertEquals(1, cmd.position());
+  }
+
+  @Test
+  public void bufferTransmit() throws Exception {
+    final List<TraceRecord> records = Arrays.asList(rec("0020000002aabb", "019000"));
+    final ReplayCardChannel channel = new ReplayCardChannel(records, HEADER_MASK, false);
+
+    final ByteBuffer command = ByteBuffer.wrap(Hex.decodeHex("ee0020000002aabb"));
+    command.position(1);
+    final ByteBuffer response = ByteBuffer.allocate(258);
+    assertEquals(3, channel.transmit(command, response));
+    assertFalse(command.hasRemaining());
+    assertArrayEquals(Hex.decodeHex("019000"), Arrays.copyOf(response.array(), 3));
+
+    command.position(1);
+    command.put(5, (byte) 0x01).limit(7);
+    response.clear();
+    assertEquals(3, channel.transmit(command, response));
+  }
+}
@@ -0,0 +1,180 @@
+package cz.muni.fi.crocs.rcard.client.protocols;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class CardFrameTest {
+  private static final byte[] APDU = {0x00, (byte) 0xa4, 0x04, 0x00, 0x02, 0x01, 0x02};
+
+  @Test
+  public void roundTrip() throws IOException {
+    final CardFrame frame = new CardFrame(CardFrame.ACTION_SEND, 0x01020304, CardFrame.TARGET_SIM, 513, APDU);
+    frame.setFlags(CardFrame.FLAG_AUTO_RESPONSE | CardFrame.FLAG_CHAINING);
+    frame.setSession("session-1");
+
+    final byte[] data = frame.encode();
+    assertEquals(frame.encodedLength(), data.length);
+
+    final CardFrame dec = CardFrame.decode(data);
+    assertEquals(CardFrame.ACTION_SEND, dec.getAction());
+    assertEquals(CardFrame.FLAG_AUTO_RESPONSE | CardFrame.FLAG_CHAINING, dec.getFlags());
+    assertEquals(0x01020304, dec.getRid());
+    assertEquals(CardFrame.TARGET_SIM, dec.getTarget());
+    assertEquals(513, dec.getIdx());
+    assertEquals(0, dec.getResult());
+    assertEquals("session-1", dec.getSession());
+    assertArrayEquals(APDU, dec.getPayload());
+  }
+
+  @Test
+  public void roundTripEmpty() throws IOException {
+    final CardFrame dec = CardFrame.decode(new CardFrame(CardFrame.ACTION_PING, 7, CardFrame.TARGET_CARD, 0, null).encode());
+    assertEquals(CardFrame.ACTION_PING, dec.getAction());
+    assertNull(dec.getSession());
+    assertEquals(0, dec.getPayload().length);
+  }
+
+  @Test
+  public void errorResponse() throws IOException {
+    final CardFrame req = new CardFrame(CardFrame.ACTION_SEND, 42, CardFrame.TARGET_CARD, 1, APDU);
+    req.setFlags(CardFrame.FLAG_DEFLATE | CardFrame.FLAG_CHAINING);
+    final CardFrame dec = CardFrame.decode(req.errorResponse(-3, "boom").encode());
+    assertEquals(42, dec.getRid());
+    assertEquals(-3, dec.getResult());
+    assertEquals(CardFrame.FLAG_CHAINING, dec.getFlags());
+    assertEquals("boom", dec.payloadString());
+  }
+
+  @Test
+  public void decodeConsecutiveFrames() throws IOException {
+    final CardFrame a = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU);
+    final CardFrame b = new CardFrame(CardFrame.ACTION_ATR, 2, CardFrame.TARGET_CARD, 0, null);
+    final ByteBuffer buf = ByteBuffer.allocate(a.encodedLength() + b.encodedLength());
+    a.encode(buf);
+    b.encode(buf);
+    buf.flip();
+
+    assertEquals(1, CardFrame.decode(buf).getRid());
+    assertEquals(2, CardFrame.decode(buf).getRid());
+    assertFalse(buf.hasRemaining());
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeTooShort() throws IOException {
+    CardFrame.decode(new byte[CardFrame.LENGTH_LEN + CardFrame.HEADER_LEN - 1]);
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeTruncated() throws IOException {
+    final byte[] data = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU).encode();
+    CardFrame.decode(Arrays.copyOf(data, data.length - 1));
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeLengthBelowHeader() throws IOException {
+    final byte[] data = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU).encode();
+    ByteBuffer.wrap(data).putInt(CardFrame.HEADER_LEN - 1);
+    CardFrame.decode(data);
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeLengthOverMax() throws IOException {
+    final byte[] data = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU).encode();
+    ByteBuffer.wrap(data).putInt(CardFrame.MAX_FRAME_LEN + 1);
+    CardFrame.decode(data);
+  }
+
+  @Test(expected = IOException.class)
+  public void decodeSessionOverFrame() throws IOException {
+    final byte[] data = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU).encode();
+    data[CardFrame.LENGTH_LEN + CardFrame.HEADER_LEN - 1] = (byte) (APDU.length + 1);
+    CardFrame.decode(data);
+  }
+
+  @Test
+  public void decodeHeaderOfMalformed() {
+    final byte[] data = new CardFrame(CardFrame.ACTION_SELECT, 99, CardFrame.TARGET_POOL, 3, APDU).encode();
+    ByteBuffer.wrap(data).putInt(CardFrame.MAX_FRAME_LEN + 1);
+    final ByteBuffer buf = ByteBuffer.wrap(data);
+
+    final CardFrame hdr = CardFrame.decodeHeader(buf);
+    assertEquals(CardFrame.ACTION_SELECT, hdr.getAction());
+    assertEquals(99, hdr.getRid());
+    assertEquals(CardFrame.TARGET_POOL, hdr.getTarget());
+    assertEquals(3, hdr.getIdx());
+    assertEquals(0, buf.position());
+    assertNull(CardFrame.decodeHeader(ByteBuffer.wrap(new byte[8])));
+  }
+
+  @Test
+  public void batchRoundTrip() throws IOException {
+    final List<byte[]> apdus = Arrays.asList(APDU, new byte[]{0x00, (byte) 0xb0, 0x00, 0x00}, new byte[0]);
+    final List<byte[]> dec = CardFrame.decodeBatch(CardFrame.encodeBatch(apdus));
+    assertEquals(3, dec.size());
+    for (int i = 0; i < apdus.size(); i++) {
+      assertArrayEquals(apdus.get(i), dec.get(i));
+    }
+
+    final long[] times = {10, 20, Long.MAX_VALUE};
+    final long[] decTimes = new long[3];
+    final List<byte[]> resp = CardFrame.decodeBatchResponse(CardFrame.encodeBatchResponse(apdus, times), decTimes);
+    assertEquals(3, resp.size());
+    assertArrayEquals(APDU, resp.get(0));
+    assertArrayEquals(times, decTimes);
+  }
+
+  @Test(expected = IOException.class)
+  public void batchResponseTruncated() throws IOException {
+    final byte[] payload = CardFrame.encodeBatchResponse(Arrays.asList(APDU), new long[]{1});
+    CardFrame.decodeBatchResponse(Arrays.copyOf(payload, payload.length - 1), null);
+  }
+
+  @Test(expected = IOException.class)
+  public void batchItemOverPayload() throws IOException {
+    final byte[] payload = CardFrame.encodeBatch(Arrays.asList(APDU));
+    ByteBuffer.wrap(payload).putInt(APDU.length + 1);
+    CardFrame.decodeBatch(payload);
+  }
+
+  @Test
+  public void compressionRoundTrip() throws IOException {
+    final byte[] payload = new byte[4096];
+    final CardFrame frame = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, payload.clone());
+    assertTrue(frame.compressPayload(256));
+    assertTrue((frame.getFlags() & CardFrame.FLAG_DEFLATE) != 0);
+    assertTrue(frame.getPayload().length < payload.length);
+
+    final CardFrame dec = CardFrame.decode(frame.encode());
+    dec.decompressPayload();
+    assertArrayEquals(payload, dec.getPayload());
+    assertEquals(0, dec.getFlags() & CardFrame.FLAG_DEFLATE);
+  }
+
+  @Test(expected = IOException.class)
+  public void inflateTruncated() throws IOException {
+    final byte[] compressed = CardFrame.deflate(new byte[4096]);
+    CardFrame.inflate(Arrays.copyOf(compressed, compressed.length / 2), CardFrame.MAX_FRAME_LEN);
+  }
+
+  @Test(expected = IOException.class)
+  public void inflateOverLimit() throws IOException {
+    CardFrame.inflate(CardFrame.deflate(new byte[4096]), 1024);
+  }
+
+  @Test
+  public void smallPayloadNotCompressed() {
+    final CardFrame frame = new CardFrame(CardFrame.ACTION_SEND, 1, CardFrame.TARGET_CARD, 0, APDU);
+    assertFalse(frame.compressPayload(256));
+    assertArrayEquals(APDU, frame.getPayload());
+  }
+}
@@ -0,0 +1,124 @@
+package cz.muni.fi.crocs.rcard.client.stats;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class LatencyHistogramTest {
+
+  @Test
+  public void bucketIndexSmallValues() {
+    for (int i = 0; i < LatencyHistogram.SUB_BUCKETS; i++) {
+      assertEquals(i, LatencyHistogram.bucketIndex(i));
+      assertEquals(i, LatencyHistogram.bucketUpperBound(i));
+    }
+    assertEquals(LatencyHistogram.SUB_BUCKETS, LatencyHistogram.bucketIndex(LatencyHistogram.SUB_BUCKETS));
+  }
+
+  /**
+   * Buckets are contiguous, each value falls into the bucket it is bounded by
+   */
+  @Test
+  public void bucketBounds() {
+    long lower = 0;
+    for (int i = 0; i < LatencyHistogram.NUM_BUCKETS; i++) {
+      final long upper = LatencyHistogram.bucketUpperBound(i);
+      assertTrue("bucket " + i, upper >= lower);
+      assertEquals(i, LatencyHistogram.bucketIndex(lower));
+      assertEquals(i, LatencyHistogram.bucketIndex(upper));
+      if (upper == Long.MAX_VALUE) {
+        assertEquals(LatencyHistogram.NUM_BUCKETS - 1, i);
+        break;
+      }
+      lower = upper + 1;
+    }
+    assertEquals(Long.MAX_VALUE, LatencyHistogram.bucketUpperBound(LatencyHistogram.NUM_BUCKETS - 1));
+  }
+
+  @Test
+  public void bucketPrecision() {
+    final Random rnd = new Random(42);
+    for (int i = 0; i < 100000; i++) {
+      final long value = (rnd.nextLong() >>> 1) >>> rnd.nextInt(63);
+      final long upper = LatencyHistogram.bucketUpperBound(LatencyHistogram.bucketIndex(value));
+      assertTrue(upper >= value);
+      assertTrue("value " + value, upper - value <= value / LatencyHistogram.SUB_BUCKETS);
+    }
+  }
+
+  @Test
+  public void percentiles() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    for (int i = 1; i <= 1000; i++) {
+      histogram.record(i * 1000L);
+    }
+
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getCount());
+    assertEquals(1000, snapshot.getMin());
+    assertEquals(1000_000, snapshot.getMax());
+    assertEquals(500_500.0, snapshot.getMean(), 0.001);
+    assertPercentile(500_000, snapshot.getPercentile(50));
+    assertPercentile(990_000, snapshot.getPercentile(99));
+    assertPercentile(1000, snapshot.getPercentile(0));
+    assertEquals(1000_000, snapshot.getPercentile(100));
+  }
+
+  @Test
+  public void percentileCappedByMax() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(1000);
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(1000, snapshot.getPercentile(50));
+    assertEquals(1000, snapshot.getPercentile(99.9));
+  }
+
+  @Test
+  public void emptyAndNegative() {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(0, snapshot.getCount());
+    assertEquals(0, snapshot.getMin());
+    assertEquals(0, snapshot.getPercentile(99));
+    assertEquals(0.0, snapshot.getMean(), 0.0);
+
+    histogram.record(-5);
+    snapshot = histogram.snapshot();
+    assertEquals(1, snapshot.getCount());
+    assertEquals(0, snapshot.getMax());
+    assertEquals(0, snapshot.getPercentile(50));
+  }
+
+  @Test
+  public void concurrentRecording() throws InterruptedException {
+    final LatencyHistogram histogram = new LatencyHistogram();
+    final Thread[] threads = new Thread[4];
+    for (int t = 0; t < threads.length; t++) {
+      threads[t] = new Thread(() -> {
+        for (int i = 0; i < 100000; i++) {
+          histogram.record(i);
+        }
+      });
+      threads[t].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+
+    final LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+    assertEquals(400000, snapshot.getCount());
+    assertEquals(0, snapshot.getMin());
+    assertEquals(99999, snapshot.getMax());
+  }
+
+  private static void assertPercentile(long expected, long actual) {
+    assertTrue("expected ~" + expected + ", got " + actual,
+        actual >= expected && actual - expected <= expected / LatencyHistogram.SUB_BUCKETS);
+  }
+}
@@ -0,0 +1,161 @@
+package cz.muni.fi.crocs.rcard.client.trace;
+
+import cz.muni.fi.crocs.rcard.client.CardType;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * @author Dusan Klinec ph4r05@gmail.com
+ * Source: CRoCS Card project, https://github.com/ph4r05/remote-card
+ */
+public class TraceRecorderTest {
+  private static final byte[] CMD = {0x00, (byte) 0xa4, 0x04, 0x00, 0x02, 0x01, 0x02};
+  private static final byte[] RESP = {0x01, 0x02, (byte) 0x90, 0x00};
+
+  private Path path;
+
+  @Before
+  public void setUp() throws IOException {
+    path = Files.createTempFile("rcard", ".trace");
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    Files.deleteIfExists(path);
+  }
+
+  @Test
+  public void roundTrip() throws IOException {
+    final int type = TraceRecord.channelTypeCode(CardType.JCARDSIMLOCAL);
+    final long start = System.nanoTime();
+    final long written;
+    try (TraceRecorder recorder = new TraceRecorder(path)) {
+      assertTrue(recorder.record(type, 0, start, 1000, CMD, RESP));
+      assertTrue(recorder.record(type, TraceRecord.FLAG_ERROR, start + 10, 2000, CMD, null));
+      assertTrue(recorder.record(TraceRecord.NO_CHANNEL_TYPE, TraceRecord.FLAG_BATCH, start + 20, 3000,
+          ByteBuffer.wrap(new byte[4]), ByteBuffer.allocate(2)));
+      recorder.close();
+      assertEquals(3, recorder.getRecorded());
+      assertEquals(0, recorder.getDropped());
+      written = recorder.getWritten();
+    }
+    assertEquals(written, Files.size(path));
+
+    final List<TraceRecord> records = TraceReader.readAll(path);
+    assertEquals(3, records.size());
+
+    final TraceRecord ok = records.get(0);
+    assertEquals(CardType.JCARDSIMLOCAL, ok.getCardType());
+    assertFalse(ok.isError());
+    assertEquals(1000, ok.getDurationNanos());
+    assertArrayEquals(CMD, ok.getCommand());
+    assertArrayEquals(RESP, ok.getResponse());
+
+    final TraceRecord err = records.get(1);
+    assertTrue(err.isError());
+    assertNull(err.getResponse());
+    assertEquals(10, err.getStartNanos() - ok.getStartNanos());
+
+    final TraceRecord batch = records.get(2);
+    assertNull(batch.getCardType());
+    assertEquals(TraceRecord.FLAG_BATCH, batch.getFlags());
+    assertArrayEquals(new byte[4], batch.getCommand());
+    assertArrayEquals(new byte[2], batch.getResponse());
+  }
+
+  /**
+   * Trace spans several mapped regions, records cross the region boundaries
+   */
+  @Test
+  public void largeTrace() throws IOException {
+    final byte[] cmd = new byte[261];
+    final long recorded;
+    try (TraceRecorder recorder = new TraceRecorder(path, 1024 * 1024, 10)) {
+      for (int i = 0; recorder.getWritten() < TraceRecorder.MAP_CHUNK + TraceRecorder.MAP_CHUNK / 2; i++) {
+        cmd[0] = (byte) i;
+        if (!recorder.record(0, 0, System.nanoTime(), i, cmd, RESP)) {
+          recorder.flush();
+        }
+      }
+      recorder.close();
+      recorded = recorder.getRecorded();
+    }
+
+    long count = 0;
+    try (TraceReader reader = new TraceReader(path)) {
+      for (TraceRecord rec = reader.read(); rec != null; rec = reader.read()) {
+        assertEquals(cmd.length, rec.getCommand().length);
+        assertArrayEquals(RESP, rec.getResponse());
+        count += 1;
+      }
+    }
+    assertEquals(recorded, count);
+  }
+
+  /**
+   * Trace not closed, e.g., after a crash, ends with the zero-filled rest of the mapped region
+   */
+  @Test
+  public void unclosedTrace() throws IOException {
+    try (TraceRecorder recorder = new TraceRecorder(path)) {
+      recorder.record(0, 0, System.nanoTime(), 1, CMD, RESP);
+      recorder.record(0, 0, System.nanoTime(), 2, CMD, RESP);
+      recorder.flush();
+
+      assertTrue(Files.size(path) > recorder.getWritten());
+      final List<TraceRecord> records = TraceReader.readAll(path);
+      assertEquals(2, records.size());
+      assertEquals(2, records.get(1).getDurationNanos());
+    }
+  }
+
+  @Test
+  public void truncatedLastRecord() throws IOException {
+    try (TraceRecorder recorder = new TraceRecorder(path)) {
+      recorder.record(0, 0, System.nanoTime(), 1, CMD, RESP);
+      recorder.record(0, 0, System.nanoTime(), 2, CMD, RESP);
+    }
+
+    final byte[] data = Files.readAllBytes(path);
+    Files.write(path, Arrays.copyOf(data, data.length - 1));
+    assertEquals(1, TraceReader.readAll(path).size());
+  }
+
+  @Test
+  public void malformedRecord() throws IOException {
+    try (TraceRecorder recorder = new TraceRecorder(path)) {
+      recorder.record(0, 0, System.nanoTime(), 1, CMD, RESP);
+      recorder.record(0, 0, System.nanoTime(), 2, CMD, RESP);
+    }
+
+    // Command length of the second record over the record length
+    final byte[] data = Files.readAllBytes(path);
+    final int second = TraceRecorder.FILE_HEADER_LEN + TraceRecorder.RECORD_HEADER_LEN + CMD.length + RESP.length;
+    ByteBuffer.wrap(data).putInt(second + 22, 1000);
+    Files.write(path, data);
+
+    try (TraceReader reader = new TraceReader(path)) {
+      assertNotNull(reader.read());
+      reader.read();
+      fail("Malformed record accepted");
+    } catch (IOException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("offset " + second));
+    }
+  }
+
+  @Test(expected = IOException.class)
+  public void notTrace() throws IOException {
+    Files.write(path, new byte[64]);
+    TraceReader.readAll(path);
+  }
+}
@@ -0,0 +1,119 @@
+package cz.muni.fi.crocs.rcard.replay
+
+import com.github.ajalt.clikt.core.CliktCommand
+import com.github.ajalt.clikt.parameters.arguments.argument
+import com.github.ajalt.clikt.parameters.options.default
+import com.github.ajalt.clikt.parameters.options.flag
+import com.github.ajalt.clikt.parameters.options.option
+import com.github.ajalt.clikt.parameters.types.choice
+import com.github.ajalt.clikt.parameters.types.int
+import cz.muni.fi.crocs.rcard.client.CardManager
+import cz.muni.fi.crocs.rcard.client.CardType
+import cz.muni.fi.crocs.rcard.client.RunConfig
+import cz.muni.fi.crocs.rcard.client.trace.TraceReader
+import cz.muni.fi.crocs.rcard.client.trace.TraceReplayer
+import javacard.framework.Applet
+import org.apache.commons.codec.binary.Hex
+import org.slf4j.LoggerFactory
+import java.nio.file.Paths
+import java.util.concurrent.Callable
+import kotlin.system.exitProcess
+
+/**
+ * Replays a recorded APDU trace against a card backend, reports latency percentiles and response mismatches.
+ *
+ * Trace is recorded by the client with RunConfig.traceFile, see TraceRecorder.
+ * Modes: original - keeps recorded timing, fast - commands back-to-back.
+ * With --parallel N, N workers replay the whole trace concurrently, each on its own card connection.
+ */
+open class TraceReplay : CliktCommand(name = "replay") {
+    private val logger = LoggerFactory.getLogger(javaClass)
+
+    val traceFile: String by argument("TRACE", help = "Trace file to replay")
+    val cardType: String by option("--card-type", "-t",
+        help = "Card backend")
+        .choice("physical", "jcardsim", "remote", "remote-tcp", "vsmartcard")
+        .default("physical")
+    val readerIdx: Int by option("--reader-idx", "-r",
+        help = "Reader index, remote reader index for remote cards")
+        .int().default(0)
+    val remoteEndpoint: String? by option("--remote-card",
+        help = "Remote card server address, VICC host for vsmartcard")
+    val remoteType: String by option("--remote-type",
+        help = "Remote reader type, card or sim")
+        .default("card")
+    val viccPort: Int by option("--vicc-port",
+        help = "VICC port for vsmartcard")
+        .int().default(35963)
+    val appletClass: String? by option("--applet",
+        help = "Applet class to simulate with jcardsim, has to be on the classpath")
+    val aid: String? by option("--aid",
+        help = "Applet AID to select after connect, hex")
+    val mode: String by option("--mode", "-m",
+        help = "Replay timing, original or fast")
+        .choice("original", "fast")
+        .default("fast")
+    val parallel: Int by option("--parallel", "-n",
+        help = "Number of parallel workers, each replays the whole trace")
+        .int().default(1)
+    val swOnly: Boolean by option("--sw-only",
+        help = "Compare status words only, for nondeterministic responses")
+        .flag(default = false)
+    val failOnMismatch: Boolean by option("--fail-on-mismatch",
+        help = "Exit with non-zero code on errors or mismatches")
+        .flag(default = false)
+
+    override fun run() {
+        val records = TraceReader.readAll(Paths.get(traceFile))
+        logger.info("Replaying ${records.size} records from $traceFile, mode: $mode, parallel: $parallel")
+
+        val replayer = TraceReplayer(records)
+            .setMode(if (mode == "original") TraceReplayer.Mode.ORIGINAL else TraceReplayer.Mode.FAST)
+            .setParallel(parallel)
+            .setCompareSwOnly(swOnly)
+
+        val report = replayer.replay(Callable { connect() })
+        println(report)
+
+        if (failOnMismatch && (report.errors > 0 || report.mismatches > 0)) {
+            exitProcess(1)
+        }
+    }
+
+    open fun runConfig(): RunConfig {
+        return RunConfig.getDefaultConfig().apply {
+            targetReaderIndex = readerIdx
+            aid = this@TraceReplay.aid?.let { Hex.decodeHex(it) }
+            when (cardType) {
+                "physical" -> {
+                    testCardType = CardType.PHYSICAL
+                }
+                "jcardsim" -> {
+                    testCardType = CardType.JCARDSIMLOCAL
+                    @Suppress("UNCHECKED_CAST")
+                    appletToSimulate = Class.forName(appletClass ?: throw RuntimeException("--applet is required for jcardsim")) as Class<out Applet>
+                }
+                "remote", "remote-tcp" -> {
+                    testCardType = if (cardType == "remote") CardType.REMOTE else CardType.REMOTE_TCP
+                    remoteAddress = remoteEndpoint ?: throw RuntimeException("--remote-card is required")
+                    remoteCardType = if ("sim" == remoteType) CardType.JCARDSIMLOCAL else CardType.PHYSICAL
+                }
+                "vsmartcard" -> {
+                    testCardType = CardType.VSMARTCARD
+                    remoteAddress = remoteEndpoint
+                    remoteViccPort = viccPort
+                }
+            }
+        }
+    }
+
+    open fun connect(): CardManager {
+        val mgr = CardManager(false, null)
+        if (!mgr.connect(runConfig())) {
+            throw RuntimeException("Could not connect to the card")
+        }
+        return mgr
+    }
+}
+
+fun main(args: Array<String>) = TraceReplay().main(args)
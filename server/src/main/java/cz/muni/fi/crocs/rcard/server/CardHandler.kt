@@ -1,19 +1,29 @@
 package cz.muni.fi.crocs.rcard.server
 
+import com.beust.klaxon.JsonArray
 import com.beust.klaxon.JsonObject
+import cz.muni.fi.crocs.rcard.client.ApduPool
+import cz.muni.fi.crocs.rcard.client.ApduTransmitter
+import cz.muni.fi.crocs.rcard.client.AutoResponse
 import cz.muni.fi.crocs.rcard.client.CardManager
 import cz.muni.fi.crocs.rcard.client.CardType
+import cz.muni.fi.crocs.rcard.client.CommandChaining
+import cz.muni.fi.crocs.rcard.client.ExtendedApdu
+import cz.muni.fi.crocs.rcard.client.MutableApdu
 import cz.muni.fi.crocs.rcard.client.RunConfig
-import cz.muni.fi.crocs.rcard.common.byteToInt
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame
+import cz.muni.fi.crocs.rcard.common.runNoExc
 import io.vertx.core.Vertx
 import io.vertx.core.logging.LoggerFactory
 import io.vertx.kotlin.coroutines.dispatcher
 import kotlinx.coroutines.*
-import org.bouncycastle.util.Arrays
 import org.bouncycastle.util.encoders.Hex
+import java.util.Arrays
 import java.util.concurrent.ConcurrentHashMap
 import java.util.concurrent.Executors
+import java.util.concurrent.ThreadPoolExecutor
 import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicReference
 import javax.smartcardio.CommandAPDU
 import javax.smartcardio.ResponseAPDU
 import kotlin.coroutines.CoroutineContext
@@ -22,9 +32,99 @@ import kotlin.coroutines.CoroutineContext
  * Card type - physical / sim
  * Idx - card reader index. Physical cards - real card index, simulator - registered shared sim instances
  * key - session card instances, simulators created for given instance
+ * replica - replica of the farmed simulator, see getSimFarm
  */
-data class CardConnectorIdx(val ctype: CardType, val idx: Int, val key: String? = null)
-data class CardConnectorHolder(val connector: CardManager)
+data class CardConnectorIdx(val ctype: CardType, val idx: Int, val key: String? = null, val replica: Int = 0)
+/**
+ * Lifecycle of the card in the registry.
+ * creating - manager is being created, callers of the card await it
+ * ready - manager is created, card is not connected
+ * connected - card is connected, see openNew
+ * failed - manager creation failed, next caller creates the manager again
+ * evicted - card was removed from the registry, callers resolve the card again
+ */
+enum class CardState { CREATING, READY, CONNECTED, FAILED, EVICTED }
+
+/**
+ * Card manager with its serial lane. All operations of one card run on the lane in the order of submission,
+ * lanes of different cards run in parallel.
+ * Holder is registered before the manager is created, the manager is created once, by the first caller of the card.
+ */
+class CardConnectorHolder(val lane: CoroutineDispatcher) {
+    private val stateRef = AtomicReference(CardState.CREATING)
+    private val created = CompletableDeferred<Unit>()
+    @Volatile private var manager: CardManager? = null
+
+    val state: CardState get() = stateRef.get()
+    val isCreated: Boolean get() = manager != null
+    val connector: CardManager get() = manager ?: throw IllegalStateException("Card manager is not created")
+    /** Card accepts extended length APDUs, otherwise APDUs are converted to the short form */
+    @Volatile var extendedLength: Boolean = true
+    /** Requests waiting for or executing on the card */
+    val inFlight = AtomicInteger(0)
+    /** Fair scheduling of the requests on the lane */
+    val scheduler = CardScheduler()
+    /** Last access time in milliseconds, for session simulators eviction */
+    @Volatile var lastUsed: Long = System.currentTimeMillis()
+    /** Applet selected on the farmed simulator replica, null if unknown, accessed on the lane, see syncReplica */
+    var selectedAid: ByteArray? = null
+
+    fun onCreated(mgr: CardManager) {
+        manager = mgr
+        stateRef.set(CardState.READY)
+        created.complete(Unit)
+    }
+
+    fun onFailed(e: Throwable) {
+        stateRef.set(CardState.FAILED)
+        created.completeExceptionally(e)
+    }
+
+    fun onConnected(connected: Boolean) {
+        stateRef.compareAndSet(if (connected) CardState.READY else CardState.CONNECTED,
+            if (connected) CardState.CONNECTED else CardState.READY)
+    }
+
+    /**
+     * Waits for the manager creation, creation failure is rethrown
+     */
+    suspend fun awaitCreated() {
+        created.await()
+    }
+
+    /**
+     * Marks the holder evicted if created, returns the previous state or null if not evictable
+     */
+    fun markEvicted(): CardState? {
+        while (true) {
+            val current = stateRef.get()
+            if (current != CardState.READY && current != CardState.CONNECTED) {
+                return null
+            }
+            if (stateRef.compareAndSet(current, CardState.EVICTED)) {
+                return current
+            }
+        }
+    }
+
+    fun unmarkEvicted(previous: CardState) {
+        stateRef.compareAndSet(CardState.EVICTED, previous)
+    }
+}
+
+/**
+ * Per-request transmit options.
+ * autoResponse - handle 61xx (GET RESPONSE) and 6Cxx (Le retry) next to the card, return the final response
+ * chaining - split commands too long for the card with command chaining, return the final response
+ * priority, flow, weight - fair scheduling of the request on the card, see CardScheduler
+ */
+data class SendOptions(
+    val autoResponse: Boolean = false,
+    val chaining: Boolean = false,
+    val priority: Priority = Priority.INTERACTIVE,
+    val flow: String = "",
+    val weight: Int = 1
+)
 
 open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
     private val logger = LoggerFactory.getLogger(javaClass)
@@ -32,22 +132,36 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
     private var cscope: CoroutineScope = CoroutineScope(app.coroutineContext + SupervisorJob())
 
     private val globalCtx = vertx.dispatcher() + SupervisorJob()
-    private val workExecutor = Executors.newFixedThreadPool(app.workerThreads)
-    private val workerCtx = workExecutor.asCoroutineDispatcher() + SupervisorJob()
+
+    // Card lanes share an elastic pool, threads are created for concurrently busy cards only
+    private val laneThreadIdx = AtomicInteger(0)
+    private val laneExecutor = Executors.newCachedThreadPool { r ->
+        Thread(r, "CardLane-${laneThreadIdx.incrementAndGet()}").apply { isDaemon = true }
+    }
+    private val laneDispatcher = laneExecutor.asCoroutineDispatcher()
 
     // TODO: multiple simulators? register sims for multiple card readers indices, same principle. Just needs API to do the registration?
-    // TODO: non-persistent sims? on the connection? Add session ID -> user-specific. Created on the fly, no sharing.
     private val currentConnections = AtomicInteger(0)
     private val cardsMap = ConcurrentHashMap<CardConnectorIdx, CardConnectorHolder>()
+    private val readerPool: ReaderPool? by lazy { newReaderPool() }
+    val metrics: ServerMetrics by lazy { newMetrics() }
+    private val simFarms = ConcurrentHashMap<Int, ReaderPool>()
+    private val farmSelected = ConcurrentHashMap<Int, ByteArray>()
+    private val trustedClients: Set<String> by lazy {
+        app.schedTrusted?.split(",")?.map { it.trim() }?.filter { it.isNotEmpty() }?.toSet() ?: emptySet()
+    }
+    private var sessionSweeper: Long? = null
 
-    @Suppress("unused")
-    suspend fun <T> onGlobalCtx(runner: suspend CoroutineScope.() -> T): T {
-        return withContext(globalCtx, runner)
+    init {
+        if (app.maxSimSessions > 0 && app.simSessionIdle > 0) {
+            val period = (app.simSessionIdle * 1000 / 4).coerceIn(1_000L, 60_000L)
+            sessionSweeper = vertx.setPeriodic(period) { evictIdleSessions() }
+        }
     }
 
     @Suppress("unused")
-    suspend fun <T> onWorkerCtx(runner: suspend CoroutineScope.() -> T): T {
-        return withContext(workerCtx, runner)
+    suspend fun <T> onGlobalCtx(runner: suspend CoroutineScope.() -> T): T {
+        return withContext(globalCtx, runner)
     }
 
     @Suppress("unused")
@@ -60,6 +174,13 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
         return launch(globalCtx, CoroutineStart.DEFAULT) { supervisorScope { runner.invoke(this) } }
     }
 
+    /**
+     * Thread pools of the handler, for metrics
+     */
+    open fun executors(): Map<String, ThreadPoolExecutor> {
+        return mapOf("lane" to laneExecutor as ThreadPoolExecutor)
+    }
+
     open fun numClients(): Int {
         return currentConnections.get()
     }
@@ -73,28 +194,218 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
     }
 
     open fun reset(key: CardConnectorIdx) {
-        getMgr(key).disconnect(true)
+        disconnect(key, true)
     }
 
     open fun disconnect(key: CardConnectorIdx, reset: Boolean) {
-        getMgr(key).disconnect(reset)
+        val holder = getHolder(key)
+        try {
+            holder.connector.disconnect(reset)
+        } finally {
+            holder.onConnected(false)
+        }
     }
 
     /**
-     * Resolves card manager by the given key.
-     * Current implementation stores managers in a simple map.
-     * In order to support card simulators generated on the fly per session, improve this logic (with entry expiration)
+     * Card manager of the resolved card, for the code running on the card lane, see getHolder.
+     * Managers are stored in a map, session simulators (key with session) are evicted
+     * when idle or when the session limit is reached, see evictIdleSessions.
      */
     open fun getMgr(key: CardConnectorIdx): CardManager {
-        synchronized(cardsMap) {
-            cardsMap[key]?.let { return it.connector }
+        return getHolder(key).connector
+    }
+
+    /**
+     * Number of requests waiting for or executing on the card
+     */
+    open fun inFlight(key: CardConnectorIdx): Int {
+        return cardsMap[key]?.inFlight?.get() ?: 0
+    }
+
+    /**
+     * Runs the card operation on the card lane, counted as in flight for the card.
+     * Operations of one card are executed one by one, in the fair order of the card scheduler.
+     * The card is resolved before the operation runs, so the operation can use getMgr and getHolder.
+     * @param units number of APDUs of the operation, scheduling cost
+     * @param action operation name for metrics
+     */
+    open suspend fun <T> onCardCtx(key: CardConnectorIdx, opts: SendOptions = sendOptions(), units: Int = 1,
+                                   action: String = "card", runner: suspend CoroutineScope.() -> T): T {
+        val stats = metrics.action(key, action)
+        val submitted = System.nanoTime()
+        stats.requests.increment()
+        var holder = awaitHolder(key)
+        holder.inFlight.incrementAndGet()
+        // Eviction marks the holder before checking requests in flight, evicted holder is not used
+        while (holder.state == CardState.EVICTED) {
+            holder.inFlight.decrementAndGet()
+            yield()
+            holder = awaitHolder(key)
+            holder.inFlight.incrementAndGet()
+        }
+        try {
+            return holder.scheduler.submit(opts.flow, opts.priority, opts.weight, units) {
+                withContext(holder.lane) {
+                    val started = System.nanoTime()
+                    stats.queue.record(started - submitted)
+                    try {
+                        supervisorScope { runner.invoke(this) }
+                    } finally {
+                        stats.execution.record(System.nanoTime() - started)
+                    }
+                }
+            }
+        } catch (e: CancellationException) {
+            throw e
+        } catch (e: Exception) {
+            stats.errors.increment()
+            holder.selectedAid = null
+            app.onCardFailure(key, e)
+            throw e
+        } finally {
+            holder.inFlight.decrementAndGet()
+        }
+    }
+
+    /**
+     * Holder of the resolved card, for the code running on the card lane (see onCardCtx), where the card
+     * is resolved and cannot be evicted. Neither blocks nor creates the card, use awaitHolder elsewhere.
+     */
+    open fun getHolder(key: CardConnectorIdx): CardConnectorHolder {
+        val holder = cardsMap[key]?.takeIf { it.isCreated } ?: throw IllegalStateException("Card is not resolved: $key")
+        holder.lastUsed = System.currentTimeMillis()
+        return holder
+    }
 
-            val mgr = onCreateManager(key) ?: throw RuntimeException("Card manager creation failed")
-            cardsMap[key] = CardConnectorHolder(mgr)
-            return mgr
+    /**
+     * Resolves the card holder without blocking the caller, the manager is created on the lane of the card.
+     * Lookup of a registered card does not lock, callers of a card being created wait for that card only.
+     */
+    open suspend fun awaitHolder(key: CardConnectorIdx): CardConnectorHolder {
+        while (true) {
+            val holder = cardsMap[key] ?: register(key)?.also { withContext(it.lane) { create(key, it) } } ?: continue
+            holder.awaitCreated()
+            if (holder.state == CardState.EVICTED) {
+                yield()
+                continue
+            }
+            holder.lastUsed = System.currentTimeMillis()
+            return holder
         }
     }
 
+    /**
+     * Lifecycle state of the card, null if not registered
+     */
+    open fun state(key: CardConnectorIdx): CardState? {
+        return cardsMap[key]?.state
+    }
+
+    /**
+     * Registers a new holder for the card, null if another caller registered the card first
+     */
+    protected open fun register(key: CardConnectorIdx): CardConnectorHolder? {
+        val holder = CardConnectorHolder(newLane(key))
+        return if (cardsMap.putIfAbsent(key, holder) == null) holder else null
+    }
+
+    /**
+     * Creates the manager of the registered holder, failed holder is unregistered so the next caller retries
+     */
+    protected open fun create(key: CardConnectorIdx, holder: CardConnectorHolder) {
+        try {
+            if (key.key != null) {
+                makeRoomForSession(key)
+            }
+            holder.onCreated(onCreateManager(key) ?: throw RuntimeException("Card manager creation failed"))
+        } catch (e: Exception) {
+            cardsMap.remove(key, holder)
+            holder.onFailed(e)
+            throw e
+        }
+    }
+
+    /**
+     * Number of live session simulators
+     */
+    open fun numSessions(): Int {
+        return cardsMap.keys.count { it.key != null }
+    }
+
+    /**
+     * Evicts the least recently used idle session simulator if the session limit is reached.
+     * The new session is already registered. Limit is not exact under concurrent session creation.
+     */
+    protected open fun makeRoomForSession(key: CardConnectorIdx) {
+        val sessions = cardsMap.entries.filter { it.key.key != null && it.key != key && it.value.state != CardState.EVICTED }
+        if (sessions.size < app.maxSimSessions) {
+            return
+        }
+
+        val lru = sessions.filter { it.value.inFlight.get() == 0 && it.value.state != CardState.CREATING }
+            .minByOrNull { it.value.lastUsed }
+        if (lru == null) {
+            // Limit may be exceeded while sessions are created concurrently
+            if (sessions.any { it.value.state == CardState.CREATING }) {
+                return
+            }
+            throw RuntimeException("Too many simulator sessions")
+        }
+        evict(lru.key, lru.value)
+    }
+
+    /**
+     * Simulator worker drops the disconnected session simulator, so its memory is released. Sessions of the worker
+     * are managed by the server that started it, which disconnects the session on its eviction.
+     */
+    protected open fun onDisconnected(key: CardConnectorIdx) {
+        if (app.simWorker && key.key != null) {
+            cardsMap[key]?.let { evict(key, it) }
+        }
+    }
+
+    /**
+     * Evicts session simulators without a request for simSessionIdle seconds
+     */
+    open fun evictIdleSessions() {
+        val deadline = System.currentTimeMillis() - app.simSessionIdle * 1000
+        cardsMap.entries
+            .filter { it.key.key != null && it.value.lastUsed < deadline && it.value.inFlight.get() == 0 }
+            .forEach { evict(it.key, it.value) }
+    }
+
+    /**
+     * Removes the manager from the registry and disconnects it, simulator memory is released with the manager.
+     * Card with requests in flight is not evicted. Disconnect may be a remote round trip (see SimWorkerPool),
+     * it runs on the card lane, not on the caller thread, which may be the event loop.
+     */
+    protected open fun evict(key: CardConnectorIdx, holder: CardConnectorHolder) {
+        val previous = holder.markEvicted() ?: return
+        if (holder.inFlight.get() > 0) {
+            holder.unmarkEvicted(previous)
+            return
+        }
+        if (!cardsMap.remove(key, holder)) {
+            return
+        }
+        logger.info("Evicting session simulator ${key.key} index ${key.idx}")
+        cscope.launch(holder.lane) {
+            runNoExc {
+                if (holder.connector.isConnected) {
+                    holder.connector.disconnect(true)
+                }
+            }
+        }
+    }
+
+    /**
+     * Serial lane for the card operations
+     */
+    @OptIn(ExperimentalCoroutinesApi::class)
+    open fun newLane(@Suppress("UNUSED_PARAMETER") key: CardConnectorIdx): CoroutineDispatcher {
+        return laneDispatcher.limitedParallelism(1)
+    }
+
     /**
      * Creates a new card manager, override for
      */
@@ -125,13 +436,272 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
         configureCard(key, mgr, cfg)
         app.configureCard(key, mgr, cfg)
 
+        val holder = getHolder(key)
+        holder.onConnected(false)
+        holder.selectedAid = null
         mgr.connect(cfg)
+        holder.extendedLength = detectExtendedLength(key, mgr)
+        holder.onConnected(true)
+    }
+
+    /**
+     * Determines whether the connected card accepts extended length APDUs
+     */
+    open fun detectExtendedLength(key: CardConnectorIdx, mgr: CardManager): Boolean {
+        return when (app.extendedLength) {
+            "on" -> true
+            "off" -> false
+            else -> key.ctype == CardType.JCARDSIMLOCAL || ExtendedApdu.supportedByAtr(mgr.atr()) ?: false
+        }
+    }
+
+    /**
+     * Adapts the command to the card capabilities, extended APDUs are converted to the short form if needed
+     */
+    open fun adaptApdu(key: CardConnectorIdx, cmd: CommandAPDU): CommandAPDU {
+        if (!ExtendedApdu.isExtended(cmd) || getHolder(key).extendedLength) {
+            return cmd
+        }
+        return ExtendedApdu.toShort(cmd)
     }
 
     open fun send(key: CardConnectorIdx, cmd: CommandAPDU): ResponseAPDU {
         return getMgr(key).transmit(cmd)
     }
 
+    open fun send(key: CardConnectorIdx, cmd: CommandAPDU, opts: SendOptions): ResponseAPDU {
+        if (isFarmed(key)) {
+            return sendReplica(key, cmd) { sendDirect(key, cmd, opts) }
+        }
+        return sendDirect(key, cmd, opts)
+    }
+
+    protected open fun sendDirect(key: CardConnectorIdx, cmd: CommandAPDU, opts: SendOptions): ResponseAPDU {
+        val transmitter = if (opts.autoResponse) {
+            ApduTransmitter { AutoResponse.transmit({ c -> send(key, c) }, it) }
+        } else {
+            ApduTransmitter { send(key, it) }
+        }
+
+        if (opts.chaining && needsChaining(key, cmd)) {
+            return CommandChaining.transmit(transmitter, cmd)
+        }
+        return transmitter.transmit(adaptApdu(key, cmd))
+    }
+
+    /**
+     * Pooled binary path, the command is passed to the card channel as a buffer, without javax.smartcardio objects.
+     * Falls back to the CommandAPDU path if the command is processed on the server
+     * (auto response, chaining or conversion to the short form).
+     */
+    open fun send(key: CardConnectorIdx, cmd: MutableApdu, resp: MutableApdu, opts: SendOptions) {
+        cmd.parseCommand()
+        if (opts.autoResponse || (cmd.isExtended && !getHolder(key).extendedLength)
+            || (isFarmed(key) && isSelectByAid(cmd.cla, cmd.ins, cmd.p1))) {
+            resp.set(send(key, cmd.toCommandAPDU(), opts).bytes)
+            return
+        }
+        if (isFarmed(key)) {
+            syncReplica(key)
+        }
+        getMgr(key).transmit(cmd, resp)
+    }
+
+    /**
+     * Replicas of the farmed simulator follow the applet selection of the shared simulator, as a single
+     * simulator would: successful SELECT by AID is recorded for the farm, a replica with another applet selected
+     * gets the SELECT replayed before its next command. Other applet state is not replicated.
+     */
+    protected open fun sendReplica(key: CardConnectorIdx, cmd: CommandAPDU, sender: () -> ResponseAPDU): ResponseAPDU {
+        if (!isSelectByAid(cmd.cla, cmd.ins, cmd.p1)) {
+            syncReplica(key)
+            return sender()
+        }
+
+        val holder = getHolder(key)
+        holder.selectedAid = null
+        val resp = sender()
+        if (resp.sw == 0x9000) {
+            holder.selectedAid = cmd.data
+            farmSelected[key.idx] = cmd.data
+        }
+        return resp
+    }
+
+    /**
+     * Selects the applet last selected on the farm, if the replica has another one selected. Called on the lane.
+     */
+    protected open fun syncReplica(key: CardConnectorIdx) {
+        val aid = farmSelected[key.idx] ?: return
+        val holder = getHolder(key)
+        if (Arrays.equals(holder.selectedAid, aid)) {
+            return
+        }
+
+        val resp = getMgr(key).transmit(CommandAPDU(0x00, 0xa4, 0x04, 0x00, aid))
+        holder.selectedAid = if (resp.sw == 0x9000) aid else null
+    }
+
+    protected open fun isSelectByAid(cla: Int, ins: Int, p1: Int): Boolean {
+        return (cla and 0x80) == 0 && ins == 0xa4 && p1 == 0x04
+    }
+
+    /**
+     * Runs the block with command and response buffers from the pool, buffers are returned afterwards
+     */
+    suspend fun <T> withApdus(block: suspend (cmd: MutableApdu, resp: MutableApdu) -> T): T {
+        val pool = apduPool()
+        val cmd = pool.acquire()
+        val resp = pool.acquire()
+        try {
+            return block(cmd, resp)
+        } finally {
+            pool.release(cmd)
+            pool.release(resp)
+        }
+    }
+
+    open fun apduPool(): ApduPool {
+        return ApduPool.shared()
+    }
+
+    /**
+     * Command data does not fit into one APDU the card accepts
+     */
+    open fun needsChaining(key: CardConnectorIdx, cmd: CommandAPDU): Boolean {
+        return !ExtendedApdu.fitsShort(cmd) && !getHolder(key).extendedLength
+    }
+
+    /**
+     * Transmit options requested by the client, server defaults otherwise
+     */
+    open fun sendOptions(autoResponse: Boolean? = null, chaining: Boolean? = null, priority: Priority? = null,
+                         flow: String? = null, weight: Int? = null): SendOptions {
+        return SendOptions(
+            autoResponse = autoResponse ?: app.autoResponse,
+            chaining = chaining ?: app.commandChaining,
+            priority = priority ?: Priority.INTERACTIVE,
+            flow = flow ?: "",
+            weight = weight ?: 1)
+    }
+
+    /**
+     * Client may request the admin priority and raised weights, see --sched-trusted
+     * @param host remote address of the client connection
+     */
+    open fun isTrustedClient(host: String?): Boolean {
+        return host != null && host in trustedClients
+    }
+
+    /**
+     * Scheduling flow of the untrusted client, one per remote address, so the client cannot take a larger share
+     * of the card by rotating flow names or opening more connections
+     */
+    open fun untrustedFlow(host: String?): String {
+        return "addr:${host ?: "?"}"
+    }
+
+    /**
+     * Removes scheduling privileges the client is not allowed to request from the request fields.
+     * Untrusted clients cannot raise their share of the card: admin priority is lowered to interactive,
+     * weight is the default one and the flow is given by the remote address, see untrustedFlow.
+     * @param host remote address of the client connection
+     */
+    open fun restrictSched(req: MutableMap<String, Any?>, trusted: Boolean, host: String?) {
+        if (trusted) {
+            return
+        }
+        if (Priority.parse(req["priority"] as? String) == Priority.ADMIN) {
+            req["priority"] = Priority.INTERACTIVE.name.lowercase()
+        }
+        req.remove("weight")
+        req["client"] = untrustedFlow(host)
+    }
+
+    /**
+     * Scheduling flow is the client field, set by the transport to the connection if missing, or csess.
+     * Transport restricts the scheduling fields of untrusted clients, see restrictSched.
+     */
+    open fun sendOptions(req: JsonObject): SendOptions {
+        return sendOptions(req.boolean("auto_response"), req.boolean("chaining"), Priority.parse(req.string("priority")),
+            req.string("client") ?: req.string("csess"), req.int("weight"))
+    }
+
+    /**
+     * @param client scheduling flow of the connection the frame was received on, the connection for trusted
+     *               clients, used if the frame has no session, the remote address otherwise, see untrustedFlow
+     * @param trusted client may request the admin priority and choose the flow by the session, see isTrustedClient
+     */
+    open fun sendOptions(req: CardFrame, client: String? = null, trusted: Boolean = false): SendOptions {
+        val priority = when {
+            req.flags and CardFrame.FLAG_PRIORITY_ADMIN != 0 -> if (trusted) Priority.ADMIN else Priority.INTERACTIVE
+            req.flags and CardFrame.FLAG_PRIORITY_BATCH != 0 -> Priority.BATCH
+            else -> null
+        }
+        return sendOptions(
+            if (req.flags and CardFrame.FLAG_AUTO_RESPONSE != 0) true else null,
+            if (req.flags and CardFrame.FLAG_CHAINING != 0) true else null,
+            priority,
+            if (trusted) req.session?.takeIf { it.isNotBlank() } ?: client else client)
+    }
+
+    /**
+     * Optional protocol features supported by the server, advertised to the clients.
+     */
+    open fun features(): List<String> {
+        return listOf(FEATURE_FRAMES, FEATURE_APDU_RAW, FEATURE_BATCH, FEATURE_AUTO_RESPONSE, FEATURE_CHAINING,
+            FEATURE_COMPRESSION)
+    }
+
+    open fun newMetrics(): ServerMetrics {
+        return ServerMetrics()
+    }
+
+    /**
+     * Reader pool of the pool target, null if not configured
+     */
+    open fun newReaderPool(): ReaderPool? {
+        val readers = app.poolReaders ?: return null
+        val ctype = targetToCardType(app.poolType)
+        return ReaderPool(this, ReaderPool.parseReaders(readers).map { CardConnectorIdx(ctype, it) },
+            PoolPredicate(app.poolAtr, app.poolAid), app.poolSessionTimeout)
+    }
+
+    /**
+     * Simulator farm of the reader index, null if simulators are not replicated.
+     * Farm is a pool of identical simulator replicas, each replica has its own lane, so requests
+     * without a session run on multiple cores, least busy replica first. Applet selection is replayed
+     * to the replicas (see sendReplica), other replica state is not shared, farm thus suits stateless
+     * or read-mostly applets.
+     */
+    open fun getSimFarm(idx: Int): ReaderPool? {
+        if (app.simReplicas <= 1) {
+            return null
+        }
+        return simFarms.computeIfAbsent(idx) { newSimFarm(it) }
+    }
+
+    open fun newSimFarm(idx: Int): ReaderPool {
+        logger.info("Creating simulator farm for index $idx with ${app.simReplicas} replicas")
+        val replicas = (0 until app.simReplicas).map { CardConnectorIdx(CardType.JCARDSIMLOCAL, idx, null, it) }
+        return ReaderPool(this, replicas, sessionTimeout = app.simSessionIdle)
+    }
+
+    /**
+     * Farmed simulators are connected by the farm, client connect and disconnect only manage the affinity
+     */
+    open fun isFarmed(key: CardConnectorIdx): Boolean {
+        return key.ctype == CardType.JCARDSIMLOCAL && key.key == null && app.simReplicas > 1
+    }
+
+    open fun getPool(): ReaderPool {
+        return readerPool ?: throw RuntimeException("Reader pool is not configured")
+    }
+
+    open fun isPoolTarget(target: String?): Boolean {
+        return TARGET_POOL.equals(target, true)
+    }
+
     /**
      * Preinitialize card managers - create simulator instances, for example
      */
@@ -163,21 +733,34 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
                 return resp
             }
             "reset" -> {
-                reset(getTarget(req))
+                val target = getTarget(req)
+                onCardCtx(target, sendOptions(req), action = "reset") { reset(target) }
                 return resp
             }
             "disconnect" -> {
-                disconnect(getTarget(req), req.boolean("reset") ?: true)
+                if (isPoolTarget(req.string("target"))) {
+                    getPool().release(req.string("csess"))
+                } else {
+                    val target = getTarget(req)
+                    if (isFarmed(target)) {
+                        getSimFarm(target.idx)?.release(req.string("csess"))
+                    } else {
+                        onCardCtx(target, sendOptions(req), action = "disconnect") { disconnect(target, req.boolean("reset") ?: true) }
+                        onDisconnected(target)
+                    }
+                }
                 return resp
             }
             "connect" -> {
+                resp["features"] = features()
                 return onConnect(req, resp)
             }
             "is_connected" -> {
-                val mgr = getMgr(getTarget(req))
+                val mgr = awaitHolder(getTarget(req)).connector
                 val isCon = mgr.isConnected
                 resp["connected"] = isCon
                 resp["num_connections"] = currentConnections.get()
+                resp["features"] = features()
                 resp["ctype"] = when(mgr.lastChannelType){
                     CardType.JCARDSIMLOCAL -> "sim"
                     CardType.PHYSICAL -> "card"
@@ -186,10 +769,12 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
                 return resp
             }
             "atr" -> {
-                resp["atr"] = getMgr(getTarget(req)).atr()?.bytes?.let { Hex.toHexString(it) }
+                val target = getTarget(req)
+                resp["atr"] = onCardCtx(target, sendOptions(req), action = "atr") { getMgr(target).atr()?.bytes?.let { Hex.toHexString(it) } }
             }
             "protocol" -> {
-                resp["protocol"] = getMgr(getTarget(req)).protocol()
+                val target = getTarget(req)
+                resp["protocol"] = onCardCtx(target, sendOptions(req), action = "protocol") { getMgr(target).protocol() }
             }
             "send" -> {
                 return onSend(req, resp)
@@ -197,6 +782,9 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
             "select" -> {  // sugar
                 return onSelect(req, resp)
             }
+            "batch" -> {
+                return onBatch(req, resp)
+            }
             else -> {
                 logger.info("Unknown action: $action")
                 resp["error"] = "UnknownAction"
@@ -207,6 +795,102 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
         return resp
     }
 
+    /**
+     * Binary client entry point, processes request frame, returns response frame.
+     * Same semantics as actionHandler, without JSON and hex encoding.
+     * Compressed request payload is decompressed, response payload is compressed if the client accepts it.
+     * @param client scheduling flow of the connection the frame was received on, see sendOptions
+     * @param trusted client may request the admin priority, see isTrustedClient
+     */
+    open suspend fun frameHandler(req: CardFrame, client: String? = null, trusted: Boolean = false): CardFrame {
+        val resp = try {
+            req.decompressPayload()
+            frameAction(req, client, trusted)
+        } catch (e: Exception) {
+            logger.error("Invalid card frame", e)
+            req.errorResponse(-1, "Invalid frame: ${e.localizedMessage}")
+        }
+
+        if (req.flags and CardFrame.FLAG_ACCEPT_DEFLATE != 0) {
+            resp.compressPayload(app.compressThreshold)
+        }
+        return resp
+    }
+
+    open suspend fun frameAction(req: CardFrame, client: String? = null, trusted: Boolean = false): CardFrame {
+        val opts = sendOptions(req, client, trusted)
+        try {
+            return when (val action = req.action) {
+                CardFrame.ACTION_PING, CardFrame.ACTION_AUTH -> {
+                    req.response(0, null)
+                }
+                CardFrame.ACTION_SEND -> {
+                    withApdus { cmd, resp ->
+                        cmd.set(req.payload ?: throw RuntimeException("No APDU payload"))
+                        txmitRaw(getTarget(req), cmd, resp, opts)
+                        req.response(0, resp.bytes)
+                    }
+                }
+                CardFrame.ACTION_SELECT -> {
+                    val cmd = CommandAPDU(0x00, 0xa4, 0x04, 0x00, req.payload ?: throw RuntimeException("No AID payload"))
+                    req.response(0, txmitRaw(getTarget(req), cmd, opts).bytes)
+                }
+                CardFrame.ACTION_BATCH -> {
+                    val cmds = CardFrame.decodeBatch(req.payload ?: byteArrayOf()).map { parseApdu(it) }
+                    val results = txmitBatch(getTarget(req), cmds, opts)
+                    req.response(0, CardFrame.encodeBatchResponse(
+                        results.map { it.first.bytes }, results.map { it.second }.toLongArray()))
+                }
+                CardFrame.ACTION_CONNECT -> {
+                    val ckey = getTarget(req)
+                    if (req.target != CardFrame.TARGET_POOL && !isFarmed(ckey)) {
+                        logger.info("Opening a new card connection to ${ckey.ctype} index ${ckey.idx}")
+                        onCardCtx(ckey, opts, action = "connect") { openNew(ckey) }
+                    }
+                    req.response(0, null)
+                }
+                CardFrame.ACTION_DISCONNECT -> {
+                    if (req.target == CardFrame.TARGET_POOL) {
+                        getPool().release(req.session)
+                    } else {
+                        val target = getTarget(req)
+                        if (isFarmed(target)) {
+                            getSimFarm(target.idx)?.release(req.session)
+                        } else {
+                            onCardCtx(target, opts, action = "disconnect") { disconnect(target, req.payloadFlag(true)) }
+                            onDisconnected(target)
+                        }
+                    }
+                    req.response(0, null)
+                }
+                CardFrame.ACTION_RESET -> {
+                    val target = getTarget(req)
+                    onCardCtx(target, opts, action = "reset") { reset(target) }
+                    req.response(0, null)
+                }
+                CardFrame.ACTION_IS_CONNECTED -> {
+                    val isCon = awaitHolder(getTarget(req)).connector.isConnected
+                    req.response(0, byteArrayOf(if (isCon) 1 else 0))
+                }
+                CardFrame.ACTION_ATR -> {
+                    val target = getTarget(req)
+                    req.response(0, onCardCtx(target, opts, action = "atr") { getMgr(target).atr()?.bytes })
+                }
+                CardFrame.ACTION_PROTOCOL -> {
+                    val target = getTarget(req)
+                    req.response(0, onCardCtx(target, opts, action = "protocol") { getMgr(target).protocol()?.toByteArray() })
+                }
+                else -> {
+                    logger.info("Unknown frame action: $action")
+                    req.errorResponse(-1, "UnknownAction")
+                }
+            }
+        } catch (e: Exception) {
+            logger.error("Exception during executing card frame", e)
+            return req.errorResponse(-2, "Exception during execution: ${e.localizedMessage}")
+        }
+    }
+
     open fun targetToCardType(target: String): CardType {
         return when {
             "sim".equals(target, true) -> {
@@ -221,48 +905,143 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
         }
     }
 
-    open fun getTarget(req: JsonObject): CardConnectorIdx {
-        val target = req["target"] as? String ?: "card"
-        val idx = if (app.allowPickReader) (req["idx"] as? Int) ?: 0 else 0
+    open suspend fun getTarget(req: JsonObject): CardConnectorIdx {
+        val predicate = if (req.containsKey("pool_atr") || req.containsKey("pool_aid")) {
+            PoolPredicate(req.string("pool_atr"), req.string("pool_aid"))
+        } else null
+        return getTarget(req["target"] as? String ?: "card", req["idx"] as? Int, req["csess"] as? String, predicate)
+    }
+
+    open suspend fun getTarget(req: CardFrame): CardConnectorIdx {
+        val target = when (req.target) {
+            CardFrame.TARGET_SIM -> "sim"
+            CardFrame.TARGET_POOL -> TARGET_POOL
+            else -> "card"
+        }
+        return getTarget(target, req.idx, req.session)
+    }
+
+    /**
+     * Resolves the request target. Pool target is resolved to the reader picked by the pool,
+     * the reader index of the request is ignored then.
+     */
+    open suspend fun getTarget(target: String, reqIdx: Int?, reqSession: String?, predicate: PoolPredicate? = null): CardConnectorIdx {
+        if (isPoolTarget(target)) {
+            return getPool().pick(reqSession, predicate)
+        }
+
+        val idx = if (app.allowPickReader) reqIdx ?: 0 else 0
         val ctype = targetToCardType(target)
-        val session = req["csess"] as? String ?: ""
+        val session = reqSession ?: ""
         if (ctype != CardType.JCARDSIMLOCAL && session.isNotBlank()){
             logger.warn("csess allowed only for simulated cards")
             throw RuntimeException("csess allowed only for simulated cards")
         }
 
+        // Each session gets its own simulator, created on connect
+        if (session.isNotBlank() && app.maxSimSessions > 0) {
+            if (session.length > MAX_SESSION_LEN) {
+                throw RuntimeException("csess too long")
+            }
+            return CardConnectorIdx(ctype, idx, session)
+        }
+
+        // Shared simulator is served by the least busy replica, sessions stick to a replica with affinity
+        if (ctype == CardType.JCARDSIMLOCAL) {
+            getSimFarm(idx)?.let { return it.pick(if (app.simAffinity) session else null) }
+        }
         return CardConnectorIdx(ctype, idx)
     }
 
-    open fun onConnect(req: JsonObject, resp: JsonObject): JsonObject {
+    open suspend fun onConnect(req: JsonObject, resp: JsonObject): JsonObject {
         val ckey = getTarget(req)
+        if (isPoolTarget(req.string("target")) || isFarmed(ckey)) {
+            // Pool readers are connected by the pool, connect just assigns the reader to the session
+            resp["idx"] = ckey.idx
+            return resp
+        }
         logger.info("Opening a new card connection to ${ckey.ctype} index ${ckey.idx}")
-        openNew(ckey)
+        onCardCtx(ckey, sendOptions(req), action = "connect") { openNew(ckey) }
         return resp
     }
 
     open suspend fun onSend(req: JsonObject, resp: JsonObject): JsonObject {
         val apduHex: String = req["apdu"] as? String ?: throw RuntimeException("No APDU field")
-        val apdu = Hex.decode(apduHex)
+        val target = getTarget(req)
+        return withApdus { cmd, apduResp ->
+            cmd.setHex(apduHex)
+            txmit(target, cmd, apduResp, resp, sendOptions(req))
+        }
+    }
+
+    /**
+     * Builds command APDU from the bytes received from the client.
+     * All cases are accepted (1, 2S, 3S, 4S, 2E, 3E, 4E), Lc and Le are preserved.
+     */
+    open fun parseApdu(apdu: ByteArray): CommandAPDU {
+        return CommandAPDU(apdu)
+    }
 
-        val len = byteToInt(apdu[4])
-        val apduData = if (len > 0) Arrays.copyOfRange(apdu, 5, 5 + len) else byteArrayOf()
-        // val needsLE = len + 5 < apdu.size
-        val cmd = CommandAPDU(byteToInt(apdu[0]), byteToInt(apdu[1]), byteToInt(apdu[2]), byteToInt(apdu[3]), apduData, 255)
+    /**
+     * Executes ordered list of APDUs back-to-back on the card lane.
+     * All responses are returned with per-APDU execution time in nanoseconds.
+     */
+    open suspend fun onBatch(req: JsonObject, resp: JsonObject): JsonObject {
+        val apdus = req.array<String>("apdus") ?: throw RuntimeException("No apdus field")
+        val cmds = apdus.map { parseApdu(Hex.decode(it)) }
         val target = getTarget(req)
-        return txmit(target, cmd, resp)
+
+        try {
+            val results = txmitBatch(target, cmds, sendOptions(req))
+            resp["responses"] = JsonArray(results.map { (apduResp, time) ->
+                JsonObject().apply {
+                    this["response"] = Hex.toHexString(apduResp.bytes)
+                    this["sw"] = apduResp.sw
+                    this["time_ns"] = time
+                }
+            })
+        } catch(e: Exception){
+            logger.error("Exception during executing card batch", e)
+            resp["result"] = -2
+            resp["error"] = "Exception during execution: ${e.localizedMessage}"
+        }
+
+        return resp
     }
 
     open suspend fun onSelect(req: JsonObject, resp: JsonObject): JsonObject {
         val aid = Hex.decode(req["aid"] as? String ?: throw RuntimeException("No aid field"))
         val cmd = CommandAPDU(0x00, 0xa4, 0x04, 0x00, aid)
         val target = getTarget(req)
-        return txmit(target, cmd, resp)
+        return txmit(target, cmd, resp, sendOptions(req))
+    }
+
+    open suspend fun txmitRaw(target: CardConnectorIdx, cmd: CommandAPDU, opts: SendOptions = sendOptions()): ResponseAPDU {
+        return onCardCtx(target, opts, action = "send") { send(target, cmd, opts) }
+            .also { metrics.onStatusWord(target, it.sw) }
     }
 
-    open suspend fun txmit(target: CardConnectorIdx, cmd: CommandAPDU, resp: JsonObject): JsonObject{
+    open suspend fun txmitRaw(target: CardConnectorIdx, cmd: MutableApdu, resp: MutableApdu, opts: SendOptions = sendOptions()) {
+        onCardCtx(target, opts, action = "send") { send(target, cmd, resp, opts) }
+        metrics.onStatusWord(target, resp.sw)
+    }
+
+    open suspend fun txmitBatch(target: CardConnectorIdx, cmds: List<CommandAPDU>, opts: SendOptions = sendOptions()): List<Pair<ResponseAPDU, Long>> {
+        return onCardCtx(target, opts, cmds.size, action = "batch") { sendBatch(target, cmds, opts) }
+            .onEach { metrics.onStatusWord(target, it.first.sw) }
+    }
+
+    open fun sendBatch(key: CardConnectorIdx, cmds: List<CommandAPDU>, opts: SendOptions = sendOptions()): List<Pair<ResponseAPDU, Long>> {
+        return cmds.map { cmd ->
+            val start = System.nanoTime()
+            val resp = send(key, cmd, opts)
+            Pair(resp, System.nanoTime() - start)
+        }
+    }
+
+    open suspend fun txmit(target: CardConnectorIdx, cmd: CommandAPDU, resp: JsonObject, opts: SendOptions = sendOptions()): JsonObject{
         try {
-            val apduResp = onWorkerCtx { supervisorScope { send(target, cmd) } }
+            val apduResp = txmitRaw(target, cmd, opts)
             resp["response"] = Hex.toHexString(apduResp.bytes)
             resp["sw"] = apduResp.sw
             resp["sw_hex"] = Integer.toHexString(apduResp.sw.and(0xffff))
@@ -277,5 +1056,42 @@ open class CardHandler(val vertx: Vertx, val app: Server) : CoroutineScope {
         return resp
     }
 
+    open suspend fun txmit(target: CardConnectorIdx, cmd: MutableApdu, apduResp: MutableApdu, resp: JsonObject, opts: SendOptions = sendOptions()): JsonObject{
+        try {
+            txmitRaw(target, cmd, apduResp, opts)
+            val sw = apduResp.sw
+            resp["response"] = apduResp.toHex()
+            resp["sw"] = sw
+            resp["sw_hex"] = Integer.toHexString(sw)
+            resp["sw1"] = sw shr 8
+            resp["sw2"] = sw and 0xff
+        } catch(e: Exception){
+            logger.error("Exception during executing card command", e)
+            resp["result"] = -2
+            resp["error"] = "Exception during execution: ${e.localizedMessage}"
+        }
+
+        return resp
+    }
+
+    companion object {
+        /** Pool target, see ReaderPool */
+        const val TARGET_POOL = "pool"
 
+        /** Maximal length of the csess session identifier */
+        const val MAX_SESSION_LEN = 128
+
+        /** Binary frames over WebSocket */
+        const val FEATURE_FRAMES = "frames"
+        /** Raw APDU REST endpoint, /v1/card/:ctype/:cidx/apdu */
+        const val FEATURE_APDU_RAW = "apdu_raw"
+        /** Batch action, ordered list of APDUs in one request */
+        const val FEATURE_BATCH = "batch"
+        /** 61xx / 6Cxx handled on the server, auto_response request field */
+        const val FEATURE_AUTO_RESPONSE = "auto_response"
+        /** Command chaining of long commands on the server, chaining request field */
+        const val FEATURE_CHAINING = "chaining"
+        /** gzip request bodies, deflate frame payloads */
+        const val FEATURE_COMPRESSION = "compression"
+    }
 }
\ No newline at end of file
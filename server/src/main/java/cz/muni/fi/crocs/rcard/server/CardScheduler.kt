@@ -0,0 +1,147 @@
+package cz.muni.fi.crocs.rcard.server
+
+import kotlinx.coroutines.CancellationException
+import kotlinx.coroutines.CompletableDeferred
+import java.util.*
+import kotlin.math.max
+
+/**
+ * Priority class of a card request, class weight multiplies the flow weight.
+ * admin - management (e.g., GP) sessions, interactive - users (default), batch - scripted jobs
+ */
+enum class Priority(val weight: Int) {
+    ADMIN(16),
+    INTERACTIVE(4),
+    BATCH(1);
+
+    companion object {
+        fun parse(value: String?): Priority? {
+            if (value.isNullOrBlank()) {
+                return null
+            }
+            return values().firstOrNull { it.name.equals(value, true) } ?: throw RuntimeException("Unknown priority: $value")
+        }
+    }
+}
+
+/**
+ * Start-time fair queuing of the requests of one card.
+ *
+ * Requests are grouped to flows (clients, sessions). Each flow gets a share of the card time proportional to its
+ * weight times the priority class weight, so a long scripted session cannot starve interactive users, while
+ * batch jobs still make progress. Request cost is estimated from the average execution time per APDU of the flow,
+ * flows with slow commands are thus charged accordingly. Requests of one flow are served in the order of submission.
+ *
+ * One request is granted the card at a time, the granted request runs on the card lane.
+ */
+open class CardScheduler {
+    private class Flow(var avgNanos: Double) {
+        var lastFinish = 0.0
+        var pending = 0
+    }
+
+    private class Ticket(val flow: Flow, val start: Double, val seq: Long, val units: Int) {
+        val granted = CompletableDeferred<Unit>()
+    }
+
+    private val queue = PriorityQueue<Ticket>(compareBy<Ticket>({ it.start }, { it.seq }))
+    private val flows = HashMap<String, Flow>()
+    private var virtualTime = 0.0
+    private var seq = 0L
+    private var busy = false
+    private var avgNanos = DEFAULT_COST_NANOS
+
+    /**
+     * Waits for the card grant and runs the block, the card is released afterwards.
+     * @param flowId flow of the request, e.g., client session
+     * @param units number of APDUs in the request, cost multiplier
+     */
+    suspend fun <T> submit(flowId: String, priority: Priority, weight: Int, units: Int, block: suspend () -> T): T {
+        val ticket = enqueue(flowId, priority, weight, max(1, units))
+        try {
+            ticket.granted.await()
+        } catch (e: CancellationException) {
+            cancel(ticket)
+            throw e
+        }
+
+        val start = System.nanoTime()
+        try {
+            return block()
+        } finally {
+            complete(ticket, System.nanoTime() - start)
+        }
+    }
+
+    /**
+     * Number of requests waiting for the card
+     */
+    @Synchronized
+    fun queued(): Int {
+        return queue.size
+    }
+
+    @Synchronized
+    private fun enqueue(flowId: String, priority: Priority, weight: Int, units: Int): Ticket {
+        val flow = flows.getOrPut(flowId) { Flow(avgNanos) }
+        val start = max(virtualTime, flow.lastFinish)
+        flow.lastFinish = start + units * flow.avgNanos / (weight.coerceIn(1, MAX_WEIGHT) * priority.weight)
+        flow.pending += 1
+
+        val ticket = Ticket(flow, start, seq++, units)
+        queue.add(ticket)
+        if (!busy) {
+            grantNext()
+        }
+        return ticket
+    }
+
+    @Synchronized
+    private fun complete(ticket: Ticket, nanos: Long) {
+        val perUnit = nanos.toDouble() / ticket.units
+        ticket.flow.avgNanos += (perUnit - ticket.flow.avgNanos) * EWMA_ALPHA
+        avgNanos += (perUnit - avgNanos) * EWMA_ALPHA
+        ticket.flow.pending -= 1
+        pruneFlows()
+        grantNext()
+    }
+
+    @Synchronized
+    private fun cancel(ticket: Ticket) {
+        ticket.flow.pending -= 1
+        if (ticket.granted.isCompleted) {
+            grantNext()
+        } else {
+            queue.remove(ticket)
+        }
+    }
+
+    private fun grantNext() {
+        val next = queue.poll()
+        if (next == null) {
+            busy = false
+            return
+        }
+
+        busy = true
+        virtualTime = max(virtualTime, next.start)
+        next.granted.complete(Unit)
+    }
+
+    /**
+     * Flows without pending requests whose finish tag has passed are equivalent to new flows
+     */
+    private fun pruneFlows() {
+        if (flows.size <= MAX_IDLE_FLOWS) {
+            return
+        }
+        flows.values.removeIf { it.pending == 0 && it.lastFinish <= virtualTime }
+    }
+
+    companion object {
+        const val MAX_WEIGHT = 100
+        const val MAX_IDLE_FLOWS = 1024
+        const val DEFAULT_COST_NANOS = 1_000_000.0
+        const val EWMA_ALPHA = 0.2
+    }
+}
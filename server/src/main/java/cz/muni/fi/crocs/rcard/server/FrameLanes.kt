@@ -0,0 +1,103 @@
+package cz.muni.fi.crocs.rcard.server
+
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame
+import io.vertx.core.logging.LoggerFactory
+import kotlinx.coroutines.*
+import kotlinx.coroutines.channels.Channel
+
+/**
+ * Ordered processing of binary frames received on one client connection.
+ * Frames for the same card are processed in the order of arrival, frames for different cards in parallel.
+ *
+ * Frames waiting for processing are bounded: the connection is paused when MAX_PENDING frames are pending
+ * and resumed when half of them are processed, frames over MAX_QUEUED are rejected.
+ * Lane is removed once all its frames are processed, so many sessions do not accumulate lanes.
+ *
+ * Not thread-safe, offer frames from the connection event loop, the scope has to run on the same event loop.
+ * @param pause stops reading from the connection
+ * @param resume resumes reading from the connection
+ */
+open class FrameLanes(private val scope: CoroutineScope,
+                      private val pause: () -> Unit,
+                      private val resume: () -> Unit,
+                      private val consumer: suspend (CardFrame) -> Unit) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val lanes = HashMap<Triple<Int, Int, String?>, Channel<CardFrame>>()
+    private var pending = 0
+    private var paused = false
+
+    /**
+     * Queues the frame to its card lane
+     * @return false if the frame was rejected as too many frames are pending
+     */
+    open fun offer(req: CardFrame): Boolean {
+        if (pending >= MAX_QUEUED) {
+            return false
+        }
+
+        val key = Triple(req.target, req.idx, req.session)
+        val existing = lanes[key]
+        val lane = existing ?: Channel<CardFrame>(MAX_QUEUED).also { lanes[key] = it }
+        if (!lane.trySend(req).isSuccess) {
+            return false
+        }
+
+        pending += 1
+        if (existing == null) {
+            scope.launch { drain(key, lane) }
+        }
+        if (!paused && pending >= MAX_PENDING) {
+            paused = true
+            pause()
+        }
+        return true
+    }
+
+    open fun numLanes(): Int {
+        return lanes.size
+    }
+
+    open fun close() {
+        lanes.values.forEach { it.close() }
+        lanes.clear()
+    }
+
+    /**
+     * Processes frames of the lane until it is empty, then removes the lane.
+     * Frames are offered on the same event loop, so no frame arrives between the empty check and the removal.
+     */
+    protected open suspend fun drain(key: Triple<Int, Int, String?>, lane: Channel<CardFrame>) {
+        try {
+            while (true) {
+                val frame = lane.tryReceive().getOrNull() ?: break
+                try {
+                    consumer(frame)
+                } catch (e: CancellationException) {
+                    throw e
+                } catch (e: Exception) {
+                    logger.warn("Frame processing failed: ${e.localizedMessage}", e)
+                } finally {
+                    onProcessed()
+                }
+            }
+        } finally {
+            lanes.remove(key, lane)
+            lane.close()
+        }
+    }
+
+    protected open fun onProcessed() {
+        pending -= 1
+        if (paused && pending <= MAX_PENDING / 2) {
+            paused = false
+            resume()
+        }
+    }
+
+    companion object {
+        /** Pending frames of the connection at which reading from the connection is paused */
+        const val MAX_PENDING = 64
+        /** Pending frames of the connection over which frames are rejected, frames already read when paused */
+        const val MAX_QUEUED = 256
+    }
+}
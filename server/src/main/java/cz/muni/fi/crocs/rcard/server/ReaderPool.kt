@@ -0,0 +1,253 @@
+package cz.muni.fi.crocs.rcard.server
+
+import io.vertx.core.logging.LoggerFactory
+import org.bouncycastle.util.encoders.Hex
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.atomic.AtomicInteger
+import javax.smartcardio.CommandAPDU
+
+/**
+ * Card predicate of the pool target, null fields match any card.
+ * atr - regular expression matched against the whole hex-encoded ATR, case insensitive
+ * aid - hex AID of an applet the card has to hold, probed by SELECT once per reader
+ */
+data class PoolPredicate(val atr: String? = null, val aid: String? = null) {
+    /** Fields set in this predicate override the defaults */
+    fun withDefaults(defaults: PoolPredicate): PoolPredicate {
+        return PoolPredicate(atr ?: defaults.atr, aid ?: defaults.aid)
+    }
+}
+
+/**
+ * Pool of identical cards on several readers, served as the "pool" target.
+ * Also serves the replicas of a farmed simulator, see CardHandler.getSimFarm.
+ * Each request goes to the least busy connected reader holding a card matching the predicate,
+ * busy meaning requests in flight, ties broken by the number of sticky sessions and round robin.
+ *
+ * Requests with a session (csess) stick to the reader picked for the first request of the session,
+ * so stateful sessions (selected applet, secure channel) stay on one card. Sticky session ends by
+ * the disconnect action or after sessionTimeout seconds without a request.
+ *
+ * Readers are connected on the first use, reader failing to connect is retried after RETRY_MILLIS.
+ * Connecting and AID probes run on the card lane of the reader, in order with the other requests of the card.
+ */
+open class ReaderPool(
+    val handler: CardHandler,
+    readers: List<CardConnectorIdx>,
+    val defaultPredicate: PoolPredicate = PoolPredicate(),
+    val sessionTimeout: Long = 600
+) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val members = readers.distinct().map { PoolMember(it) }
+    private val sessions = ConcurrentHashMap<String, StickySession>()
+    private val roundRobin = AtomicInteger(0)
+    private val atrPatterns = ConcurrentHashMap<String, Regex>()
+
+    init {
+        if (sessionTimeout > 0) {
+            val period = (sessionTimeout * 1000 / 4).coerceIn(1_000L, 60_000L)
+            handler.vertx.setPeriodic(period) { expireSessions() }
+        }
+    }
+
+    class PoolMember(val key: CardConnectorIdx) {
+        @Volatile var atr: String? = null
+        @Volatile var failedAt: Long = 0
+        val aids = ConcurrentHashMap<String, Boolean>()
+        val sessions = AtomicInteger(0)
+    }
+
+    class StickySession(val member: PoolMember, @Volatile var lastUsed: Long)
+
+    /**
+     * Picks the reader for the request
+     * @param session client session, sticky if not blank
+     * @param predicate request predicate, server defaults are used for missing fields
+     */
+    open suspend fun pick(session: String?, predicate: PoolPredicate? = null): CardConnectorIdx {
+        val pred = predicate?.withDefaults(defaultPredicate) ?: defaultPredicate
+        val atr = pred.atr?.let { atrPattern(it) }
+        if (session.isNullOrBlank()) {
+            return leastBusy(pred, atr).key
+        }
+
+        val sticky = sessions[session]
+        if (sticky != null && matches(sticky.member, pred, atr)) {
+            sticky.lastUsed = System.currentTimeMillis()
+            return sticky.member.key
+        }
+
+        val member = leastBusy(pred, atr)
+        synchronized(sessions) {
+            // Concurrent request of the new session may have assigned the session meanwhile
+            val current = sessions[session]
+            if (current != null && current !== sticky) {
+                current.lastUsed = System.currentTimeMillis()
+                return current.member.key
+            }
+
+            release(session)
+            member.sessions.incrementAndGet()
+            sessions[session] = StickySession(member, System.currentTimeMillis())
+            logger.info("Pool session $session assigned to reader ${name(member.key)}")
+            return member.key
+        }
+    }
+
+    /**
+     * Ends the sticky session, next request of the session may go to another reader
+     */
+    open fun release(session: String?) {
+        if (session.isNullOrBlank()) {
+            return
+        }
+        sessions.remove(session)?.member?.sessions?.decrementAndGet()
+    }
+
+    open fun numSessions(): Int {
+        return sessions.size
+    }
+
+    open fun readers(): List<CardConnectorIdx> {
+        return members.map { it.key }
+    }
+
+    protected open suspend fun leastBusy(pred: PoolPredicate, atr: Regex?): PoolMember {
+        val start = Math.floorMod(roundRobin.getAndIncrement(), members.size.coerceAtLeast(1))
+        var best: PoolMember? = null
+        var bestLoad = Long.MAX_VALUE
+        for (i in members.indices) {
+            val member = members[(start + i) % members.size]
+            if (!matches(member, pred, atr)) {
+                continue
+            }
+
+            val load = handler.inFlight(member.key).toLong().shl(32) + member.sessions.get()
+            if (load < bestLoad) {
+                best = member
+                bestLoad = load
+            }
+        }
+        return best ?: throw RuntimeException("No card in the pool matches: $pred")
+    }
+
+    protected open suspend fun matches(member: PoolMember, pred: PoolPredicate, atr: Regex?): Boolean {
+        if (!ensureConnected(member)) {
+            return false
+        }
+        if (atr != null && !atr.matches(member.atr ?: "")) {
+            return false
+        }
+        if (pred.aid != null && !holdsApplet(member, pred.aid)) {
+            return false
+        }
+        return true
+    }
+
+    /**
+     * Connects the reader on its card lane, concurrent callers connect the reader once
+     */
+    protected open suspend fun ensureConnected(member: PoolMember): Boolean {
+        if (isConnected(member)) {
+            return true
+        }
+        if (System.currentTimeMillis() - member.failedAt < RETRY_MILLIS) {
+            return false
+        }
+
+        return handler.onCardCtx(member.key, action = "pool_connect") {
+            if (isConnected(member)) {
+                return@onCardCtx true
+            }
+            try {
+                logger.info("Connecting pool reader ${name(member.key)}")
+                member.atr = null
+                handler.openNew(member.key)
+                member.aids.clear()
+                defaultPredicate.aid?.let { probeApplet(member, it.lowercase()) }
+                member.atr = handler.getMgr(member.key).atr()?.bytes?.let { Hex.toHexString(it) } ?: ""
+                true
+            } catch (e: Exception) {
+                logger.warn("Pool reader ${name(member.key)} could not be connected: ${e.localizedMessage}")
+                member.failedAt = System.currentTimeMillis()
+                member.atr = null
+                false
+            }
+        }
+    }
+
+    protected open fun isConnected(member: PoolMember): Boolean {
+        return member.atr != null && handler.state(member.key) == CardState.CONNECTED
+    }
+
+    /**
+     * AID is probed once per reader by SELECT on the card lane, the server default AID right after connecting
+     * the reader, before the reader serves pool requests. Readers with sticky sessions are not probed, as
+     * the probe would change the applet selected by the session, they do not match until probed.
+     */
+    protected open suspend fun holdsApplet(member: PoolMember, aid: String): Boolean {
+        val key = aid.lowercase()
+        member.aids[key]?.let { return it }
+        if (member.sessions.get() > 0) {
+            return false
+        }
+        return handler.onCardCtx(member.key, action = "pool_probe") { probeApplet(member, key) }
+    }
+
+    /**
+     * Selects the applet, called on the card lane
+     */
+    protected open fun probeApplet(member: PoolMember, aid: String): Boolean {
+        return member.aids.getOrPut(aid) {
+            try {
+                val resp = handler.send(member.key, CommandAPDU(0x00, 0xa4, 0x04, 0x00, Hex.decode(aid)))
+                resp.sw == 0x9000
+            } catch (e: Exception) {
+                logger.warn("Pool reader ${name(member.key)} AID probe failed: ${e.localizedMessage}")
+                false
+            }
+        }
+    }
+
+    /**
+     * Compiled ATR pattern, patterns come from the requests so the cache is cleared when full
+     */
+    protected open fun atrPattern(atr: String): Regex {
+        atrPatterns[atr]?.let { return it }
+        if (atrPatterns.size >= MAX_ATR_PATTERNS) {
+            atrPatterns.clear()
+        }
+        return atrPatterns.computeIfAbsent(atr) { Regex(it, RegexOption.IGNORE_CASE) }
+    }
+
+    protected open fun expireSessions() {
+        if (sessionTimeout <= 0) {
+            return
+        }
+        val deadline = System.currentTimeMillis() - sessionTimeout * 1000
+        sessions.entries.filter { it.value.lastUsed < deadline }.forEach { release(it.key) }
+    }
+
+    companion object {
+        const val RETRY_MILLIS = 10_000L
+        const val MAX_ATR_PATTERNS = 256
+
+        fun name(key: CardConnectorIdx): String {
+            return if (key.replica == 0) "${key.idx}" else "${key.idx}#${key.replica}"
+        }
+
+        /**
+         * Parses reader indices specification, e.g., "0-15" or "0,2,4-6"
+         */
+        fun parseReaders(spec: String): List<Int> {
+            return spec.split(",").map { it.trim() }.filter { it.isNotEmpty() }.flatMap { part ->
+                val range = part.split("-").map { it.trim().toInt() }
+                when (range.size) {
+                    1 -> listOf(range[0])
+                    2 -> (range[0]..range[1]).toList()
+                    else -> throw IllegalArgumentException("Invalid reader range: $part")
+                }
+            }
+        }
+    }
+}
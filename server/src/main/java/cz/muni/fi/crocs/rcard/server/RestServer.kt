@@ -2,6 +2,8 @@ package cz.muni.fi.crocs.rcard.server
 
 import com.beust.klaxon.Klaxon
 import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.http.Http2Settings
 import io.vertx.core.http.HttpServer
 import io.vertx.core.http.HttpServerOptions
 import io.vertx.core.http.HttpServerResponse
@@ -13,7 +15,6 @@ import io.vertx.ext.web.RoutingContext
 import io.vertx.ext.web.handler.BodyHandler
 import io.vertx.ext.web.handler.ResponseContentTypeHandler
 import io.vertx.ext.web.handler.StaticHandler
-import io.vertx.ext.web.handler.TimeoutHandler
 import java.io.StringReader
 import java.util.*
 
@@ -37,15 +38,22 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
         server.webSocketHandler { webSocket: ServerWebSocket ->
             onClientConnected(webSocket)
         }
-        server.listen(port) {
+        server.listen(port, app.host) {
             logger.info("REST/WebSocket Server listening @ $port")
         }
     }
 
     open fun getServerOptions(): HttpServerOptions {
+        // Cleartext HTTP/2 (h2c, prior knowledge or upgrade) is accepted next to HTTP/1.1,
+        // clients multiplex requests over one connection.
         return HttpServerOptions()
             .setIdleTimeout(20)
             .setTcpKeepAlive(true)
+            .setInitialSettings(Http2Settings().setMaxConcurrentStreams(app.http2MaxStreams))
+            .setDecompressionSupported(true)
+            .setCompressionSupported(app.httpCompression)
+            .setPerMessageWebSocketCompressionSupported(app.wsDeflate)
+            .setPerFrameWebSocketCompressionSupported(app.wsDeflate)
     }
 
     open fun generateSessionId(): String {
@@ -69,7 +77,7 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
         val handler = getHandler()
         router = Router.router(vertx)
         router.route("/static/*").handler(StaticHandler.create())
-        router.route("/v1/*").handler(TimeoutHandler.create(5000))
+        router.route("/v1/*").handler { ctx -> handleTimeout(ctx) }
         router.route("/v1/*").handler(ResponseContentTypeHandler.create())
         router
             .route("/v1/card")
@@ -142,6 +150,17 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
                 }
             }
 
+        router
+            .route("/v1/card/:ctype/:cidx/apdu")
+            .consumes("application/octet-stream")
+            .produces("application/octet-stream")
+            .handler(BodyHandler.create())
+            .handler { ctx ->
+                handler.onGlobalCtxAsync {
+                    handleApdu(ctx)
+                }
+            }
+
         // ping handler
         router
             .route("/v1/ping")
@@ -152,16 +171,42 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
                 handler.onGlobalCtxAsync { handlePing(ctx) }
             }
 
+        // Prometheus metrics
+        router
+            .route("/v1/metrics")
+            .handler { ctx ->
+                handleMetrics(ctx)
+            }
+
         server.requestHandler(router)
         logger.info("REST hooks initialized")
     }
 
+    /**
+     * Fails requests not answered in REQUEST_TIMEOUT_MS, as TimeoutHandler does.
+     * The timer can be re-armed with armTimeout, e.g., batches get the timeout per command.
+     */
+    open fun handleTimeout(ctx: RoutingContext) {
+        armTimeout(ctx, REQUEST_TIMEOUT_MS)
+        ctx.addBodyEndHandler { ctx.get<Long>(TIMEOUT_TIMER)?.let { vertx.cancelTimer(it) } }
+        ctx.next()
+    }
+
+    fun armTimeout(ctx: RoutingContext, timeoutMs: Long) {
+        ctx.get<Long>(TIMEOUT_TIMER)?.let { vertx.cancelTimer(it) }
+        ctx.put(TIMEOUT_TIMER, vertx.setTimer(timeoutMs) { ctx.fail(503) })
+    }
+
     open suspend fun handleCard(ctx: RoutingContext) {
         val ctxResp = ctx.response()
         try {
             val reqBody = ctx.bodyAsJson
             val reqParam = ctx.queryParam("req")
             val req = if (reqBody?.isEmpty == false) reqBody else JsonObject(if (reqParam.isEmpty()) "{}" else reqParam.first())
+            putSchedFields(ctx, req)
+            if (req.getString("action") == "batch") {
+                armTimeout(ctx, REQUEST_TIMEOUT_MS * maxOf(1, req.getJsonArray("apdus")?.size() ?: 1))
+            }
             handleCore(req, ctxResp)
             return
 
@@ -197,12 +242,57 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
         return resp
     }
 
+    /**
+     * Raw APDU endpoint, request body is a command APDU, response body is a response APDU.
+     * Avoids JSON and hex encoding altogether.
+     */
+    open suspend fun handleApdu(ctx: RoutingContext) {
+        val ctxResp = ctx.response()
+        val handler = getHandler()
+
+        try {
+            handler.onClientConnect()
+            val cIdxStr = ctx.request().getParam("cidx") ?: throw RuntimeException("cidx not specified")
+            val target = handler.getTarget(
+                ctx.request().getParam("ctype") ?: throw RuntimeException("ctype not specified"),
+                cIdxStr.toInt(),
+                ctx.request().getParam("csess"))
+
+            val body = ctx.body ?: throw RuntimeException("No APDU body")
+            val sched = JsonObject()
+            ctx.request().getParam("csess")?.let { sched.put("csess", it) }
+            ctx.request().getParam("priority")?.let { sched.put("priority", it) }
+            ctx.request().getParam("weight")?.let { sched.put("weight", it.toInt()) }
+            putSchedFields(ctx, sched)
+            val opts = handler.sendOptions(
+                ctx.request().getParam("auto_response")?.let { it == "1" || it.toBoolean() },
+                ctx.request().getParam("chaining")?.let { it == "1" || it.toBoolean() },
+                Priority.parse(sched.getString("priority")),
+                sched.getString("client") ?: sched.getString("csess"),
+                sched.getInteger("weight"))
+            handler.withApdus { cmd, apduResp ->
+                cmd.set(body.byteBuf.nioBuffer())
+                handler.txmitRaw(target, cmd, apduResp, opts)
+                writeBinary(ctxResp, Buffer.buffer(apduResp.length).appendBytes(apduResp.buffer, 0, apduResp.length))
+            }
+
+        } catch (e: Exception){
+            logger.info("Error: apdu failed $e", e)
+            ctxResp.statusCode = 500
+            ctxResp.putHeader("content-type", "text/plain")
+            ctxResp.end("Exception: ${e.localizedMessage}")
+        } finally {
+            handler.onClientDisconnect()
+        }
+    }
+
     open fun handlePing(ctx: RoutingContext) {
         val ctxResp = ctx.response()
         val resp = JsonObject()
 
         try {
             resp.put("success", 1)
+            resp.put("features", getHandler().features())
 
         } catch (e: Exception){
             logger.info("Error: ping failed $e", e)
@@ -213,13 +303,50 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
         write(ctxResp, resp)
     }
 
+    /**
+     * Metrics in the Prometheus text exposition format
+     */
+    open fun handleMetrics(ctx: RoutingContext) {
+        val ctxResp = ctx.response()
+        try {
+            val body = getHandler().metrics.render(getHandler())
+            ctxResp.putHeader("content-type", "text/plain; version=0.0.4; charset=utf-8")
+            ctxResp.end(body)
+
+        } catch (e: Exception){
+            logger.info("Error: metrics failed $e", e)
+            ctxResp.statusCode = 500
+            ctxResp.putHeader("content-type", "text/plain")
+            ctxResp.end("Exception: ${e.localizedMessage}")
+        }
+    }
+
+    /**
+     * Scheduling fields from the X-Card-Client, X-Card-Priority and X-Card-Weight headers, request fields take precedence.
+     * Requests without client and csess are scheduled per connection.
+     * Admin priority, weights and flow names of untrusted clients are dropped, see CardHandler.restrictSched.
+     */
+    private fun putSchedFields(ctx: RoutingContext, req: JsonObject): JsonObject {
+        val headers = ctx.request().headers()
+        if (!req.containsKey("client") && !req.containsKey("csess")) {
+            req.put("client", headers.get(HEADER_CLIENT) ?: ctx.request().remoteAddress().toString())
+        }
+        headers.get(HEADER_PRIORITY)?.let { if (!req.containsKey("priority")) req.put("priority", it) }
+        headers.get(HEADER_WEIGHT)?.let { if (!req.containsKey("weight")) req.put("weight", it.toInt()) }
+        val handler = getHandler()
+        val host = ctx.request().remoteAddress()?.host()
+        handler.restrictSched(req.map, handler.isTrustedClient(host), host)
+        return req
+    }
+
     private fun extractTarget(ctx: RoutingContext, req: JsonObject? = null): JsonObject {
         val r = req ?: JsonObject()
         val ctypeStr = ctx.request().getParam("ctype") ?: throw RuntimeException("ctype not specified")
         val cIdxStr = ctx.request().getParam("cidx") ?: throw RuntimeException("cidx not specified")
         r.put("target", ctypeStr)
         r.put("idx", cIdxStr.toInt())
-        return r
+        ctx.request().getParam("csess")?.let { r.put("csess", it) }
+        return putSchedFields(ctx, r)
     }
 
     private suspend fun handleIsConnected(ctx: RoutingContext) {
@@ -260,9 +387,26 @@ open class RestServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
         handleCore(r, ctx.response())
     }
 
+    private fun writeBinary(response: HttpServerResponse, data: Buffer){
+        response.putHeader("content-type", "application/octet-stream")
+        response.end(data)
+    }
+
     private fun write(response: HttpServerResponse, jsResp: JsonObject){
         response.isChunked = true
         response.putHeader("content-type", "application/json")
         response.write(jsResp.toString()).end()
     }
+
+    companion object {
+        const val HEADER_CLIENT = "X-Card-Client"
+        const val HEADER_PRIORITY = "X-Card-Priority"
+        const val HEADER_WEIGHT = "X-Card-Weight"
+
+        /**
+         * Request timeout, batch requests get it per command
+         */
+        const val REQUEST_TIMEOUT_MS = 5000L
+        const val TIMEOUT_TIMER = "timeoutTimer"
+    }
 }
@@ -4,7 +4,9 @@ import com.github.ajalt.clikt.core.CliktCommand
 import com.github.ajalt.clikt.parameters.options.default
 import com.github.ajalt.clikt.parameters.options.flag
 import com.github.ajalt.clikt.parameters.options.option
+import com.github.ajalt.clikt.parameters.types.choice
 import com.github.ajalt.clikt.parameters.types.int
+import com.github.ajalt.clikt.parameters.types.long
 import com.licel.jcardsim.smartcardio.CardSimulator
 import com.licel.jcardsim.utils.AIDUtil
 import cz.muni.fi.crocs.rcard.client.CardManager
@@ -24,6 +26,7 @@ import java.security.Security
 import java.util.*
 import java.util.concurrent.atomic.AtomicBoolean
 import kotlin.coroutines.CoroutineContext
+import kotlin.concurrent.thread
 import kotlin.system.exitProcess
 
 open class Server : CliktCommand(), CoroutineScope {
@@ -40,12 +43,38 @@ open class Server : CliktCommand(), CoroutineScope {
     val verbose: Boolean by option("--verbose",
         help="Verbose log level")
         .flag(default=false)
+    val host: String by option("--host",
+        help="Interface the REST and TCP servers listen on")
+        .default("0.0.0.0")
     val webPort: Int by option("--port",
         help="REST port to listen on")
         .int().default(9901)
-    val workerThreads: Int by option("--workers",
-        help="Number of worker threads to use")
-        .int().default(5)
+    val tcpPort: Int? by option("--tcp-port",
+        help="Raw TCP port for binary frames, disabled if not set")
+        .int()
+    val tcpToken: String? by option("--tcp-token", envvar = SimWorkerPool.TOKEN_ENV,
+        help="Access token TCP clients have to send in the first frame of the connection, see CardFrame.ACTION_AUTH")
+    val http2MaxStreams: Long by option("--http2-streams",
+        help="Maximum concurrent HTTP/2 streams per connection")
+        .long().default(256)
+    val autoResponse: Boolean by option("--auto-response",
+        help="Handle 61xx and 6Cxx status words on the server by default")
+        .flag(default=false)
+    val wsDeflate: Boolean by option("--ws-deflate",
+        help="Negotiate WebSocket permessage-deflate, compresses all messages")
+        .flag(default=false)
+    val httpCompression: Boolean by option("--http-compression",
+        help="Compress HTTP responses with gzip for clients accepting it")
+        .flag(default=false)
+    val compressThreshold: Int by option("--compress-threshold",
+        help="Minimal binary frame payload size to compress, for clients accepting compression")
+        .int().default(256)
+    val commandChaining: Boolean by option("--command-chaining",
+        help="Split commands too long for the card with command chaining by default")
+        .flag(default=false)
+    val extendedLength: String by option("--extended-length",
+        help="Extended length APDU support of the cards. auto: sims yes, physical cards by ATR card capabilities")
+        .choice("auto", "on", "off").default("auto")
     val defaultReaderIndex: Int by option("--reader-idx",
         help="Default card reader index")
         .int().default(0)
@@ -55,11 +84,61 @@ open class Server : CliktCommand(), CoroutineScope {
     val allowPickReader: Boolean by option("--allow-pick-reader",
         help="Allow user to pick reader index")
         .flag(default=false)
+    val simPrewarm: Int by option("--sim-prewarm",
+        help="Number of simulators built ahead of connect for each reader index, after its first simulator is used. " +
+            "Split among the simulator workers. 0 builds on connect")
+        .int().default(4)
+    val simReplicas: Int by option("--sim-replicas",
+        help="Number of replicas of the shared simulator of each reader index, requests go to the least busy one. " +
+            "Applet selection is replayed to the replicas, other applet state (EEPROM, secure channel) is per replica")
+        .int().default(1)
+    val simAffinity: Boolean by option("--sim-affinity",
+        help="Requests of one session (csess) go to the same simulator replica")
+        .flag(default=false)
+    val simWorkers: Int by option("--sim-workers",
+        help="Number of worker JVMs running the simulators, 0 runs simulators in the server JVM")
+        .int().default(0)
+    val simWorkerHeap: String by option("--sim-worker-heap",
+        help="Maximum heap of a simulator worker JVM, e.g., 256m")
+        .default("256m")
+    val simWorkerTimeout: Long by option("--sim-worker-timeout",
+        help="Seconds a simulator worker has to answer a request, the worker is restarted on timeout")
+        .long().default(30)
+    val simWorker: Boolean by option("--sim-worker",
+        help="Run as a simulator worker of another server, terminates when the standard input is closed")
+        .flag(default=false)
+    val simWorkerReport: Int? by option("--sim-worker-report",
+        help="Loopback port of the server the simulator worker reports its TCP port to")
+        .int()
+    val maxSimSessions: Int by option("--max-sim-sessions",
+        help="Maximum number of per-session simulators (csess), the least recently used idle one is evicted. 0 shares the simulator")
+        .int().default(256)
+    val simSessionIdle: Long by option("--sim-session-idle",
+        help="Seconds without a request after which the session simulator is evicted, 0 for never")
+        .long().default(900)
+    val schedTrusted: String? by option("--sched-trusted",
+        help="Client addresses allowed to request the admin priority and weights above 1, comma separated. " +
+            "Other clients are scheduled with the interactive or batch priority and weight 1, one flow per address")
+    val poolReaders: String? by option("--pool-readers",
+        help="Reader indices of the pool target, e.g., 0-15 or 0,2,4. Pool target is disabled if not set")
+    val poolType: String by option("--pool-type",
+        help="Card type of the pool readers")
+        .choice("card", "sim").default("card")
+    val poolAtr: String? by option("--pool-atr",
+        help="Pool cards have to match the ATR regular expression, hex")
+    val poolAid: String? by option("--pool-aid",
+        help="Pool cards have to hold the applet with the AID, hex")
+    val poolSessionTimeout: Long by option("--pool-session-timeout",
+        help="Seconds after the last request the sticky pool session expires, 0 for never")
+        .long().default(600)
 
     lateinit var vertx: Vertx
     private val appCtx = createSingleThreadDispatcher("AppCtx")
     private val shuttingDown = AtomicBoolean(false)
     private var verticleRest: String? = null
+    private var verticleTcp: String? = null
+    protected val simulatorPool: SimulatorPool by lazy { SimulatorPool(simPrewarm) { buildSimulator(it) } }
+    protected val simWorkerPool: SimWorkerPool? by lazy { if (simWorkers > 0) SimWorkerPool(this, simWorkers) else null }
 
     private fun loadConfig() {
 
@@ -75,8 +154,12 @@ open class Server : CliktCommand(), CoroutineScope {
 
         cardHandler = CardHandler(vertx, this)
         cardHandler.preinitManagers()
+        simWorkerPool?.start()
 
         deployVerticles()
+        if (simWorker) {
+            watchParent()
+        }
         Runtime.getRuntime().addShutdownHook(Thread {
             logger.info("Shutdown hook triggered")
             shutdownServer(35)
@@ -85,6 +168,17 @@ open class Server : CliktCommand(), CoroutineScope {
         logger.info("Server kick-off")
     }
 
+    /**
+     * Simulator worker terminates with the server that started it, the server holds the worker standard input
+     */
+    open fun watchParent() {
+        thread(isDaemon = true, name = "ParentWatch") {
+            runNoExc { while (System.`in`.read() >= 0) { } }
+            logger.warn("Parent server terminated, shutting down the worker")
+            shutdownServer(0)
+        }
+    }
+
     open fun prepareSim(){
         System.setProperty("com.licel.jcardsim.object_deletion_supported", "1")
         System.setProperty("com.licel.jcardsim.sign.dsasigner.computedhash", "1")
@@ -104,12 +198,26 @@ open class Server : CliktCommand(), CoroutineScope {
     open fun deployVerticles(){
         logger.info("Deploying vertices")
 
-        vertx.deployVerticle(newRestServer()) {
-            verticleRest = it.result()
-            logger.info("REST deployed: $verticleRest")
-            if (verticleRest.isNullOrBlank()){
-                logger.error("REST deployment failed, terminating the server")
-                shutdownServer()
+        // Simulator worker serves its server over TCP only
+        if (!simWorker) {
+            vertx.deployVerticle(newRestServer()) {
+                verticleRest = it.result()
+                logger.info("REST deployed: $verticleRest")
+                if (verticleRest.isNullOrBlank()){
+                    logger.error("REST deployment failed, terminating the server")
+                    shutdownServer()
+                }
+            }
+        }
+
+        if (tcpPort != null) {
+            vertx.deployVerticle(newTcpServer()) {
+                verticleTcp = it.result()
+                logger.info("TCP deployed: $verticleTcp")
+                if (verticleTcp.isNullOrBlank()){
+                    logger.error("TCP deployment failed, terminating the server")
+                    shutdownServer()
+                }
             }
         }
     }
@@ -118,6 +226,10 @@ open class Server : CliktCommand(), CoroutineScope {
         return RestServer(vertx, this)
     }
 
+    open fun newTcpServer(): TcpServer {
+        return TcpServer(vertx, this)
+    }
+
     open fun getHandler(): CardHandler {
         return cardHandler
     }
@@ -132,13 +244,46 @@ open class Server : CliktCommand(), CoroutineScope {
 
     /**
      * Change configuration of the card before connecting.
-     * Can initialize simulator here
+     * Simulator runs in a worker JVM if workers are enabled, otherwise it is taken from the prewarmed
+     * simulators of the template, see buildSimulator
      */
     open fun configureCard(key: CardConnectorIdx, mrg: CardManager, cfg: RunConfig){
         if (key.ctype != CardType.JCARDSIMLOCAL){
             return
         }
 
+        simWorkerPool?.let {
+            it.configure(key, cfg)
+            return
+        }
+        cfg.simulator = simulatorPool.take(simTemplate(key))
+
+        // If AID is provided to the config, we can have applet selected on connection
+        //cfg.aid = DemoApplet.APPLET_AID_BYTE
+    }
+
+    /**
+     * Card operation failed, simulator worker not answering the request in time is restarted
+     */
+    open fun onCardFailure(key: CardConnectorIdx, e: Exception) {
+        if (key.ctype == CardType.JCARDSIMLOCAL) {
+            simWorkerPool?.onRequestFailed(key, e)
+        }
+    }
+
+    /**
+     * Template of the simulator for the card, simulators of the same template are interchangeable.
+     * All sessions of the reader index share the template by default.
+     */
+    open fun simTemplate(key: CardConnectorIdx): CardConnectorIdx {
+        return CardConnectorIdx(key.ctype, key.idx)
+    }
+
+    /**
+     * Builds a new simulator of the template with all applets installed.
+     * Called ahead of connect on the simulator pool thread, override to install your applets.
+     */
+    open fun buildSimulator(template: CardConnectorIdx): CardSimulator {
         val simulator = CardSimulator()
 
         // Install first demo applet
@@ -149,12 +294,8 @@ open class Server : CliktCommand(), CoroutineScope {
         val appletAID2 = AIDUtil.create(DemoApplet2.APPLET_AID_BYTE)
         simulator.installApplet(appletAID2, DemoApplet2::class.java)
 
-        cfg.simulator = simulator
-
-        // If AID is provided to the config, we can have applet selected on connection
-        //cfg.aid = DemoApplet.APPLET_AID_BYTE
-
         logger.info("Created sim for AID ${Hex.encodeHexString(DemoApplet.APPLET_AID_BYTE)} for DemoApplet")
+        return simulator
     }
 
     open fun shutdownServer(code: Int = 3){
@@ -164,6 +305,7 @@ open class Server : CliktCommand(), CoroutineScope {
             }
 
             undeployVerticles()
+            simWorkerPool?.stop()
             logger.warn("Vertices stopped, terminating in 1 second")
             vertx.setTimer(1_000L) {
                 logger.info("Terminating")
@@ -179,6 +321,11 @@ open class Server : CliktCommand(), CoroutineScope {
             runNoExc { withTimeout(5_000) { vertx.undeployAwait(it) } }
             verticleRest = null
         }
+        verticleTcp?.let {
+            logger.info("Undeploying verticleTcp: $verticleTcp")
+            runNoExc { withTimeout(5_000) { vertx.undeployAwait(it) } }
+            verticleTcp = null
+        }
     }
 
     companion object {
@@ -0,0 +1,174 @@
+package cz.muni.fi.crocs.rcard.server
+
+import cz.muni.fi.crocs.rcard.client.CardType
+import org.HdrHistogram.Histogram
+import org.HdrHistogram.Recorder
+import java.math.BigDecimal
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.LongAdder
+
+/**
+ * Server metrics, exposed in the Prometheus text format on /v1/metrics.
+ *
+ * Card operations are recorded per card (type, reader index) and action: request and error counts,
+ * queue wait (scheduler and lane) and card execution time as HDR histograms, reported as Prometheus histograms
+ * with fixed buckets, so they can be aggregated across servers and rated over time.
+ * Final status words other than 9000 are counted per card. Session simulators are reported under
+ * the reader index, to keep the number of series bounded.
+ */
+open class ServerMetrics {
+    data class ActionKey(val type: String, val idx: Int, val action: String)
+    data class StatusKey(val type: String, val idx: Int, val sw: String)
+
+    /**
+     * Latency histogram in microseconds. Values are recorded wait-free to the recorder,
+     * scrape moves the recorded interval to the cumulative histogram.
+     */
+    class Latency {
+        private val recorder = Recorder(SIGNIFICANT_DIGITS)
+        private val total = Histogram(SIGNIFICANT_DIGITS)
+        private var interval: Histogram? = null
+
+        fun record(nanos: Long) {
+            recorder.recordValue((nanos / 1000).coerceIn(0, MAX_MICROS))
+        }
+
+        @Synchronized
+        fun snapshot(): Histogram {
+            interval = recorder.getIntervalHistogram(interval)
+            total.add(interval)
+            return total.copy()
+        }
+    }
+
+    class ActionStats {
+        val requests = LongAdder()
+        val errors = LongAdder()
+        val queue = Latency()
+        val execution = Latency()
+    }
+
+    private val actions = ConcurrentHashMap<ActionKey, ActionStats>()
+    private val statusWords = ConcurrentHashMap<StatusKey, LongAdder>()
+    val webSocketSessions = AtomicInteger(0)
+    val tcpSessions = AtomicInteger(0)
+
+    open fun action(key: CardConnectorIdx, action: String): ActionStats {
+        return actions.computeIfAbsent(ActionKey(cardType(key.ctype), key.idx, action)) { ActionStats() }
+    }
+
+    open fun onStatusWord(key: CardConnectorIdx, sw: Int) {
+        if (sw == 0x9000) {
+            return
+        }
+        val type = cardType(key.ctype)
+        val swKey = StatusKey(type, key.idx, String.format("%04x", sw and 0xffff))
+        val counter = statusWords[swKey] ?: if (statusWords.size < MAX_STATUS_SERIES) {
+            statusWords.computeIfAbsent(swKey) { LongAdder() }
+        } else {
+            statusWords.computeIfAbsent(StatusKey(type, key.idx, "other")) { LongAdder() }
+        }
+        counter.increment()
+    }
+
+    /**
+     * Renders all metrics, gauges are read from the handler
+     */
+    open fun render(handler: CardHandler): String {
+        val sb = StringBuilder()
+        val stats = actions.entries.sortedWith(compareBy({ it.key.type }, { it.key.idx }, { it.key.action }))
+
+        header(sb, "rcard_card_requests_total", "counter", "Card operations by card and action")
+        stats.forEach { sample(sb, "rcard_card_requests_total", labels(it.key), it.value.requests.sum()) }
+        header(sb, "rcard_card_errors_total", "counter", "Card operations failed with an exception")
+        stats.forEach { sample(sb, "rcard_card_errors_total", labels(it.key), it.value.errors.sum()) }
+
+        header(sb, "rcard_card_queue_seconds", "histogram", "Time waiting for the card, scheduler and lane")
+        stats.forEach { histogram(sb, "rcard_card_queue_seconds", labels(it.key), it.value.queue) }
+        header(sb, "rcard_card_execution_seconds", "histogram", "Time executing on the card")
+        stats.forEach { histogram(sb, "rcard_card_execution_seconds", labels(it.key), it.value.execution) }
+
+        header(sb, "rcard_status_words_total", "counter", "Final status words other than 9000")
+        statusWords.entries.sortedWith(compareBy({ it.key.type }, { it.key.idx }, { it.key.sw })).forEach {
+            sample(sb, "rcard_status_words_total",
+                "type=\"${it.key.type}\",idx=\"${it.key.idx}\",sw=\"${it.key.sw}\"", it.value.sum())
+        }
+
+        header(sb, "rcard_connections", "gauge", "Client requests and connections in progress")
+        sample(sb, "rcard_connections", null, handler.numClients())
+        header(sb, "rcard_websocket_sessions", "gauge", "Open WebSocket sessions")
+        sample(sb, "rcard_websocket_sessions", null, webSocketSessions.get())
+        header(sb, "rcard_tcp_sessions", "gauge", "Open raw TCP sessions")
+        sample(sb, "rcard_tcp_sessions", null, tcpSessions.get())
+        header(sb, "rcard_sim_sessions", "gauge", "Live session simulators")
+        sample(sb, "rcard_sim_sessions", null, handler.numSessions())
+
+        val executors = handler.executors()
+        header(sb, "rcard_executor_active_threads", "gauge", "Threads executing a task")
+        executors.forEach { (name, ex) -> sample(sb, "rcard_executor_active_threads", "pool=\"$name\"", ex.activeCount) }
+        header(sb, "rcard_executor_threads", "gauge", "Threads of the pool")
+        executors.forEach { (name, ex) -> sample(sb, "rcard_executor_threads", "pool=\"$name\"", ex.poolSize) }
+        header(sb, "rcard_executor_queued_tasks", "gauge", "Tasks waiting for a thread")
+        executors.forEach { (name, ex) -> sample(sb, "rcard_executor_queued_tasks", "pool=\"$name\"", ex.queue.size) }
+        header(sb, "rcard_executor_utilization", "gauge", "Busy threads to the pool capacity, live threads for unbounded pools")
+        executors.forEach { (name, ex) -> sample(sb, "rcard_executor_utilization", "pool=\"$name\"", utilization(ex)) }
+        return sb.toString()
+    }
+
+    protected open fun utilization(ex: ThreadPoolExecutor): Double {
+        val capacity = if (ex.maximumPoolSize == Int.MAX_VALUE) ex.poolSize else ex.maximumPoolSize
+        return if (capacity <= 0) 0.0 else ex.activeCount.toDouble() / capacity
+    }
+
+    private fun labels(key: ActionKey): String {
+        return "type=\"${key.type}\",idx=\"${key.idx}\",action=\"${key.action}\""
+    }
+
+    private fun header(sb: StringBuilder, name: String, type: String, help: String) {
+        sb.append("# HELP ").append(name).append(' ').append(help).append('\n')
+        sb.append("# TYPE ").append(name).append(' ').append(type).append('\n')
+    }
+
+    private fun sample(sb: StringBuilder, name: String, labels: String?, value: Number) {
+        sb.append(name)
+        if (labels != null) {
+            sb.append('{').append(labels).append('}')
+        }
+        sb.append(' ').append(value).append('\n')
+    }
+
+    /**
+     * Cumulative buckets, sum and count are taken from one snapshot, so they are consistent.
+     * Bucket bounds and the sum have the precision of the HDR histogram.
+     */
+    private fun histogram(sb: StringBuilder, name: String, labels: String, latency: Latency) {
+        val histogram = latency.snapshot()
+        val count = histogram.totalCount
+        for (bound in BUCKETS_MICROS) {
+            val le = BigDecimal.valueOf(bound, 6).stripTrailingZeros().toPlainString()
+            sample(sb, "${name}_bucket", "$labels,le=\"$le\"", histogram.getCountBetweenValues(0, bound))
+        }
+        sample(sb, "${name}_bucket", "$labels,le=\"+Inf\"", count)
+        sample(sb, "${name}_sum", labels, if (count == 0L) 0.0 else histogram.mean * count / 1e6)
+        sample(sb, "${name}_count", labels, count)
+    }
+
+    companion object {
+        const val SIGNIFICANT_DIGITS = 2
+        const val MAX_MICROS = 3_600_000_000L
+        const val MAX_STATUS_SERIES = 1024
+        /** Histogram bucket upper bounds, 100 us to 60 s */
+        val BUCKETS_MICROS = longArrayOf(100, 250, 500, 1_000, 2_500, 5_000, 10_000, 25_000, 50_000, 100_000,
+            250_000, 500_000, 1_000_000, 2_500_000, 5_000_000, 10_000_000, 30_000_000, 60_000_000)
+
+        fun cardType(ctype: CardType): String {
+            return when (ctype) {
+                CardType.JCARDSIMLOCAL -> "sim"
+                CardType.PHYSICAL -> "card"
+                else -> ctype.name.lowercase()
+            }
+        }
+    }
+}
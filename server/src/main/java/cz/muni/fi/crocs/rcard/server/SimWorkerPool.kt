@@ -0,0 +1,408 @@
+package cz.muni.fi.crocs.rcard.server
+
+import cz.muni.fi.crocs.rcard.client.CardType
+import cz.muni.fi.crocs.rcard.client.RunConfig
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame
+import cz.muni.fi.crocs.rcard.client.protocols.FrameTimeoutException
+import cz.muni.fi.crocs.rcard.common.runNoExc
+import io.vertx.core.logging.LoggerFactory
+import org.bouncycastle.util.encoders.Hex
+import java.io.BufferedInputStream
+import java.io.DataInputStream
+import java.io.File
+import java.lang.management.ManagementFactory
+import java.net.InetAddress
+import java.net.InetSocketAddress
+import java.net.ServerSocket
+import java.net.Socket
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+import java.security.SecureRandom
+import java.util.*
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.Executors
+import java.util.concurrent.ScheduledExecutorService
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicBoolean
+import kotlin.concurrent.thread
+
+/**
+ * Simulators running in separate worker JVMs, started and supervised by the server.
+ *
+ * Each worker is the same server application (same applets) listening for binary frames (see CardFrame)
+ * on a loopback TCP port. Simulator card managers of the server are remote TCP managers of the worker,
+ * all requests of one card go to the same worker. An applet looping forever or leaking memory burns
+ * its worker only, worker heap is limited and the worker exits on OutOfMemoryError.
+ *
+ * Worker binds an ephemeral loopback port and reports it to the control port of the pool. Connections to the worker
+ * have to authenticate with the access token of the worker, a new random token is generated for each start.
+ * Card managers of the worker follow the reported port and token, while the worker is down their requests fail.
+ * Worker output is forwarded to the pool logger.
+ *
+ * Dead worker, worker not answering pings and worker not answering a card request in simWorkerTimeout
+ * (applet stuck in a loop) is killed and restarted, simulators of the worker lose their state then,
+ * server card managers reconnect on the next request.
+ */
+open class SimWorkerPool(val app: Server, val size: Int) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val workers = (0 until size).map { Worker(it) }
+    private val stopped = AtomicBoolean(false)
+    private val watchdog: ScheduledExecutorService = Executors.newSingleThreadScheduledExecutor { r ->
+        Thread(r, "SimWorkerWatchdog").apply { isDaemon = true }
+    }
+    private val random = SecureRandom()
+    private lateinit var control: ServerSocket
+
+    /**
+     * Worker slot, process, token and port change on restart. Port and configs are guarded by the worker.
+     */
+    class Worker(val slot: Int) {
+        @Volatile var process: Process? = null
+        @Volatile var token: String = ""
+        @Volatile var ready = CompletableFuture<Int>()
+        @Volatile var startedAt: Long = 0
+        @Volatile var failedPings: Int = 0
+        @Volatile var restarts: Int = 0
+        var port: Int = 0
+        val configs: MutableSet<RunConfig> = Collections.newSetFromMap(WeakHashMap())
+    }
+
+    open fun start() {
+        workerClass()
+        control = ServerSocket(0, CONTROL_BACKLOG, InetAddress.getLoopbackAddress())
+        thread(isDaemon = true, name = "SimWorkerControl") { acceptReports() }
+        workers.forEach { spawn(it) }
+        watchdog.scheduleWithFixedDelay({ runNoExc { checkWorkers() } }, PING_MILLIS, PING_MILLIS, TimeUnit.MILLISECONDS)
+    }
+
+    open fun stop() {
+        if (stopped.getAndSet(true)) {
+            return
+        }
+        watchdog.shutdownNow()
+        runNoExc { control.close() }
+        workers.forEach { w -> w.process?.let { runNoExc { it.destroy() } } }
+    }
+
+    /**
+     * Worker of the card, simulator of the card lives in this worker
+     */
+    open fun workerFor(key: CardConnectorIdx): Worker {
+        return workers[Math.floorMod(Objects.hash(key.idx, key.key, key.replica), size)]
+    }
+
+    /**
+     * Configures the card manager of the simulator as the remote card of the worker.
+     * Session and replica simulators are sessions of the worker.
+     */
+    open fun configure(key: CardConnectorIdx, cfg: RunConfig) {
+        val worker = workerFor(key)
+        awaitReady(worker)
+
+        cfg.testCardType = CardType.REMOTE_TCP
+        cfg.remoteCardType = CardType.JCARDSIMLOCAL
+        cfg.remoteSession = key.key ?: if (key.replica > 0) "replica-${key.replica}" else null
+        cfg.remoteTimeout = app.simWorkerTimeout * 1000
+        cfg.setRemoteDisconnectPrevious(true)
+        synchronized(worker) {
+            if (worker.port == 0) {
+                throw RuntimeException("Simulator worker ${worker.slot} is not available")
+            }
+            cfg.remoteAddress = address(worker.port)
+            cfg.remoteToken = worker.token
+            worker.configs.add(cfg)
+        }
+    }
+
+    /**
+     * Card request failed, worker not answering the request in time is stuck and is restarted
+     */
+    open fun onRequestFailed(key: CardConnectorIdx, e: Throwable) {
+        if (generateSequence(e) { it.cause }.none { it is FrameTimeoutException }) {
+            return
+        }
+
+        val worker = workerFor(key)
+        val process = worker.process ?: return
+        runNoExc {
+            watchdog.execute {
+                if (!stopped.get() && worker.process === process) {
+                    logger.warn("Simulator worker ${worker.slot} did not answer a request in time, restarting")
+                    recycle(worker, process)
+                }
+            }
+        }
+    }
+
+    open fun numAlive(): Int {
+        return workers.count { it.process?.isAlive == true }
+    }
+
+    protected open fun spawn(worker: Worker) {
+        val cmd = command(worker)
+        val token = Hex.toHexString(ByteArray(TOKEN_LEN).also { random.nextBytes(it) })
+        logger.info("Starting simulator worker ${worker.slot}")
+        logger.debug("Worker command: $cmd")
+        val ready = CompletableFuture<Int>()
+        val builder = ProcessBuilder(cmd).redirectErrorStream(true)
+        builder.environment()[TOKEN_ENV] = token
+        // Report of the new worker waits for the worker to be updated
+        val process = synchronized(worker) {
+            builder.start().also {
+                worker.process = it
+                worker.token = token
+                worker.ready = ready
+                worker.startedAt = System.currentTimeMillis()
+                worker.failedPings = 0
+            }
+        }
+        thread(isDaemon = true, name = "SimWorker-${worker.slot}") { readOutput(worker, process, ready) }
+    }
+
+    /**
+     * Forwards the worker output to the logger.
+     * Output ends when the worker exits, card managers of the worker fail fast until the worker is restarted.
+     */
+    protected open fun readOutput(worker: Worker, process: Process, ready: CompletableFuture<Int>) {
+        runNoExc {
+            process.inputStream.bufferedReader().forEachLine { logger.info("[worker ${worker.slot}] $it") }
+        }
+
+        setPort(worker, process, 0)
+        ready.completeExceptionally(RuntimeException("Simulator worker ${worker.slot} exited"))
+    }
+
+    /**
+     * Accepts port reports of the workers on the control port, a report is a line with the token and the port
+     */
+    protected open fun acceptReports() {
+        while (!stopped.get()) {
+            val sock = try {
+                control.accept()
+            } catch (e: Exception) {
+                if (!stopped.get()) {
+                    logger.error("Simulator worker control port failed", e)
+                }
+                return
+            }
+
+            runNoExc {
+                sock.use {
+                    it.soTimeout = PING_TIMEOUT_MILLIS
+                    onReport(it.getInputStream().bufferedReader().readLine() ?: "")
+                }
+            }
+        }
+    }
+
+    protected open fun onReport(line: String) {
+        val parts = line.trim().split(" ")
+        val port = parts.getOrNull(1)?.toIntOrNull()
+        val worker = workers.firstOrNull { parts.size == 2 && isToken(it.token, parts[0]) }
+        if (worker == null || port == null) {
+            logger.warn("Invalid simulator worker report")
+            return
+        }
+
+        logger.info("Simulator worker ${worker.slot} listening @ $port")
+        synchronized(worker) {
+            if (!isToken(worker.token, parts[0])) {
+                return
+            }
+            setPort(worker, worker.process ?: return, port)
+            worker.ready.complete(port)
+        }
+    }
+
+    /**
+     * Points the card managers of the worker to the port and token, port 0 if the worker is not running
+     */
+    protected open fun setPort(worker: Worker, process: Process, port: Int) {
+        synchronized(worker) {
+            if (worker.process !== process) {
+                return
+            }
+            worker.port = port
+            worker.configs.forEach {
+                it.remoteAddress = if (port == 0) null else address(port)
+                it.remoteToken = worker.token
+            }
+        }
+    }
+
+    /**
+     * Worker JVM command, the server application class is started by the worker entry point with worker options.
+     * Class path and JVM arguments are passed as separate arguments, so paths may contain spaces.
+     * Access token is passed in the environment (see Server.tcpToken), so it is not visible in the process list.
+     * Sessions of the workers are managed by this server, workers do not evict idle sessions.
+     */
+    protected open fun command(@Suppress("UNUSED_PARAMETER") worker: Worker): List<String> {
+        val java = File(File(System.getProperty("java.home"), "bin"), "java").path
+        val jvmArgs = ManagementFactory.getRuntimeMXBean().inputArguments.filterNot { arg ->
+            JVM_ARGS_SKIPPED.any { arg.startsWith(it) }
+        }
+        val entry = listOf("-cp", System.getProperty("java.class.path"), SimWorkerMain::class.java.name, workerClass())
+
+        return listOf(java, "-Xmx${app.simWorkerHeap}", "-XX:+ExitOnOutOfMemoryError") + jvmArgs + entry + listOf(
+            "--host", InetAddress.getLoopbackAddress().hostAddress,
+            "--tcp-port", "0",
+            "--allow-pick-reader",
+            "--sim-worker",
+            "--sim-worker-report", control.localPort.toString(),
+            "--sim-workers", "0",
+            "--sim-prewarm", ((app.simPrewarm + size - 1) / size).toString(),
+            "--max-sim-sessions", (app.maxSimSessions + app.simReplicas).toString(),
+            "--sim-session-idle", "0"
+        )
+    }
+
+    /**
+     * Server application class the worker runs, has to have a public no-argument constructor
+     */
+    protected open fun workerClass(): String {
+        try {
+            app.javaClass.getConstructor()
+        } catch (e: NoSuchMethodException) {
+            throw RuntimeException("Server class ${app.javaClass.name} has no public no-argument constructor, " +
+                "simulator workers cannot be started", e)
+        }
+        return app.javaClass.name
+    }
+
+    /**
+     * Waits for the worker start, fails immediately if the worker is not running
+     */
+    protected open fun awaitReady(worker: Worker) {
+        val ready = worker.ready
+        if (ready.isDone && !ready.isCompletedExceptionally) {
+            return
+        }
+        if (stopped.get() || worker.process?.isAlive != true) {
+            throw RuntimeException("Simulator worker ${worker.slot} is not available")
+        }
+
+        try {
+            val remaining = worker.startedAt + START_MILLIS - System.currentTimeMillis()
+            ready.get(remaining.coerceAtLeast(1), TimeUnit.MILLISECONDS)
+        } catch (e: Exception) {
+            throw RuntimeException("Simulator worker ${worker.slot} is not available", e)
+        }
+    }
+
+    protected open fun checkWorkers() {
+        for (worker in workers) {
+            if (stopped.get()) {
+                return
+            }
+
+            val process = worker.process
+            if (process == null || !process.isAlive) {
+                logger.warn("Simulator worker ${worker.slot} exited with ${process?.exitValue()}, restarting")
+                restart(worker)
+                continue
+            }
+
+            if (!worker.ready.isDone) {
+                if (System.currentTimeMillis() - worker.startedAt > START_MILLIS) {
+                    logger.warn("Simulator worker ${worker.slot} did not start, restarting")
+                    recycle(worker, process)
+                }
+                continue
+            }
+
+            if (ping(worker)) {
+                worker.failedPings = 0
+                continue
+            }
+
+            worker.failedPings += 1
+            if (worker.failedPings >= MAX_FAILED_PINGS) {
+                logger.warn("Simulator worker ${worker.slot} is not responding, restarting")
+                recycle(worker, process)
+            }
+        }
+    }
+
+    /**
+     * Kills the worker process and starts a new one, called on the watchdog thread
+     */
+    protected open fun recycle(worker: Worker, process: Process) {
+        process.destroyForcibly()
+        runNoExc { process.waitFor(5, TimeUnit.SECONDS) }
+        restart(worker)
+    }
+
+    protected open fun restart(worker: Worker) {
+        worker.restarts += 1
+        spawn(worker)
+    }
+
+    /**
+     * Sends the access token and the ping frame to the worker
+     */
+    protected open fun ping(worker: Worker): Boolean {
+        return try {
+            Socket().use { sock ->
+                sock.soTimeout = PING_TIMEOUT_MILLIS
+                val (port, token) = synchronized(worker) { Pair(worker.port, worker.token) }
+                if (port == 0) {
+                    return false
+                }
+                sock.connect(InetSocketAddress(InetAddress.getLoopbackAddress(), port), PING_TIMEOUT_MILLIS)
+                sock.getOutputStream().apply {
+                    write(CardFrame(CardFrame.ACTION_AUTH, 2, CardFrame.TARGET_SIM, 0, token.toByteArray(Charsets.UTF_8)).encode())
+                    write(CardFrame(CardFrame.ACTION_PING, 1, CardFrame.TARGET_SIM, 0, null).encode())
+                    flush()
+                }
+
+                val input = DataInputStream(BufferedInputStream(sock.getInputStream()))
+                repeat(2) {
+                    val len = input.readInt()
+                    if (len < CardFrame.HEADER_LEN || len > CardFrame.MAX_FRAME_LEN) {
+                        return false
+                    }
+                    val data = ByteArray(CardFrame.LENGTH_LEN + len)
+                    ByteBuffer.wrap(data).putInt(len)
+                    input.readFully(data, CardFrame.LENGTH_LEN, len)
+                    val resp = CardFrame.decode(data)
+                    if (resp.rid == 1) {
+                        return resp.result == 0
+                    }
+                }
+                false
+            }
+        } catch (e: Exception) {
+            false
+        }
+    }
+
+    protected open fun isToken(expected: String, token: String): Boolean {
+        return expected.isNotEmpty() && MessageDigest.isEqual(expected.toByteArray(Charsets.UTF_8), token.toByteArray(Charsets.UTF_8))
+    }
+
+    companion object {
+        const val PING_MILLIS = 5_000L
+        const val PING_TIMEOUT_MILLIS = 2_000
+        const val START_MILLIS = 30_000L
+        const val MAX_FAILED_PINGS = 3
+        const val CONTROL_BACKLOG = 16
+        const val TOKEN_LEN = 16
+        const val TOKEN_ENV = "RCARD_TCP_TOKEN"
+        val JVM_ARGS_SKIPPED = listOf("-Xmx", "-agentlib", "-javaagent", "-Xrunjdwp", "-XX:+ExitOnOutOfMemoryError")
+
+        fun address(port: Int): String {
+            return "${InetAddress.getLoopbackAddress().hostAddress}:$port"
+        }
+    }
+}
+
+/**
+ * Entry point of the simulator worker JVM, runs the server application class given as the first argument
+ */
+object SimWorkerMain {
+    @JvmStatic
+    fun main(args: Array<String>) {
+        val app = Class.forName(args[0]).getConstructor().newInstance() as Server
+        app.main(args.copyOfRange(1, args.size))
+    }
+}
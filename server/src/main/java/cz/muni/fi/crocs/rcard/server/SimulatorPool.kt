@@ -0,0 +1,89 @@
+package cz.muni.fi.crocs.rcard.server
+
+import com.licel.jcardsim.smartcardio.CardSimulator
+import io.vertx.core.logging.LoggerFactory
+import java.util.concurrent.ConcurrentHashMap
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.Executors
+import java.util.concurrent.atomic.AtomicInteger
+
+/**
+ * Prewarmed simulators built from templates.
+ * Template is the simulator with all applets installed, built by the builder for the template key.
+ * Ready-made simulators are kept per template, connect takes one and a replacement is built in the background,
+ * so class loading, applet constructors and key generation are off the connect path.
+ * If no simulator is ready (first use of the template, burst of connects), the simulator is built on the caller thread.
+ * Templates are warmed up on the first take only, servers not using simulators do not build any.
+ *
+ * @param size number of ready simulators kept per template
+ */
+open class SimulatorPool(val size: Int, private val builder: (CardConnectorIdx) -> CardSimulator) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val ready = ConcurrentHashMap<CardConnectorIdx, ConcurrentLinkedQueue<CardSimulator>>()
+    private val building = ConcurrentHashMap<CardConnectorIdx, AtomicInteger>()
+    private val threadIdx = AtomicInteger(0)
+    private val executor = Executors.newSingleThreadExecutor { r ->
+        Thread(r, "SimPool-${threadIdx.incrementAndGet()}").apply {
+            isDaemon = true
+            priority = Thread.MIN_PRIORITY
+        }
+    }
+
+    /**
+     * Takes a ready simulator of the template, or builds one if none is ready
+     */
+    open fun take(template: CardConnectorIdx): CardSimulator {
+        val sim = ready[template]?.poll()
+        refill(template)
+        if (sim != null) {
+            return sim
+        }
+
+        logger.info("No prewarmed simulator for ${template.idx}, building")
+        return builder(template)
+    }
+
+    /**
+     * Starts building simulators of the template in the background
+     */
+    open fun prewarm(template: CardConnectorIdx) {
+        refill(template)
+    }
+
+    open fun numReady(template: CardConnectorIdx): Int {
+        return ready[template]?.size ?: 0
+    }
+
+    protected open fun refill(template: CardConnectorIdx) {
+        if (size <= 0) {
+            return
+        }
+
+        val queue = ready.computeIfAbsent(template) { ConcurrentLinkedQueue() }
+        val inProgress = building.computeIfAbsent(template) { AtomicInteger(0) }
+        while (true) {
+            val current = inProgress.get()
+            if (queue.size + current >= size) {
+                return
+            }
+            if (!inProgress.compareAndSet(current, current + 1)) {
+                continue
+            }
+
+            executor.execute {
+                try {
+                    queue.offer(builder(template))
+                } catch (e: Exception) {
+                    logger.error("Simulator build failed for ${template.idx}", e)
+                } finally {
+                    inProgress.decrementAndGet()
+                }
+            }
+        }
+    }
+
+    open fun close() {
+        executor.shutdownNow()
+        ready.clear()
+    }
+}
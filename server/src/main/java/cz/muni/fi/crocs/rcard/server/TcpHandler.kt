@@ -0,0 +1,139 @@
+package cz.muni.fi.crocs.rcard.server
+
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame
+import io.vertx.core.AsyncResult
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.logging.LoggerFactory
+import io.vertx.core.net.NetSocket
+import io.vertx.core.parsetools.RecordParser
+import io.vertx.kotlin.coroutines.awaitEvent
+import kotlinx.coroutines.*
+import java.nio.ByteBuffer
+import java.security.MessageDigest
+
+/**
+ * One TCP client connection. Reads length-prefixed binary frames, processes them with
+ * the same semantics as the WebSocket binary frames.
+ */
+open class TcpHandler(private val parent: TcpServer, private val socket: NetSocket) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private val clContext = parent.generateSessionId()
+    private var cscope: CoroutineScope = CoroutineScope(parent.coroutineContext + SupervisorJob())
+    private val trusted: Boolean by lazy { getHandler().isTrustedClient(socket.remoteAddress()?.host()) }
+    private val flow: String by lazy { if (trusted) clContext else getHandler().untrustedFlow(socket.remoteAddress()?.host()) }
+    // Parser reads from the socket, pausing the parser pauses the socket
+    private val parser = RecordParser.newFixed(CardFrame.LENGTH_LEN, socket)
+    private val frameLanes = FrameLanes(cscope, { parser.pause() }, { parser.resume() }) { onFrameReceived(it) }
+    private var frameLen = -1
+    private var authenticated = parent.app.tcpToken == null
+
+    open fun initHooks(){
+        logger.info("[SERVER][$clContext] TCP client connected: ${socket.remoteAddress()}")
+        parser.handler { buffer -> onRecord(buffer) }
+        socket.closeHandler { onClose() }
+        socket.exceptionHandler { e ->
+            logger.info("[$clContext] TCP connection exception: ${e.localizedMessage}")
+        }
+        onOpen()
+    }
+
+    protected open fun getHandler(): CardHandler {
+        return parent.getHandler()
+    }
+
+    protected open fun onOpen() {
+        getHandler().onClientConnect()
+        getHandler().metrics.tcpSessions.incrementAndGet()
+    }
+
+    protected open fun onClose(){
+        logger.info("closing $clContext")
+        getHandler().onClientDisconnect()
+        getHandler().metrics.tcpSessions.decrementAndGet()
+        frameLanes.close()
+        cscope.cancel()
+    }
+
+    /**
+     * Parser alternates between the length field and the frame body. Called on the event loop.
+     */
+    protected open fun onRecord(buffer: Buffer) {
+        if (frameLen < 0) {
+            val len = buffer.getInt(0)
+            if (len < CardFrame.HEADER_LEN || len > CardFrame.MAX_FRAME_LEN) {
+                logger.warn("Invalid frame length@[$clContext]: $len, closing")
+                socket.close()
+                return
+            }
+            frameLen = len
+            parser.fixedSizeMode(len)
+            return
+        }
+
+        val frame = ByteBuffer.allocate(CardFrame.LENGTH_LEN + frameLen)
+        frame.putInt(frameLen)
+        frame.put(buffer.byteBuf.nioBuffer())
+        frame.flip()
+        frameLen = -1
+        parser.fixedSizeMode(CardFrame.LENGTH_LEN)
+
+        val req = try {
+            CardFrame.decode(frame.duplicate())
+        } catch (e: Exception) {
+            logger.warn("Invalid binary frame@[$clContext]: ${e.localizedMessage}")
+            reject(CardFrame.decodeHeader(frame), "Invalid frame: ${e.localizedMessage}")
+            return
+        }
+        if (!authenticated) {
+            authenticate(req)
+            return
+        }
+        if (!frameLanes.offer(req)) {
+            logger.warn("Too many pending frames@[$clContext]")
+            reject(req, "Too many pending frames")
+        }
+    }
+
+    /**
+     * First frame of the connection has to carry the access token if the server requires one
+     */
+    protected open fun authenticate(req: CardFrame) {
+        val token = parent.app.tcpToken?.toByteArray(Charsets.UTF_8) ?: byteArrayOf()
+        if (req.action != CardFrame.ACTION_AUTH || !MessageDigest.isEqual(token, req.payload ?: byteArrayOf())) {
+            logger.warn("Unauthenticated TCP client@[$clContext], closing")
+            socket.close()
+            return
+        }
+
+        authenticated = true
+        cscope.launch { sendBinary(req.response(0, null)) }
+    }
+
+    /**
+     * Replies with the error frame, closes the connection if the frame header is not readable
+     */
+    protected open fun reject(req: CardFrame?, error: String) {
+        if (req == null) {
+            socket.close()
+            return
+        }
+        cscope.launch { sendBinary(req.errorResponse(-1, error)) }
+    }
+
+    protected open suspend fun onFrameReceived(req: CardFrame) {
+        val resp = try {
+            getHandler().frameHandler(req, flow, trusted)
+        } catch (e: Exception) {
+            logger.warn("General Exception: ${e.localizedMessage}", e)
+            req.errorResponse(-1, "General exception: ${e.message}")
+        }
+        sendBinary(resp)
+    }
+
+    protected open suspend fun sendBinary(resp: CardFrame) {
+        val buffer = Buffer.buffer(resp.encode())
+        awaitEvent<AsyncResult<Void>> { handler ->
+            socket.write(buffer, handler)
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package cz.muni.fi.crocs.rcard.server
+
+import io.vertx.core.Vertx
+import io.vertx.core.buffer.Buffer
+import io.vertx.core.logging.LoggerFactory
+import io.vertx.core.net.NetServer
+import io.vertx.core.net.NetServerOptions
+import io.vertx.core.net.NetSocket
+import java.net.InetAddress
+import java.util.*
+
+/**
+ * Raw TCP card server, serves binary frames (see CardFrame) over plain TCP connections.
+ * No HTTP framing, routing or JSON, lowest per-APDU overhead for machine-to-machine use.
+ */
+open class TcpServer(vertx_: Vertx, app: Server): BaseVerticle(vertx_, app) {
+    private val logger = LoggerFactory.getLogger(javaClass)
+    private lateinit var server: NetServer
+
+    override suspend fun start() {
+        startServer()
+    }
+
+    private fun startServer(){
+        val port = app.tcpPort ?: throw RuntimeException("TCP port not configured")
+        logger.info("Starting TCP server")
+        server = vertx.createNetServer(getServerOptions())
+        server.connectHandler { socket ->
+            onClientConnected(socket)
+        }
+        server.listen(port, app.host) {
+            if (it.succeeded()) {
+                logger.info("TCP Server listening @ ${server.actualPort()}")
+                if (app.simWorker) {
+                    app.simWorkerReport?.let { reportPort(it, server.actualPort()) }
+                }
+            } else {
+                logger.error("TCP Server failed to listen @ $port", it.cause())
+            }
+        }
+    }
+
+    /**
+     * Simulator worker reports its bound port with its access token to the server that started it
+     */
+    protected open fun reportPort(reportPort: Int, port: Int) {
+        val client = vertx.createNetClient()
+        client.connect(reportPort, InetAddress.getLoopbackAddress().hostAddress) { conn ->
+            if (conn.failed()) {
+                logger.error("Simulator worker port report failed, terminating", conn.cause())
+                client.close()
+                app.shutdownServer()
+                return@connect
+            }
+
+            val socket = conn.result()
+            socket.write(Buffer.buffer("${app.tcpToken ?: ""} $port\n")) {
+                socket.close()
+                client.close()
+            }
+        }
+    }
+
+    open fun getServerOptions(): NetServerOptions {
+        return NetServerOptions()
+            .setTcpNoDelay(true)
+            .setTcpKeepAlive(true)
+    }
+
+    open fun generateSessionId(): String {
+        return UUID.randomUUID().toString()
+    }
+
+    open fun onClientConnected(socket: NetSocket) {
+        val client = TcpHandler(this, socket)
+        client.initHooks()
+    }
+
+    open fun getHandler(): CardHandler {
+        return app.getHandler()
+    }
+}
@@ -2,6 +2,7 @@ package cz.muni.fi.crocs.rcard.server
 
 import com.beust.klaxon.JsonObject
 import com.beust.klaxon.Parser
+import cz.muni.fi.crocs.rcard.client.protocols.CardFrame
 import io.vertx.core.AsyncResult
 import io.vertx.core.buffer.Buffer
 import io.vertx.core.http.ServerWebSocket
@@ -17,6 +18,9 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
     private var periodicId: Long? = null
     private val clContext = parent.generateSessionId()
     private var cscope: CoroutineScope = CoroutineScope(parent.coroutineContext + SupervisorJob())
+    private val frameLanes = FrameLanes(cscope, { webSocket.pause() }, { webSocket.resume() }) { onFrameReceived(it) }
+    private val trusted: Boolean by lazy { getHandler().isTrustedClient(webSocket.remoteAddress()?.host()) }
+    private val flow: String by lazy { if (trusted) clContext else getHandler().untrustedFlow(webSocket.remoteAddress()?.host()) }
 
     // TODO: session tracking
 
@@ -37,7 +41,7 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
             }
 
             webSocket.binaryMessageHandler { buffer ->
-                onGlobalCtxAsync { onBinaryReceived(buffer) }
+                onBinaryReceived(buffer)
             }
 
             webSocket.closeHandler {
@@ -58,6 +62,7 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
 
     protected open fun onOpen() {
         getHandler().onClientConnect()
+        getHandler().metrics.webSocketSessions.incrementAndGet()
         resetPeriodic {
             try {
                 logger.info("[$clContext] Send Ping")
@@ -71,6 +76,8 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
     protected open fun onClose(){
         logger.info("closing $clContext")
         getHandler().onClientDisconnect()
+        getHandler().metrics.webSocketSessions.decrementAndGet()
+        frameLanes.close()
         cscope.cancel()
     }
 
@@ -124,8 +131,45 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
         }
     }
 
-    private fun onBinaryReceived(@Suppress("UNUSED_PARAMETER") message: Buffer) {
-        logger.info("[SERVER] binary message received")
+    /**
+     * Frames are processed in the order of arrival for each card, different cards in parallel.
+     * Client can thus pipeline requests, matching responses by rid.
+     * Called on the event loop.
+     */
+    protected open fun onBinaryReceived(message: Buffer) {
+        val req = try {
+            CardFrame.decode(message.byteBuf.nioBuffer())
+        } catch (e: Exception) {
+            logger.warn("Invalid binary frame@[$clContext]: ${e.localizedMessage}")
+            reject(CardFrame.decodeHeader(message.byteBuf.nioBuffer()), "Invalid frame: ${e.localizedMessage}")
+            return
+        }
+
+        if (!frameLanes.offer(req)) {
+            logger.warn("Too many pending frames@[$clContext]")
+            reject(req, "Too many pending frames")
+        }
+    }
+
+    /**
+     * Replies with the error frame, closes the WebSocket if the frame header is not readable
+     */
+    protected open fun reject(req: CardFrame?, error: String) {
+        if (req == null) {
+            tryCloseWebSocket()
+            return
+        }
+        onGlobalCtxAsync { sendBinary(req.errorResponse(-1, error)) }
+    }
+
+    protected open suspend fun onFrameReceived(req: CardFrame) {
+        val resp = try {
+            getHandler().frameHandler(req, flow, trusted)
+        } catch (e: Exception) {
+            logger.warn("General Exception: ${e.localizedMessage}", e)
+            req.errorResponse(-1, "General exception: ${e.message}")
+        }
+        sendBinary(resp)
     }
 
     protected open suspend fun onTextReceived(message: String) {
@@ -161,6 +205,10 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
     protected open suspend fun textMsgHandler(req: JsonObject): JsonObject? {
         val handler = getHandler()
         val resp = buildResp(req)
+        if (!req.containsKey("client") && !req.containsKey("csess")) {
+            req["client"] = clContext
+        }
+        handler.restrictSched(req, trusted, webSocket.remoteAddress()?.host())
         return handler.actionHandler(req, resp)
     }
 
@@ -178,6 +226,17 @@ open class WebsocketHandler(private val parent: RestServer, private val webSocke
         }
     }
 
+    protected open suspend fun sendBinary(resp: CardFrame, shouldAwait: Boolean = true){
+        val buffer = Buffer.buffer(resp.encode())
+        if (shouldAwait) {
+            awaitEvent<AsyncResult<Void>> { handler ->
+                webSocket.writeBinaryMessage(buffer, handler)
+            }
+        } else {
+            webSocket.writeBinaryMessage(buffer)
+        }
+    }
+
     protected open fun buildResp(req: JsonObject?=null): JsonObject {
         val resp = JsonObject()
         resp["session"] = clContext
@@ -46,6 +46,12 @@ class CardManagerLocal(bDebug: Boolean, appletAID: ByteArray?) {
      */
     var defaultNe: Int? = null
 
+    /**
+     * Handle 61xx (GET RESPONSE) and 6Cxx (Le retry) responses in transmit, return the final response.
+     * Off by default, CardHandler handles them per request through SendOptions.
+     */
+    var autoResponse = false
+
     /**
      * Perform automated select
      */
@@ -296,7 +302,7 @@ class CardManagerLocal(bDebug: Boolean, appletAID: ByteArray?) {
             log(cmd)
         }
         var elapsed = -System.currentTimeMillis()
-        val response = ch.transmit(cmd)
+        val response = if (autoResponse) AutoResponse.transmit({ ch.transmit(it) }, cmd) else ch.transmit(cmd)
         elapsed += System.currentTimeMillis()
         lastTransmitTime = elapsed
         if (bDebug) {
@@ -329,10 +335,16 @@ class CardManagerLocal(bDebug: Boolean, appletAID: ByteArray?) {
         }
     }
 
+    /**
+     * Adds Le=00 to case 1 APDUs. Commands with data or Le are kept, only Ne fix may apply.
+     */
     private fun fixApduLc(cmd: CommandAPDU): CommandAPDU {
         if (cmd.nc != 0) {
             return fixApduNe(cmd)
         }
+        if (cmd.ne != 0) {
+            return cmd
+        }
         val apdu = byteArrayOf(
             cmd.cla.toByte(),
             cmd.ins.toByte(),
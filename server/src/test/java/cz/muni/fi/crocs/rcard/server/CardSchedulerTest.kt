@@ -0,0 +1,123 @@
+package cz.muni.fi.crocs.rcard.server
+
+import kotlinx.coroutines.*
+import org.junit.Assert.*
+import org.junit.Test
+
+class CardSchedulerTest {
+    /**
+     * Submits the requests while the card is held by a blocking request, so all of them queue,
+     * then releases the card and returns the order in which the requests were served.
+     */
+    private fun serveOrder(sched: CardScheduler, requests: List<Triple<String, Priority, Int>>): List<String> = runBlocking {
+        val order = ArrayList<String>()
+        val gate = CompletableDeferred<Unit>()
+        val blocker = launch(start = CoroutineStart.UNDISPATCHED) {
+            sched.submit("blocker", Priority.INTERACTIVE, 1, 1) { gate.await() }
+        }
+
+        val jobs = requests.map { (flow, priority, weight) ->
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                sched.submit(flow, priority, weight, 1) { order.add(flow) }
+            }
+        }
+        assertEquals(requests.size, sched.queued())
+
+        gate.complete(Unit)
+        blocker.join()
+        jobs.joinAll()
+        assertEquals(0, sched.queued())
+        order
+    }
+
+    @Test
+    fun flowsShareCard() {
+        val requests = List(10) { Triple("long", Priority.INTERACTIVE, 1) } + List(2) { Triple("short", Priority.INTERACTIVE, 1) }
+        val order = serveOrder(CardScheduler(), requests)
+
+        // Short flow does not wait for the whole long session, flows alternate
+        assertEquals(listOf("long", "short", "long", "short"), order.take(4))
+        assertEquals(10, order.count { it == "long" })
+    }
+
+    @Test
+    fun priorityClassWeight() {
+        val requests = List(8) { Triple("batch", Priority.BATCH, 1) } + List(4) { Triple("user", Priority.INTERACTIVE, 1) }
+        val order = serveOrder(CardScheduler(), requests)
+
+        // Interactive class has 4 times the share of the batch class
+        assertTrue(order.toString(), order.take(6).count { it == "user" } == 4)
+    }
+
+    @Test
+    fun flowWeight() {
+        val requests = List(6) { Triple("light", Priority.BATCH, 1) } + List(6) { Triple("heavy", Priority.BATCH, 3) }
+        val order = serveOrder(CardScheduler(), requests)
+        assertTrue(order.toString(), order.take(6).count { it == "heavy" } >= 4)
+    }
+
+    @Test
+    fun flowOrderKept() = runBlocking {
+        val sched = CardScheduler()
+        val order = ArrayList<Int>()
+        val gate = CompletableDeferred<Unit>()
+        val blocker = launch(start = CoroutineStart.UNDISPATCHED) {
+            sched.submit("a", Priority.INTERACTIVE, 1, 1) { gate.await() }
+        }
+        val jobs = (0 until 5).map { i ->
+            launch(start = CoroutineStart.UNDISPATCHED) {
+                sched.submit("a", Priority.values()[i % 3], 1 + i, 1) { order.add(i) }
+            }
+        }
+
+        gate.complete(Unit)
+        blocker.join()
+        jobs.joinAll()
+        assertEquals(listOf(0, 1, 2, 3, 4), order)
+    }
+
+    @Test
+    fun cancelledWaiterReleased() = runBlocking {
+        val sched = CardScheduler()
+        val gate = CompletableDeferred<Unit>()
+        val blocker = launch(start = CoroutineStart.UNDISPATCHED) {
+            sched.submit("a", Priority.INTERACTIVE, 1, 1) { gate.await() }
+        }
+        val waiter = launch(start = CoroutineStart.UNDISPATCHED) {
+            sched.submit("b", Priority.INTERACTIVE, 1, 1) { fail("Cancelled request executed") }
+        }
+        assertEquals(1, sched.queued())
+        waiter.cancelAndJoin()
+        assertEquals(0, sched.queued())
+
+        gate.complete(Unit)
+        blocker.join()
+        assertEquals("ok", withTimeout(1000) { sched.submit("c", Priority.INTERACTIVE, 1, 1) { "ok" } })
+    }
+
+    @Test
+    fun failedRequestReleasesCard() = runBlocking {
+        val sched = CardScheduler()
+        try {
+            sched.submit("a", Priority.INTERACTIVE, 1, 1) { throw IllegalStateException("card failure") }
+            fail("Exception not propagated")
+        } catch (e: IllegalStateException) {
+            // expected
+        }
+        assertEquals(1, withTimeout(1000) { sched.submit("a", Priority.INTERACTIVE, 1, 1) { 1 } })
+    }
+
+    @Test
+    fun parsePriority() {
+        assertEquals(Priority.ADMIN, Priority.parse("admin"))
+        assertEquals(Priority.BATCH, Priority.parse("BATCH"))
+        assertNull(Priority.parse(null))
+        assertNull(Priority.parse(" "))
+        try {
+            Priority.parse("urgent")
+            fail("Unknown priority accepted")
+        } catch (e: RuntimeException) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,112 @@
+package cz.muni.fi.crocs.rcard.server
+
+import cz.muni.fi.crocs.rcard.client.CardType
+import io.vertx.core.Vertx
+import kotlinx.coroutines.runBlocking
+import org.junit.After
+import org.junit.Assert.*
+import org.junit.Test
+import java.util.concurrent.ConcurrentHashMap
+
+class ReaderPoolTest {
+    private val vertx = Vertx.vertx()
+    private val app = object : Server() {
+        override fun run() {}
+    }.apply { parse(emptyList()) }
+
+    private val load = ConcurrentHashMap<CardConnectorIdx, Int>()
+    private val down = ConcurrentHashMap.newKeySet<CardConnectorIdx>()
+    private val handler = object : CardHandler(vertx, app) {
+        override fun inFlight(key: CardConnectorIdx): Int = load[key] ?: 0
+    }
+    private val readers = (0 until 3).map { CardConnectorIdx(CardType.PHYSICAL, it) }
+
+    /** Readers are always connected, readers in down match no request */
+    private val pool = object : ReaderPool(handler, readers, sessionTimeout = 0) {
+        override suspend fun matches(member: PoolMember, pred: PoolPredicate, atr: Regex?): Boolean = member.key !in down
+    }
+
+    @After
+    fun tearDown() {
+        vertx.close()
+    }
+
+    @Test
+    fun sessionSticksToReader() = runBlocking {
+        val first = pool.pick("s1")
+        load[first] = 10
+        repeat(5) { assertEquals(first, pool.pick("s1")) }
+        assertEquals(1, pool.numSessions())
+    }
+
+    @Test
+    fun requestWithoutSessionGoesToLeastBusy() = runBlocking {
+        load[readers[0]] = 2
+        load[readers[1]] = 0
+        load[readers[2]] = 1
+        repeat(5) { assertEquals(readers[1], pool.pick(null)) }
+        assertEquals(readers[1], pool.pick(""))
+        assertEquals(0, pool.numSessions())
+    }
+
+    @Test
+    fun sessionsSpreadOverReaders() = runBlocking {
+        val picked = (0 until 3).map { pool.pick("s$it") }.toSet()
+        assertEquals(readers.toSet(), picked)
+
+        // Busy reader is avoided even with fewer sessions
+        load[readers[0]] = 1
+        load[readers[1]] = 1
+        assertEquals(readers[2], pool.pick("s3"))
+    }
+
+    @Test
+    fun releasedSessionMoves() = runBlocking {
+        val first = pool.pick("s1")
+        load[first] = 10
+        pool.release("s1")
+        assertEquals(0, pool.numSessions())
+        assertNotEquals(first, pool.pick("s1"))
+        pool.release(null)
+        pool.release("unknown")
+        assertEquals(1, pool.numSessions())
+    }
+
+    @Test
+    fun sessionLeavesFailedReader() = runBlocking {
+        val first = pool.pick("s1")
+        down.add(first)
+        val second = pool.pick("s1")
+        assertNotEquals(first, second)
+        assertEquals(second, pool.pick("s1"))
+        assertEquals(1, pool.numSessions())
+
+        // Session count of the failed reader was released, it is preferred to the reader with the session
+        down.clear()
+        down.addAll(readers - first - second)
+        assertEquals(first, pool.pick("s2"))
+    }
+
+    @Test
+    fun noMatchingReader() = runBlocking {
+        down.addAll(readers)
+        try {
+            pool.pick("s1")
+            fail("Picked a reader not matching")
+        } catch (e: RuntimeException) {
+            assertEquals(0, pool.numSessions())
+        }
+    }
+
+    @Test
+    fun parseReaders() {
+        assertEquals(listOf(0, 1, 2, 3), ReaderPool.parseReaders("0-3"))
+        assertEquals(listOf(0, 2, 4, 5, 6), ReaderPool.parseReaders("0, 2,4-6,"))
+        try {
+            ReaderPool.parseReaders("1-2-3")
+            fail("Invalid range accepted")
+        } catch (e: IllegalArgumentException) {
+            // expected
+        }
+    }
+}
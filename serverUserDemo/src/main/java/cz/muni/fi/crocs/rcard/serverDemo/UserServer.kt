@@ -4,9 +4,6 @@ import com.github.ajalt.clikt.parameters.options.flag
 import com.github.ajalt.clikt.parameters.options.option
 import com.licel.jcardsim.smartcardio.CardSimulator
 import com.licel.jcardsim.utils.AIDUtil
-import cz.muni.fi.crocs.rcard.client.CardManager
-import cz.muni.fi.crocs.rcard.client.CardType
-import cz.muni.fi.crocs.rcard.client.RunConfig
 import cz.muni.fi.crocs.rcard.server.CardConnectorIdx
 import cz.muni.fi.crocs.rcard.serverDemo.demo.DemoApplet3
 import cz.muni.fi.crocs.rcard.serverDemo.demo.DemoApplet4
@@ -22,14 +19,9 @@ open class UserServer : cz.muni.fi.crocs.rcard.server.Server() {
         .flag(default=false)
 
     /**
-     * Change configuration of the card before connecting.
-     * Can initialize simulator here
+     * Builds the simulator template with our applets, simulators are prebuilt ahead of connect
      */
-    override fun configureCard(key: CardConnectorIdx, mrg: CardManager, cfg: RunConfig){
-        if (key.ctype != CardType.JCARDSIMLOCAL){
-            return
-        }
-
+    override fun buildSimulator(template: CardConnectorIdx): CardSimulator {
         val simulator = CardSimulator()
 
         // Install first demo applet
@@ -40,12 +32,8 @@ open class UserServer : cz.muni.fi.crocs.rcard.server.Server() {
         val appletAID2 = AIDUtil.create(DemoApplet4.APPLET_AID_BYTE)
         simulator.installApplet(appletAID2, DemoApplet4::class.java)
 
-        cfg.simulator = simulator
-
-        // If AID is provided to the config, we can have applet selected on connection
-        //cfg.aid = DemoApplet.APPLET_AID_BYTE
-
         logger.info("Created sim for AID ${Hex.encodeHexString(DemoApplet3.APPLET_AID_BYTE)} for DemoApplet3")
+        return simulator
     }
 
     companion object {